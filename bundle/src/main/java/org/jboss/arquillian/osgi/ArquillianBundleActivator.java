@@ -27,6 +27,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -36,17 +38,17 @@ import javax.management.MBeanServerFactory;
 import org.jboss.arquillian.container.test.api.OperateOnDeployment;
 import org.jboss.arquillian.protocol.jmx.JMXTestRunner;
 import org.jboss.arquillian.protocol.jmx.JMXTestRunner.TestClassLoader;
-import org.jboss.arquillian.testenricher.osgi.BundleAssociation;
-import org.jboss.arquillian.testenricher.osgi.BundleContextAssociation;
+import org.jboss.arquillian.protocol.osgi.LocalTestRunner;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleReference;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * This is the Arquillian {@link BundleActivator}.
- * It unconditionally starts the {@link JMXTestRunner}.
+ * It unconditionally starts the {@link JMXTestRunner} and registers the {@link LocalTestRunner} service.
  *
  * @author thomas.diesler@jboss.com
  * @since 17-May-2009
@@ -56,9 +58,13 @@ public class ArquillianBundleActivator implements BundleActivator {
     private static Logger log = Logger.getLogger(ArquillianBundleActivator.class.getName());
 
     private JMXTestRunner testRunner;
+    private TestMethodInvoker invoker;
+    private BatchTestRunner batchTestRunner;
+    private ServiceRegistration<LocalTestRunner> localTestRunner;
     private long arqBundleId;
 
     public void start(final BundleContext context) throws Exception {
+        long startNanos = System.nanoTime();
 
         arqBundleId = context.getBundle().getBundleId();
 
@@ -90,43 +96,78 @@ public class ArquillianBundleActivator implements BundleActivator {
 
         // Register the JMXTestRunner
         MBeanServer mbeanServer = findOrCreateMBeanServer();
+        invoker = new TestMethodInvoker(TestMethodInvoker.getThreads(context.getProperty(TestMethodInvoker.THREADS)));
         testRunner = new JMXTestRunner(testClassLoader) {
 
             @Override
-            public byte[] runTestMethod(String className, String methodName) {
-                Thread thread = Thread.currentThread();
-                ClassLoader contextClassLoader = thread.getContextClassLoader();
+            public byte[] runTestMethod(final String className, final String methodName) {
+                Class<?> testClass;
                 try {
-                    thread.setContextClassLoader(testClassLoader.loadTestClass(className).getClassLoader());
-                    return super.runTestMethod(className, methodName);
+                    testClass = testClassLoader.loadTestClass(className);
                 } catch (ClassNotFoundException e) {
                     log.warning("Can't find class" + className);
-                } finally {
-                    thread.setContextClassLoader(contextClassLoader);
+                    return null;
                 }
-                return null;
+                return invoke(testClass, methodName, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return runTestMethodInContext(className, methodName);
+                    }
+                });
             }
 
             @Override
-            public byte[] runTestMethod(String className, String methodName, Map<String, String> protocolProps) {
+            public byte[] runTestMethod(final String className, final String methodName, final Map<String, String> protocolProps) {
                 Class<?> testClass;
                 try {
                     testClass = testClassLoader.loadTestClass(className);
                 } catch (ClassNotFoundException ex) {
                     throw new IllegalStateException(ex);
                 }
-                BundleAssociation.setBundle(getTestBundle(syscontext, testClass, methodName));
-                BundleContextAssociation.setBundleContext(syscontext);
+                return invoke(testClass, methodName, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return runTestMethodInContext(className, methodName, protocolProps);
+                    }
+                });
+            }
+
+            private byte[] runTestMethodInContext(String className, String methodName) {
+                return super.runTestMethod(className, methodName);
+            }
+
+            private byte[] runTestMethodInContext(String className, String methodName, Map<String, String> protocolProps) {
                 return super.runTestMethod(className, methodName, protocolProps);
             }
+
+            private byte[] invoke(Class<?> testClass, String methodName, Callable<byte[]> call) {
+                try {
+                    return invoker.invoke(testClass, methodName, getTestBundle(syscontext, testClass, methodName), syscontext, call);
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IllegalStateException("Cannot run " + testClass.getName() + "." + methodName, ex);
+                }
+            }
         };
         testRunner.registerMBean(mbeanServer);
+        batchTestRunner = new BatchTestRunner(testRunner, testClassLoader, invoker);
+        batchTestRunner.registerMBean(mbeanServer);
+
+        // Clients in the same JVM call the test runner directly
+        localTestRunner = context.registerService(LocalTestRunner.class, new LocalTestRunnerService(testClassLoader, invoker, syscontext), null);
+
+        long startMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        log.fine("Started in " + startMillis + "ms, Bundle-ClassPath: " + context.getBundle().getHeaders().get(Constants.BUNDLE_CLASSPATH)
+            + (invoker.isConcurrent() ? ", running up to " + invoker.getThreads() + " tests concurrently" : ""));
     }
 
     public void stop(BundleContext context) throws Exception {
         // Unregister the JMXTestRunner
         MBeanServer mbeanServer = findOrCreateMBeanServer();
         testRunner.unregisterMBean(mbeanServer);
+        batchTestRunner.unregisterMBean(mbeanServer);
+        localTestRunner.unregister();
     }
 
     private MBeanServer findOrCreateMBeanServer() {
@@ -149,7 +190,7 @@ public class ArquillianBundleActivator implements BundleActivator {
         return mbeanServer;
     }
 
-    private Bundle getTestBundle(BundleContext syscontext, Class<?> testClass, String methodName) {
+    static Bundle getTestBundle(BundleContext syscontext, Class<?> testClass, String methodName) {
         Bundle bundle = ((BundleReference) testClass.getClassLoader()).getBundle();
         for (Method method : testClass.getMethods()) {
             OperateOnDeployment opon = method.getAnnotation(OperateOnDeployment.class);
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.protocol.jmx.JMXTestRunner;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunner.TestClassLoader;
+import org.jboss.arquillian.protocol.osgi.BatchResult;
+import org.jboss.arquillian.protocol.osgi.BatchTestRunnerMBean;
+import org.jboss.arquillian.test.spi.TestResult;
+
+/**
+ * Runs the test methods of a test class with one invocation of the {@link JMXTestRunner} each and
+ * sends the results as notifications, so that a client pays the protocol round trip once per class.
+ *
+ * Parallel-safe test methods are run concurrently if the {@link TestMethodInvoker} is concurrent.
+ */
+public final class BatchTestRunner extends NotificationBroadcasterSupport implements BatchTestRunnerMBean {
+
+    private static Logger log = Logger.getLogger(BatchTestRunner.class.getName());
+
+    private final JMXTestRunner testRunner;
+    private final TestClassLoader testClassLoader;
+    private final TestMethodInvoker invoker;
+    private final AtomicLong sequenceNumber = new AtomicLong();
+    // The invoker bounds the number of tests that actually run
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "arquillian-batch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public BatchTestRunner(JMXTestRunner testRunner, TestClassLoader testClassLoader, TestMethodInvoker invoker) {
+        this.testRunner = testRunner;
+        this.testClassLoader = testClassLoader;
+        this.invoker = invoker;
+    }
+
+    @Override
+    public int runTestMethods(final String batchId, String className, String[] methodNames, final Map<String, String> protocolProps) {
+        final Class<?> testClass;
+        try {
+            testClass = testClassLoader.loadTestClass(className);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        int count = 0;
+        List<Future<Void>> parallel = new ArrayList<Future<Void>>();
+        for (final String methodName : methodNames) {
+            if (invoker.isConcurrent() && TestMethodInvoker.isParallelSafe(testClass, methodName)) {
+                parallel.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runTestMethod(batchId, testClass, methodName, protocolProps);
+                        return null;
+                    }
+                }));
+            } else {
+                runTestMethod(batchId, testClass, methodName, protocolProps);
+            }
+            count++;
+        }
+        for (Future<Void> future : parallel) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while running " + className, ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Cannot run " + className, ex.getCause());
+            }
+        }
+        return count;
+    }
+
+    private void runTestMethod(String batchId, Class<?> testClass, String methodName, Map<String, String> protocolProps) {
+        TestResult result;
+        try {
+            byte[] bytes = testRunner.runTestMethod(testClass.getName(), methodName, protocolProps);
+            result = (TestResult) new TestResultInputStream(bytes, testClass.getClassLoader()).readObject();
+        } catch (Exception ex) {
+            result = TestResult.failed(ex);
+        }
+        byte[] userData;
+        try {
+            userData = new BatchResult(methodName, result).encode();
+        } catch (IOException ex) {
+            // The client waits for every result, send one that can be encoded
+            log.log(Level.WARNING, "Cannot encode the result of " + testClass.getName() + "." + methodName, ex);
+            try {
+                userData = new BatchResult(methodName, TestResult.failed(new IllegalStateException("Cannot encode test result: " + ex))).encode();
+            } catch (IOException ignored) {
+                return;
+            }
+        }
+        Notification notification = new Notification(RESULT_NOTIFICATION, OBJECT_NAME, sequenceNumber.incrementAndGet(), batchId);
+        notification.setUserData(userData);
+        sendNotification(notification);
+    }
+
+    public void registerMBean(MBeanServer mbeanServer) throws Exception {
+        mbeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public void unregisterMBean(MBeanServer mbeanServer) throws Exception {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (mbeanServer.isRegistered(name)) {
+            mbeanServer.unregisterMBean(name);
+        }
+        executor.shutdownNow();
+    }
+
+    // Resolves the exception classes of the test bundle
+    private static final class TestResultInputStream extends ObjectInputStream {
+        private final ClassLoader classLoader;
+
+        TestResultInputStream(byte[] bytes, ClassLoader classLoader) throws IOException {
+            super(new ByteArrayInputStream(bytes));
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException ex) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
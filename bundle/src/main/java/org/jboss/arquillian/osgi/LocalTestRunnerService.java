@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import org.jboss.arquillian.container.test.spi.TestRunner;
+import org.jboss.arquillian.container.test.spi.util.TestRunners;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunner.TestClassLoader;
+import org.jboss.arquillian.protocol.osgi.LocalTestRunner;
+import org.jboss.arquillian.protocol.osgi.command.OSGiCommandService;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Runs test methods for a client in the same JVM, without serializing the invocation or its result.
+ *
+ * Commands of the test are sent to the command callback of the client.
+ */
+public final class LocalTestRunnerService implements LocalTestRunner {
+
+    private final TestClassLoader testClassLoader;
+    private final TestMethodInvoker invoker;
+    private final BundleContext syscontext;
+
+    LocalTestRunnerService(TestClassLoader testClassLoader, TestMethodInvoker invoker, BundleContext syscontext) {
+        this.testClassLoader = testClassLoader;
+        this.invoker = invoker;
+        this.syscontext = syscontext;
+    }
+
+    @Override
+    public Object[] runTestMethod(String className, final String methodName, final Function<byte[], byte[]> commandCallback) {
+        TestResult result;
+        try {
+            final Class<?> testClass = testClassLoader.loadTestClass(className);
+            Bundle bundle = ArquillianBundleActivator.getTestBundle(syscontext, testClass, methodName);
+            result = invoker.invoke(testClass, methodName, bundle, syscontext, new Callable<TestResult>() {
+                @Override
+                public TestResult call() throws Exception {
+                    return runTestMethod(testClass, methodName, commandCallback);
+                }
+            });
+        } catch (Throwable th) {
+            result = TestResult.failed(th);
+        }
+        if (result.getEnd() == 0) {
+            result.setEnd(System.currentTimeMillis());
+        }
+        return new Object[] { result.getStatus().name(), result.getStart(), result.getEnd(), result.getThrowable() };
+    }
+
+    private TestResult runTestMethod(Class<?> testClass, String methodName, Function<byte[], byte[]> commandCallback) {
+        TestRunner runner = TestRunners.getTestRunner(LocalTestRunnerService.class.getClassLoader());
+        // Like the JMX test runner, run with the class loader of the test runner
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(runner.getClass().getClassLoader());
+        OSGiCommandService.setLocalCallback(commandCallback);
+        try {
+            return runner.execute(testClass, methodName);
+        } finally {
+            OSGiCommandService.setLocalCallback(null);
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.jboss.arquillian.testenricher.osgi.BundleAssociation;
+import org.jboss.arquillian.testenricher.osgi.BundleContextAssociation;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Runs test methods in the context of their test bundle.
+ *
+ * Every invocation sets the thread context class loader and the bundle associations of the test
+ * enricher on the executing thread and removes them when it completes, so nothing leaks into the
+ * next invocation on that thread.
+ *
+ * Invocations run on the calling thread. With more than one thread, tests annotated with
+ * {@link ParallelSafe} share a read lock and run concurrently, all other tests take the write lock
+ * and run exclusively. At most the configured number of tests run at the same time. Tests only run
+ * concurrently if they are invoked concurrently, by the batched test execution or by several clients.
+ */
+public final class TestMethodInvoker {
+
+    private static Logger log = Logger.getLogger(TestMethodInvoker.class.getName());
+
+    /** The number of tests that may run at the same time, defaults to 1 */
+    static final String THREADS = "arquillian.osgi.test.threads";
+
+    private final int threads;
+    // Bounds the number of tests that run at the same time
+    private final Semaphore permits;
+    // Fair, so that exclusive tests are not starved by a stream of parallel-safe tests
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // Set while an invocation runs on the current thread
+    private final ThreadLocal<Boolean> active = new ThreadLocal<Boolean>();
+
+    TestMethodInvoker(int threads) {
+        this.threads = threads;
+        this.permits = threads > 1 ? new Semaphore(threads, true) : null;
+    }
+
+    /**
+     * Get the number of threads from the value of the {@link #THREADS} property.
+     * An invalid value is reported and tests run one at a time.
+     */
+    static int getThreads(String value) {
+        if (value == null)
+            return 1;
+        int threads;
+        try {
+            threads = Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            threads = 0;
+        }
+        if (threads < 1) {
+            log.warning("Invalid " + THREADS + " value '" + value + "', expected a positive number. Running tests on a single thread");
+            return 1;
+        }
+        return threads;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    boolean isConcurrent() {
+        return permits != null;
+    }
+
+    /**
+     * Run a test method on the calling thread.
+     *
+     * @param testClass  The test class
+     * @param methodName The test method
+     * @param bundle     The bundle that is associated with the test
+     * @param syscontext The system bundle context
+     * @param call       The invocation of the test runner
+     */
+    <T> T invoke(Class<?> testClass, String methodName, Bundle bundle, BundleContext syscontext, Callable<T> call) throws Exception {
+        // A nested invocation already runs in the context of its test
+        if (active.get() != null)
+            return call.call();
+
+        if (permits == null)
+            return invokeInContext(testClass, bundle, syscontext, call);
+
+        Lock testLock = isParallelSafe(testClass, methodName) ? lock.readLock() : lock.writeLock();
+        testLock.lockInterruptibly();
+        try {
+            permits.acquire();
+            try {
+                return invokeInContext(testClass, bundle, syscontext, call);
+            } finally {
+                permits.release();
+            }
+        } finally {
+            testLock.unlock();
+        }
+    }
+
+    private <T> T invokeInContext(Class<?> testClass, Bundle bundle, BundleContext syscontext, Callable<T> call) throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(testClass.getClassLoader());
+        BundleAssociation.setBundle(bundle);
+        BundleContextAssociation.setBundleContext(syscontext);
+        active.set(Boolean.TRUE);
+        try {
+            return call.call();
+        } finally {
+            active.remove();
+            BundleAssociation.clearBundle();
+            BundleContextAssociation.clearBundleContext();
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    static boolean isParallelSafe(Class<?> testClass, String methodName) {
+        if (testClass.isAnnotationPresent(ParallelSafe.class))
+            return true;
+        for (Method method : testClass.getMethods()) {
+            if (method.getName().equals(methodName) && method.isAnnotationPresent(ParallelSafe.class))
+                return true;
+        }
+        return false;
+    }
+}
@@ -27,27 +27,45 @@ import org.jboss.arquillian.core.api.Instance;
 import org.jboss.arquillian.core.api.annotation.Inject;
 import org.jboss.arquillian.core.spi.ServiceLoader;
 import org.jboss.arquillian.osgi.ArquillianBundleActivator;
+import org.jboss.arquillian.osgi.BatchTestRunner;
+import org.jboss.arquillian.osgi.LocalTestRunnerService;
+import org.jboss.arquillian.osgi.TestMethodInvoker;
 import org.jboss.arquillian.protocol.jmx.JMXTestRunner;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ArchivePath;
 import org.jboss.shrinkwrap.api.Filters;
 import org.jboss.shrinkwrap.api.Node;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
 
 import org.osgi.framework.Constants;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
@@ -57,6 +75,8 @@ import java.util.stream.Collectors;
  */
 public class ArquillianBundleGenerator {
 
+    private static final Logger log = Logger.getLogger(ArquillianBundleGenerator.class.getName());
+
     private static final List<String> exportPackages = Arrays.asList(
             "org.jboss.arquillian.container.test.api",
             "org.jboss.arquillian.junit",
@@ -84,10 +104,23 @@ public class ArquillianBundleGenerator {
     public Archive<?> createArquillianBundle()
         throws Exception{
 
+        return createArquillianBundle(false);
+    }
+
+    /**
+     * Create the Arquillian bundle.
+     *
+     * @param flatten If true, the content of the auxiliary archives is merged into the bundle root
+     *                instead of being embedded as nested jars on the Bundle-ClassPath
+     */
+    public Archive<?> createArquillianBundle(boolean flatten)
+        throws Exception{
+
         JavaArchive arquillianOSGiBundleArchive = ShrinkWrap.create(
             JavaArchive.class, BUNDLE_SYMBOLIC_NAME + ".jar");
 
-        arquillianOSGiBundleArchive.addClass(ArquillianBundleActivator.class);
+        arquillianOSGiBundleArchive.addClasses(ArquillianBundleActivator.class, TestMethodInvoker.class, BatchTestRunner.class,
+            LocalTestRunnerService.class);
 
         arquillianOSGiBundleArchive.addPackage(JMXTestRunner.class.getPackage());
 
@@ -103,7 +136,13 @@ public class ArquillianBundleGenerator {
 
         List<Archive<?>> extensionArchives = loadAuxiliaryArchives();
 
-        properties.setProperty(Constants.BUNDLE_CLASSPATH, getBundleClassPath(arquillianOSGiBundleArchive, extensionArchives));
+        if (flatten) {
+            flattenAuxiliaryArchives(arquillianOSGiBundleArchive, extensionArchives);
+            properties.setProperty(Constants.BUNDLE_CLASSPATH, ".");
+        }
+        else {
+            properties.setProperty(Constants.BUNDLE_CLASSPATH, getBundleClassPath(arquillianOSGiBundleArchive, extensionArchives));
+        }
 
         BundleGeneratorHelper.generateManifest(
             arquillianOSGiBundleArchive, properties);
@@ -144,13 +183,16 @@ public class ArquillianBundleGenerator {
                     _REMOTE_LOADABLE_EXTENSION_FILE);
             }
 
-            InputStream auxiliaryArchiveInputStream = auxiliaryArchive.as(ZipExporter.class).exportAsInputStream();
+        }
+
+        List<ByteArrayAsset> assets = _exportAuxiliaryArchives(auxiliaryArchives);
 
-            ByteArrayAsset byteArrayAsset = new ByteArrayAsset(auxiliaryArchiveInputStream);
+        Iterator<ByteArrayAsset> assetsIterator = assets.iterator();
 
+        for (Archive<?> auxiliaryArchive : auxiliaryArchives) {
             String path = "extension/" + auxiliaryArchive.getName();
 
-            javaArchive.addAsResource(byteArrayAsset, path);
+            javaArchive.addAsResource(assetsIterator.next(), path);
 
             sb.append(",");
             sb.append(path);
@@ -159,6 +201,201 @@ public class ArquillianBundleGenerator {
         return sb.toString();
     }
 
+    /**
+     * Export the auxiliary archives in parallel, the assets are returned in the original order.
+     * The export threads use the context class loader of the caller.
+     */
+    private static List<ByteArrayAsset> _exportAuxiliaryArchives(
+        Collection<Archive<?>> auxiliaryArchives)
+        throws IOException {
+
+        int threads = Math.min(auxiliaryArchives.size(), Runtime.getRuntime().availableProcessors());
+
+        if (threads <= 1) {
+            List<ByteArrayAsset> assets = new ArrayList<ByteArrayAsset>();
+
+            for (Archive<?> auxiliaryArchive : auxiliaryArchives) {
+                assets.add(_export(auxiliaryArchive));
+            }
+
+            return assets;
+        }
+
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "arquillian-osgi-bundle-export-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setContextClassLoader(contextClassLoader);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<ByteArrayAsset>> futures = new ArrayList<Future<ByteArrayAsset>>();
+
+            for (final Archive<?> auxiliaryArchive : auxiliaryArchives) {
+                futures.add(executor.submit(new Callable<ByteArrayAsset>() {
+                    @Override
+                    public ByteArrayAsset call() {
+                        return _export(auxiliaryArchive);
+                    }
+                }));
+            }
+
+            List<ByteArrayAsset> assets = new ArrayList<ByteArrayAsset>();
+
+            for (Future<ByteArrayAsset> future : futures) {
+                assets.add(future.get());
+            }
+
+            return assets;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while exporting the auxiliary archives", ie);
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException("Cannot export the auxiliary archives", cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteArrayAsset _export(Archive<?> auxiliaryArchive) {
+        return new ByteArrayAsset(auxiliaryArchive.as(ZipExporter.class).exportAsInputStream());
+    }
+
+    /**
+     * Merge the auxiliary archives into the bundle root. Service files are concatenated, other
+     * duplicate entries must be identical. Conflicting classes fail the generation, conflicting
+     * resources keep the first entry.
+     */
+    static void flattenAuxiliaryArchives(
+        JavaArchive javaArchive, Collection<Archive<?>> auxiliaryArchives)
+        throws IOException {
+
+        Map<String, Set<String>> services = new LinkedHashMap<String, Set<String>>();
+        Map<String, String> owners = new LinkedHashMap<String, String>();
+        List<String> conflicts = new ArrayList<String>();
+
+        for (Archive<?> auxiliaryArchive : auxiliaryArchives) {
+            for (Map.Entry<ArchivePath, Node> entry : auxiliaryArchive.getContent().entrySet()) {
+                Asset asset = entry.getValue().getAsset();
+                String path = entry.getKey().get();
+
+                if (asset == null || _isExcluded(path)) {
+                    continue;
+                }
+
+                if (path.startsWith(_SERVICES_DIR)) {
+                    Set<String> providers = services.get(path);
+
+                    if (providers == null) {
+                        providers = new LinkedHashSet<String>();
+
+                        services.put(path, providers);
+                    }
+
+                    providers.addAll(_readServiceProviders(asset));
+
+                    continue;
+                }
+
+                Node existing = javaArchive.get(path);
+
+                if (existing == null) {
+                    javaArchive.add(asset, path);
+
+                    owners.put(path, auxiliaryArchive.getName());
+                }
+                else if ((existing.getAsset() != null) && !Arrays.equals(
+                            _toByteArray(existing.getAsset()), _toByteArray(asset))) {
+
+                    String owner = owners.containsKey(path) ? owners.get(path) : javaArchive.getName();
+                    String conflict = path + " (" + owner + ", " + auxiliaryArchive.getName() + ")";
+
+                    if (path.endsWith(".class")) {
+                        conflicts.add(conflict);
+                    }
+                    else {
+                        log.warning("Ignoring conflicting resource " + conflict);
+                    }
+                }
+            }
+        }
+
+        if (!conflicts.isEmpty()) {
+            throw new IllegalStateException(
+                "Cannot flatten auxiliary archives, conflicting classes: " + conflicts);
+        }
+
+        for (Map.Entry<String, Set<String>> entry : services.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+
+            for (String provider : entry.getValue()) {
+                sb.append(provider).append("\n");
+            }
+
+            javaArchive.add(
+                new ByteArrayAsset(sb.toString().getBytes(StandardCharsets.UTF_8)), entry.getKey());
+        }
+    }
+
+    private static boolean _isExcluded(String path) {
+        if (path.equals("/" + JarFile.MANIFEST_NAME)) {
+            return true;
+        }
+
+        // Signatures of the auxiliary archives do not apply to the merged bundle
+        String upperPath = path.toUpperCase();
+
+        return upperPath.startsWith("/META-INF/") && (upperPath.endsWith(".SF") ||
+            upperPath.endsWith(".RSA") || upperPath.endsWith(".DSA"));
+    }
+
+    private static List<String> _readServiceProviders(Asset asset) throws IOException {
+        List<String> providers = new ArrayList<String>();
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(asset.openStream(), StandardCharsets.UTF_8))) {
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+
+                line = line.trim();
+
+                if (!line.isEmpty()) {
+                    providers.add(line);
+                }
+            }
+        }
+
+        return providers;
+    }
+
+    private static byte[] _toByteArray(Asset asset) throws IOException {
+        return BundleGeneratorHelper.toByteArray(asset.openStream());
+    }
+
     private List<Archive<?>> loadAuxiliaryArchives() {
         List<Archive<?>> archives = new ArrayList<Archive<?>>();
 
@@ -181,6 +418,8 @@ public class ArquillianBundleGenerator {
     @Inject
     private Instance<ServiceLoader> _serviceLoaderInstance;
 
+    private static final String _SERVICES_DIR = "/META-INF/services/";
+
     private static final String _REMOTE_LOADABLE_EXTENSION_FILE = "/META-INF/services/" + RemoteLoadableExtension.class.getCanonicalName();
 
     public static final String BUNDLE_SYMBOLIC_NAME = "arquillian-osgi-bundle";
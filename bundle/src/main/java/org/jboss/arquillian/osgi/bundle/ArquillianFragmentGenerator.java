@@ -35,6 +35,12 @@ import org.osgi.framework.Constants;
  */
 public class ArquillianFragmentGenerator {
 
+    /**
+     * Create a fragment of the Arquillian bundle that contains one test class.
+     *
+     * The fragment names its test bundle in a single {@link #TEST_BUNDLE_SYMBOLIC_NAME} header, so the
+     * test classes of different test bundles cannot share one fragment.
+     */
     public Archive<?> createArquillianFragment(String symbolicName, String version, TestClass testClass)
         throws Exception {
         JavaArchive arquillianFragmentBundleArchive = ShrinkWrap.create(
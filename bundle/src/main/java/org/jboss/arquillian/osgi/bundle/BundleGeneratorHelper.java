@@ -22,13 +22,37 @@
 package org.jboss.arquillian.osgi.bundle;
 
 import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.Descriptors.PackageRef;
+import aQute.bnd.osgi.Jar;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
@@ -36,15 +60,93 @@ import org.jboss.shrinkwrap.api.spec.JavaArchive;
 /**
  * BundleGeneratorHelper
  *
+ * The helper is thread-safe, every call uses its own analyzer and temporary file.
+ *
+ * Generated manifests are cached, keyed by a digest of the archive content and the bnd
+ * properties. Nested jars are digested by their entries, so that re-exported auxiliary
+ * archives with new timestamps still match. The cache is persisted when the
+ * {@link #CACHE_DIR} system property is set. The in-memory and the persistent cache
+ * keep the {@link #CACHE_SIZE} most recently used manifests.
+ *
  * @author <a href="mailto:cristina.gonzalez@liferay.com">Cristina González Castellano</a>
  */
 public class BundleGeneratorHelper {
 
+    private static final Logger log = Logger.getLogger(BundleGeneratorHelper.class.getName());
+
+    /** The directory of the persistent manifest cache */
+    public static final String CACHE_DIR = "arquillian.osgi.bnd.cache";
+    /** The maximum number of cached manifests, defaults to 256 */
+    public static final String CACHE_SIZE = "arquillian.osgi.bnd.cache.size";
+
+    private static final int maxCacheSize = Integer.getInteger(CACHE_SIZE, 256);
+
+    // Access ordered, the eldest entry is the least recently used manifest
+    private static final Map<String, byte[]> manifests = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > maxCacheSize;
+        }
+    };
+
     public static void generateManifest(JavaArchive archive, Properties properties) throws Exception {
+        String key = getCacheKey(archive, properties);
+        byte[] manifestBytes = getCachedManifest(key);
+
+        if (manifestBytes == null) {
+            long startMillis = System.currentTimeMillis();
+
+            manifestBytes = calculateManifest(archive, properties);
+
+            putCachedManifest(key, manifestBytes);
+
+            log.fine("Analyzed " + archive.getName() + " in " + (System.currentTimeMillis() - startMillis) + "ms");
+        }
+        else {
+            log.fine("Using cached manifest for " + archive.getName());
+        }
+
+        archive.delete(JarFile.MANIFEST_NAME);
+
+        archive.add(new ByteArrayAsset(manifestBytes), JarFile.MANIFEST_NAME);
+    }
+
+    /**
+     * Get the packages that the classes of an archive refer to, without the packages
+     * that the archive contains and without java.* packages.
+     */
+    public static Set<String> getReferencedPackages(Archive<?> archive) throws Exception {
+        Set<String> result = new TreeSet<String>();
         Analyzer analyzer = new Analyzer();
 
         try {
-            File archiveFile = getFileFromArchive(archive);
+            analyzer.setJar(new Jar(archive.getName(), archive.as(ZipExporter.class).exportAsInputStream()));
+
+            analyzer.analyze();
+
+            for (PackageRef packageRef : analyzer.getReferred().keySet()) {
+                if (packageRef.isJava() || packageRef.isMetaData() || packageRef.isDefaultPackage()) {
+                    continue;
+                }
+
+                if (!analyzer.getContained().containsKey(packageRef)) {
+                    result.add(packageRef.getFQN());
+                }
+            }
+        }
+        finally {
+            analyzer.close();
+        }
+
+        return result;
+    }
+
+    private static byte[] calculateManifest(JavaArchive archive, Properties properties) throws Exception {
+        Analyzer analyzer = new Analyzer();
+        File archiveFile = null;
+
+        try {
+            archiveFile = getFileFromArchive(archive);
 
             analyzer.setJar(archiveFile);
 
@@ -60,16 +162,213 @@ public class BundleGeneratorHelper {
 
             manifest.write(baos);
 
-            ByteArrayAsset byteArrayAsset = new ByteArrayAsset(baos.toByteArray());
+            return baos.toByteArray();
+        }
+        finally {
+            analyzer.close();
+
+            if (archiveFile != null) {
+                archiveFile.delete();
+            }
+        }
+
+    }
+
+    static String getCacheKey(Archive<?> archive, Properties properties) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        // Another bnd version may calculate another manifest
+        update(digest, String.valueOf(Analyzer.class.getPackage().getImplementationVersion()));
+
+        for (Map.Entry<Object, Object> entry : new TreeMap<Object, Object>(properties).entrySet()) {
+            update(digest, entry.getKey() + "=" + entry.getValue());
+        }
+
+        Map<String, Node> content = new TreeMap<String, Node>();
+
+        for (Map.Entry<ArchivePath, Node> entry : archive.getContent().entrySet()) {
+            content.put(entry.getKey().get(), entry.getValue());
+        }
+
+        content.remove("/" + JarFile.MANIFEST_NAME);
+
+        for (Map.Entry<String, Node> entry : content.entrySet()) {
+            update(digest, entry.getKey());
+
+            Asset asset = entry.getValue().getAsset();
+
+            if (asset == null) {
+                continue;
+            }
+
+            byte[] bytes = toByteArray(asset.openStream());
+
+            if (entry.getKey().endsWith(".jar")) {
+                updateNestedJar(digest, bytes);
+            }
+            else {
+                digest.update(bytes);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    // Digest the entries of a nested jar in name order, without their timestamps
+    private static void updateNestedJar(MessageDigest digest, byte[] bytes) throws IOException {
+        Map<String, byte[]> entries = new TreeMap<String, byte[]>();
+
+        try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(bytes))) {
+            ZipEntry entry;
+
+            while ((entry = input.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry.isDirectory() ? new byte[0] : readFully(input));
+            }
+        }
 
-            archive.delete(JarFile.MANIFEST_NAME);
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            update(digest, entry.getKey());
 
-            archive.add(byteArrayAsset, JarFile.MANIFEST_NAME);
+            digest.update(entry.getValue());
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+
+        digest.update((byte) 0);
+    }
+
+    static byte[] getCachedManifest(String key) {
+        byte[] result;
+
+        synchronized (manifests) {
+            result = manifests.get(key);
+        }
+
+        File cacheDir = getCacheDir();
+
+        if (result == null && cacheDir != null) {
+            File file = new File(cacheDir, key + ".MF");
+
+            try {
+                if (file.isFile()) {
+                    result = Files.readAllBytes(file.toPath());
+
+                    file.setLastModified(System.currentTimeMillis());
+
+                    synchronized (manifests) {
+                        manifests.put(key, result);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                log.log(Level.WARNING, "Cannot read cached manifest: " + file, ex);
+            }
+        }
+
+        return result;
+    }
+
+    static void putCachedManifest(String key, byte[] manifestBytes) {
+        synchronized (manifests) {
+            manifests.put(key, manifestBytes);
+        }
+
+        File cacheDir = getCacheDir();
+
+        if (cacheDir == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(cacheDir.toPath());
+
+            File tmpFile = File.createTempFile(key, ".tmp", cacheDir);
+
+            Files.write(tmpFile.toPath(), manifestBytes);
+
+            // Other test forks may share the cache directory
+            Files.move(tmpFile.toPath(), new File(cacheDir, key + ".MF").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            pruneCacheDir(cacheDir);
+        }
+        catch (IOException ex) {
+            log.log(Level.WARNING, "Cannot store cached manifest: " + key, ex);
+        }
+    }
+
+    // Delete the least recently used manifests that exceed the cache size
+    private static void pruneCacheDir(File cacheDir) {
+        File[] files = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".MF");
+            }
+        });
+
+        if (files == null || files.length <= maxCacheSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(file1.lastModified(), file2.lastModified());
+            }
+        });
+
+        for (int i = 0; i < files.length - maxCacheSize; i++) {
+            files[i].delete();
+        }
+    }
+
+    static int getCachedManifestCount() {
+        synchronized (manifests) {
+            return manifests.size();
+        }
+    }
+
+    static void clearCachedManifests() {
+        synchronized (manifests) {
+            manifests.clear();
+        }
+    }
+
+    private static File getCacheDir() {
+        String cacheDir = System.getProperty(CACHE_DIR);
+
+        return cacheDir != null ? new File(cacheDir) : null;
+    }
+
+    /**
+     * Read a stream to the end and close it.
+     */
+    public static byte[] toByteArray(InputStream input) throws IOException {
+        try {
+            return readFully(input);
         }
         finally {
-            analyzer.close();
+            input.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = input.read(buffer)) > 0) {
+            baos.write(buffer, 0, read);
         }
 
+        return baos.toByteArray();
     }
 
     protected static File getFileFromArchive(Archive<?> archive) throws Exception {
@@ -0,0 +1,239 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+import org.jboss.arquillian.container.test.spi.ContainerMethodExecutor;
+import org.jboss.arquillian.container.test.spi.command.Command;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.protocol.jmx.JMXMethodExecutor;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunner;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunner.TestClassLoader;
+import org.jboss.arquillian.protocol.osgi.LocalMethodExecutor;
+import org.jboss.arquillian.protocol.osgi.LocalTestRunner;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Compares the per-test overhead of the osgi-local and jmx-osgi protocols.
+ *
+ * Both protocols run the same empty test with the JUnit test runner through the test runners of the
+ * Arquillian bundle, so the difference is the cost of the invocation itself.
+ */
+public class ProtocolOverheadTestCase {
+
+    private static Logger log = Logger.getLogger(ProtocolOverheadTestCase.class.getName());
+
+    private static final int WARMUP = 500;
+    private static final int INVOCATIONS = 2000;
+
+    @Test
+    public void testInvocationOverhead() throws Exception {
+        // Load the test class like a bundle does, apart from the client
+        final ClassLoader bundleClassLoader = new TestBundleClassLoader(EmptyTest.class.getName());
+        final TestClassLoader testClassLoader = new TestClassLoader() {
+            @Override
+            public Class<?> loadTestClass(String className) throws ClassNotFoundException {
+                return bundleClassLoader.loadClass(className);
+            }
+        };
+        final TestMethodInvoker invoker = new TestMethodInvoker(1);
+        CommandCallback callback = new CommandCallback() {
+            @Override
+            public void fired(Command<?> event) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        LocalTestRunner localTestRunner = new LocalTestRunnerService(testClassLoader, invoker, null);
+        long localNanos = measure(new LocalMethodExecutor(systemContext(localTestRunner), callback));
+
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        JMXTestRunner testRunner = new JMXTestRunner(testClassLoader) {
+            @Override
+            public byte[] runTestMethod(final String className, final String methodName, final Map<String, String> protocolProps) {
+                try {
+                    Class<?> testClass = testClassLoader.loadTestClass(className);
+                    return invoker.invoke(testClass, methodName, null, null, new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            return runTestMethodInContext(className, methodName, protocolProps);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+
+            private byte[] runTestMethodInContext(String className, String methodName, Map<String, String> protocolProps) {
+                return super.runTestMethod(className, methodName, protocolProps);
+            }
+        };
+        testRunner.registerMBean(mbeanServer);
+        long jmxNanos;
+        try {
+            jmxNanos = measure(new JMXMethodExecutor(mbeanServer, callback, new HashMap<String, String>()));
+        } finally {
+            testRunner.unregisterMBean(mbeanServer);
+            MBeanServerFactory.releaseMBeanServer(mbeanServer);
+        }
+
+        log.info("Per-test overhead, osgi-local: " + TimeUnit.NANOSECONDS.toMicros(localNanos) + "us, jmx-osgi: "
+            + TimeUnit.NANOSECONDS.toMicros(jmxNanos) + "us");
+    }
+
+    // Get the average time of an invocation in nanoseconds
+    private long measure(ContainerMethodExecutor executor) throws Exception {
+        TestMethodExecutor testMethod = new EmptyTestMethod();
+        for (int i = 0; i < WARMUP; i++) {
+            assertEquals(Status.PASSED, executor.invoke(testMethod).getStatus());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < INVOCATIONS; i++) {
+            assertEquals(Status.PASSED, executor.invoke(testMethod).getStatus());
+        }
+        return (System.nanoTime() - start) / INVOCATIONS;
+    }
+
+    // A system context that only provides the local test runner service
+    private static BundleContext systemContext(final LocalTestRunner service) {
+        final ServiceReference<?> sref = proxy(ServiceReference.class, null);
+        return proxy(BundleContext.class, new Answer() {
+            @Override
+            public Object answer(Method method, Object[] args) {
+                if (method.getName().equals("getServiceReference"))
+                    return sref;
+                if (method.getName().equals("getService"))
+                    return service;
+                if (method.getName().equals("ungetService"))
+                    return true;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, final Answer answer) {
+        return type.cast(Proxy.newProxyInstance(ProtocolOverheadTestCase.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("equals") && method.getParameterTypes().length == 1)
+                    return proxy == args[0];
+                if (method.getName().equals("hashCode") && method.getParameterTypes().length == 0)
+                    return System.identityHashCode(proxy);
+                if (answer == null)
+                    throw new UnsupportedOperationException(method.getName());
+                return answer.answer(method, args);
+            }
+        }));
+    }
+
+    private interface Answer {
+        Object answer(Method method, Object[] args);
+    }
+
+    public static class EmptyTest {
+        @Test
+        public void testNothing() {
+        }
+    }
+
+    /**
+     * Defines the test class on its own, like the class loader of a test bundle.
+     */
+    private static final class TestBundleClassLoader extends ClassLoader implements BundleReference {
+        private final String className;
+
+        TestBundleClassLoader(String className) {
+            super(ProtocolOverheadTestCase.class.getClassLoader());
+            this.className = className;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(className))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                if (result == null) {
+                    try {
+                        byte[] bytes = Files.readAllBytes(Paths.get(getParent().getResource(name.replace('.', '/') + ".class").toURI()));
+                        result = defineClass(name, bytes, 0, bytes.length);
+                    } catch (Exception ex) {
+                        throw new ClassNotFoundException(name, ex);
+                    }
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public Bundle getBundle() {
+            return null;
+        }
+    }
+
+    // The client side of the test, which is not run itself
+    private static final class EmptyTestMethod implements TestMethodExecutor {
+        private final Method method;
+        private final EmptyTest instance = new EmptyTest();
+
+        EmptyTestMethod() throws NoSuchMethodException {
+            method = EmptyTest.class.getMethod("testNothing");
+        }
+
+        public String getMethodName() {
+            return method.getName();
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @Override
+        public Object getInstance() {
+            return instance;
+        }
+
+        @Override
+        public void invoke(Object... parameters) throws Throwable {
+            method.invoke(instance, parameters);
+        }
+    }
+}
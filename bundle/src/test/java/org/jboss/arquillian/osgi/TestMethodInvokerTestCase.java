@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.arquillian.testenricher.osgi.BundleContextAssociation;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the {@link TestMethodInvoker}
+ */
+public class TestMethodInvokerTestCase {
+
+    private final ExecutorService clients = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "client-" + count.incrementAndGet());
+        }
+    });
+
+    @After
+    public void tearDown() {
+        clients.shutdownNow();
+    }
+
+    @Test
+    public void testIsParallelSafe() throws Exception {
+        assertTrue(TestMethodInvoker.isParallelSafe(SafeTest.class, "test"));
+        assertTrue(TestMethodInvoker.isParallelSafe(MixedTest.class, "safe"));
+        assertFalse(TestMethodInvoker.isParallelSafe(MixedTest.class, "exclusive"));
+        assertFalse(TestMethodInvoker.isParallelSafe(MixedTest.class, "unknown"));
+    }
+
+    @Test
+    public void testGetThreads() throws Exception {
+        assertEquals(1, TestMethodInvoker.getThreads(null));
+        assertEquals(4, TestMethodInvoker.getThreads(" 4 "));
+        assertEquals(1, TestMethodInvoker.getThreads("four"));
+        assertEquals(1, TestMethodInvoker.getThreads("0"));
+        assertEquals(1, TestMethodInvoker.getThreads("-2"));
+    }
+
+    @Test
+    public void testInvocationContext() throws Exception {
+        TestMethodInvoker invoker = new TestMethodInvoker(1);
+        assertFalse(invoker.isConcurrent());
+
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        ClassLoader result = invoker.invoke(SafeTest.class, "test", null, null, new Callable<ClassLoader>() {
+            @Override
+            public ClassLoader call() throws Exception {
+                return Thread.currentThread().getContextClassLoader();
+            }
+        });
+        assertSame(SafeTest.class.getClassLoader(), result);
+        assertSame(contextClassLoader, Thread.currentThread().getContextClassLoader());
+        assertNull(BundleContextAssociation.getBundleContext());
+    }
+
+    @Test
+    public void testParallelSafeRunConcurrently() throws Exception {
+        final TestMethodInvoker invoker = new TestMethodInvoker(2);
+
+        // Both tests only complete if they run at the same time
+        final CountDownLatch latch = new CountDownLatch(2);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 2; i++) {
+            results.add(invoke(invoker, SafeTest.class, "test", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    latch.countDown();
+                    return latch.await(10, TimeUnit.SECONDS);
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(20, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testThreadsBound() throws Exception {
+        final TestMethodInvoker invoker = new TestMethodInvoker(2);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Thread>> results = new ArrayList<Future<Thread>>();
+        for (int i = 0; i < 6; i++) {
+            results.add(invoke(invoker, SafeTest.class, "test", new Callable<Thread>() {
+                @Override
+                public Thread call() throws Exception {
+                    int count = running.incrementAndGet();
+                    try {
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), count));
+                        }
+                        Thread.sleep(20);
+                        return Thread.currentThread();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<Thread> result : results) {
+            // The test runs on the thread of its client
+            assertTrue(result.get(20, TimeUnit.SECONDS).getName().startsWith("client-"));
+        }
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testExclusiveRunAlone() throws Exception {
+        final TestMethodInvoker invoker = new TestMethodInvoker(4);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 8; i++) {
+            final boolean exclusive = i % 2 == 0;
+            results.add(invoke(invoker, MixedTest.class, exclusive ? "exclusive" : "safe", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    int count = running.incrementAndGet();
+                    try {
+                        if (exclusive && count > 1)
+                            overlaps.incrementAndGet();
+                        Thread.sleep(20);
+                        if (exclusive && running.get() > 1)
+                            overlaps.incrementAndGet();
+                        return true;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(20, TimeUnit.SECONDS));
+        }
+        assertEquals(0, overlaps.get());
+    }
+
+    private <T> Future<T> invoke(final TestMethodInvoker invoker, final Class<?> testClass, final String methodName, final Callable<T> call) {
+        return clients.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return invoker.invoke(testClass, methodName, null, null, call);
+            }
+        });
+    }
+
+    @ParallelSafe
+    public static class SafeTest {
+        public void test() {
+        }
+    }
+
+    public static class MixedTest {
+        @ParallelSafe
+        public void safe() {
+        }
+
+        public void exclusive() {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.arquillian.osgi.bundle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+
+/**
+ * Test the flattened {@link ArquillianBundleGenerator} bundle
+ */
+public class ArquillianBundleGeneratorTestCase {
+
+    private static final String SERVICE = "/META-INF/services/org.acme.Service";
+
+    @Test
+    public void testMergeServiceFiles() throws Exception {
+        JavaArchive first = ShrinkWrap.create(JavaArchive.class, "first.jar");
+        first.add(new StringAsset("# providers\norg.acme.A\norg.acme.B # default\n"), SERVICE);
+        JavaArchive second = ShrinkWrap.create(JavaArchive.class, "second.jar");
+        second.add(new StringAsset("org.acme.B\n\norg.acme.C\n"), SERVICE);
+
+        JavaArchive bundle = flatten(first, second);
+        assertEquals("org.acme.A\norg.acme.B\norg.acme.C\n", getContent(bundle, SERVICE));
+    }
+
+    @Test
+    public void testConflictingClasses() throws Exception {
+        JavaArchive first = ShrinkWrap.create(JavaArchive.class, "first.jar");
+        first.add(new StringAsset("first"), "/org/acme/Foo.class");
+        JavaArchive second = ShrinkWrap.create(JavaArchive.class, "second.jar");
+        second.add(new StringAsset("second"), "/org/acme/Foo.class");
+
+        try {
+            flatten(first, second);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("/org/acme/Foo.class (first.jar, second.jar)"));
+        }
+    }
+
+    @Test
+    public void testIdenticalClasses() throws Exception {
+        JavaArchive first = ShrinkWrap.create(JavaArchive.class, "first.jar");
+        first.add(new StringAsset("same"), "/org/acme/Foo.class");
+        JavaArchive second = ShrinkWrap.create(JavaArchive.class, "second.jar");
+        second.add(new StringAsset("same"), "/org/acme/Foo.class");
+
+        JavaArchive bundle = flatten(first, second);
+        assertEquals("same", getContent(bundle, "/org/acme/Foo.class"));
+    }
+
+    @Test
+    public void testFirstResourceWins() throws Exception {
+        JavaArchive first = ShrinkWrap.create(JavaArchive.class, "first.jar");
+        first.add(new StringAsset("first"), "/org/acme/config.properties");
+        JavaArchive second = ShrinkWrap.create(JavaArchive.class, "second.jar");
+        second.add(new StringAsset("second"), "/org/acme/config.properties");
+        second.add(new StringAsset("other"), "/org/acme/other.properties");
+
+        JavaArchive bundle = flatten(first, second);
+        assertEquals("first", getContent(bundle, "/org/acme/config.properties"));
+        assertEquals("other", getContent(bundle, "/org/acme/other.properties"));
+    }
+
+    @Test
+    public void testExcludedEntries() throws Exception {
+        JavaArchive first = ShrinkWrap.create(JavaArchive.class, "first.jar");
+        first.add(new StringAsset("Manifest-Version: 1.0\n"), "/META-INF/MANIFEST.MF");
+        first.add(new StringAsset("signature"), "/META-INF/SIGNER.SF");
+        first.add(new StringAsset("block"), "/META-INF/signer.rsa");
+
+        JavaArchive bundle = flatten(first);
+        assertNull(bundle.get("/META-INF/MANIFEST.MF"));
+        assertNull(bundle.get("/META-INF/SIGNER.SF"));
+        assertFalse(bundle.contains("/META-INF/signer.rsa"));
+    }
+
+    private static JavaArchive flatten(Archive<?>... auxiliaryArchives) throws IOException {
+        JavaArchive bundle = ShrinkWrap.create(JavaArchive.class, "bundle.jar");
+        ArquillianBundleGenerator.flattenAuxiliaryArchives(bundle, Arrays.<Archive<?>> asList(auxiliaryArchives));
+        return bundle;
+    }
+
+    private static String getContent(Archive<?> archive, String path) throws IOException {
+        Node node = archive.get(path);
+        assertTrue("Entry expected: " + path, node != null && node.getAsset() != null);
+        InputStream input = node.getAsset().openStream();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                baos.write(buffer, 0, read);
+            }
+            return new String(baos.toByteArray(), "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2005, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.arquillian.osgi.bundle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the manifest cache of {@link BundleGeneratorHelper}
+ */
+public class BundleGeneratorHelperTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        System.clearProperty(BundleGeneratorHelper.CACHE_DIR);
+        BundleGeneratorHelper.clearCachedManifests();
+    }
+
+    @Test
+    public void testCacheKey() throws Exception {
+        Properties properties = getProperties("test");
+        String key = BundleGeneratorHelper.getCacheKey(createArchive("content"), properties);
+
+        // The manifest is not part of the key
+        JavaArchive archive = createArchive("content");
+        archive.add(new StringAsset("Manifest-Version: 1.0\n"), JarFile.MANIFEST_NAME);
+        assertEquals(key, BundleGeneratorHelper.getCacheKey(archive, properties));
+
+        assertFalse(key.equals(BundleGeneratorHelper.getCacheKey(createArchive("other"), properties)));
+        assertFalse(key.equals(BundleGeneratorHelper.getCacheKey(createArchive("content"), getProperties("other"))));
+    }
+
+    @Test
+    public void testNestedJarDigest() throws Exception {
+        Properties properties = getProperties("test");
+
+        // Re-exported nested jars differ in their entry timestamps only
+        JavaArchive first = createArchive("content");
+        first.add(new ByteArrayAsset(createJar("nested", 1000000000000L)), "extension/nested.jar");
+        JavaArchive second = createArchive("content");
+        second.add(new ByteArrayAsset(createJar("nested", 1500000000000L)), "extension/nested.jar");
+        String key = BundleGeneratorHelper.getCacheKey(first, properties);
+        assertEquals(key, BundleGeneratorHelper.getCacheKey(second, properties));
+
+        JavaArchive changed = createArchive("content");
+        changed.add(new ByteArrayAsset(createJar("changed", 1000000000000L)), "extension/nested.jar");
+        assertFalse(key.equals(BundleGeneratorHelper.getCacheKey(changed, properties)));
+    }
+
+    @Test
+    public void testGenerateManifest() throws Exception {
+        JavaArchive archive = createArchive("content");
+        Properties properties = getProperties("test");
+        String key = BundleGeneratorHelper.getCacheKey(archive, properties);
+        assertNull(BundleGeneratorHelper.getCachedManifest(key));
+
+        BundleGeneratorHelper.generateManifest(archive, properties);
+        byte[] manifest = BundleGeneratorHelper.getCachedManifest(key);
+        assertNotNull(manifest);
+        assertTrue(new String(manifest, StandardCharsets.UTF_8).contains("Bundle-SymbolicName: test"));
+
+        // An identical archive gets the cached manifest
+        JavaArchive other = createArchive("content");
+        BundleGeneratorHelper.generateManifest(other, properties);
+        assertArrayEquals(manifest, BundleGeneratorHelper.toByteArray(other.get(JarFile.MANIFEST_NAME).getAsset().openStream()));
+    }
+
+    @Test
+    public void testMemoryCacheBounded() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            BundleGeneratorHelper.putCachedManifest("key" + i, new byte[] { (byte) i });
+        }
+        assertEquals(256, BundleGeneratorHelper.getCachedManifestCount());
+        assertNull(BundleGeneratorHelper.getCachedManifest("key0"));
+        assertNotNull(BundleGeneratorHelper.getCachedManifest("key299"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        System.setProperty(BundleGeneratorHelper.CACHE_DIR, folder.getRoot().getPath());
+
+        byte[] manifest = "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8);
+        BundleGeneratorHelper.putCachedManifest("key", manifest);
+        assertTrue(new File(folder.getRoot(), "key.MF").isFile());
+
+        // Another test run reads the manifest from the cache directory
+        BundleGeneratorHelper.clearCachedManifests();
+        assertArrayEquals(manifest, BundleGeneratorHelper.getCachedManifest("key"));
+        assertEquals(1, BundleGeneratorHelper.getCachedManifestCount());
+    }
+
+    @Test
+    public void testPersistenceBounded() throws Exception {
+        System.setProperty(BundleGeneratorHelper.CACHE_DIR, folder.getRoot().getPath());
+
+        for (int i = 0; i < 300; i++) {
+            BundleGeneratorHelper.putCachedManifest("key" + i, new byte[] { (byte) i });
+        }
+        File[] files = folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".MF");
+            }
+        });
+        assertEquals(256, files.length);
+    }
+
+    private static JavaArchive createArchive(String content) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "test.jar");
+        archive.add(new StringAsset(content), "org/acme/content.txt");
+        return archive;
+    }
+
+    private static Properties getProperties(String symbolicName) {
+        Properties properties = new Properties();
+        properties.setProperty("Bundle-SymbolicName", symbolicName);
+        return properties;
+    }
+
+    private static byte[] createJar(String content, long time) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream output = new ZipOutputStream(baos);
+        try {
+            ZipEntry entry = new ZipEntry("org/acme/nested.txt");
+            entry.setTime(time);
+            output.putNextEntry(entry);
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        } finally {
+            output.close();
+        }
+        return baos.toByteArray();
+    }
+}
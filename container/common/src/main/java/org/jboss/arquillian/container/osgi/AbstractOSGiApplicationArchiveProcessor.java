@@ -22,8 +22,13 @@
 package org.jboss.arquillian.container.osgi;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.Attributes;
@@ -34,18 +39,22 @@ import org.jboss.arquillian.container.test.spi.client.deployment.ApplicationArch
 import org.jboss.arquillian.core.api.Instance;
 import org.jboss.arquillian.core.api.annotation.Inject;
 import org.jboss.arquillian.core.spi.ServiceLoader;
-import org.jboss.arquillian.osgi.bundle.ArquillianFragmentGenerator;
+import org.jboss.arquillian.osgi.bundle.BundleGeneratorHelper;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.arquillian.protocol.osgi.HeaderClause;
 import org.jboss.arquillian.test.spi.TestClass;
 import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ArchivePath;
 import org.jboss.shrinkwrap.api.ArchivePaths;
-import org.jboss.shrinkwrap.api.Node;
 import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
 import org.jboss.shrinkwrap.api.container.ClassContainer;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Generates the test bundle.
@@ -55,8 +64,37 @@ import org.osgi.framework.Constants;
  */
 public abstract class AbstractOSGiApplicationArchiveProcessor implements ApplicationArchiveProcessor {
 
+    static final Logger logger = LoggerFactory.getLogger(AbstractOSGiApplicationArchiveProcessor.class.getPackage().getName());
+
+    /** If true, the imports of the test bundle are computed from its bytecode */
+    public static final String PRECISE_IMPORTS = "arquillian.osgi.precise.imports";
+    /** The package versions of precise imports, for example org.acme.foo;version=1.2,org.acme.bar;version=2.0 */
+    public static final String IMPORT_VERSIONS = "arquillian.osgi.precise.imports.versions";
+
     @Override
     public void process(Archive<?> appArchive, TestClass testClass) {
+        process(appArchive, testClass, DeploymentCache.getInstance());
+    }
+
+    void process(Archive<?> appArchive, TestClass testClass, DeploymentCache cache) {
+        if (cache.isEnabled()) {
+            String cacheKey;
+            try {
+                // The generated imports depend on the system properties as well
+                cacheKey = cache.getKey(appArchive, getTestClasses(testClass.getJavaClass()), getClass(),
+                    PRECISE_IMPORTS + "=" + Boolean.getBoolean(PRECISE_IMPORTS), IMPORT_VERSIONS + "=" + System.getProperty(IMPORT_VERSIONS));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot compute deployment cache key: " + appArchive, ex);
+            }
+            Manifest manifest = cache.lookup(appArchive, cacheKey);
+            if (manifest != null) {
+                // The archive content must match the cached bundle
+                addTestClasses(appArchive, testClass);
+                setBundleManifest(appArchive, manifest);
+                return;
+            }
+        }
+
         Manifest manifest = getBundleManifest(appArchive);
         if (manifest == null) {
             manifest = createBundleManifest(appArchive.getName());
@@ -71,37 +109,11 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
 
     private void enhanceApplicationArchive(Archive<?> appArchive, TestClass testClass, Manifest manifest) {
 
-        if (ClassContainer.class.isAssignableFrom(appArchive.getClass()) == false)
-            throw new IllegalArgumentException("ClassContainer expected: " + appArchive);
+        addTestClasses(appArchive, testClass);
 
-        // Get the test class and its super classes
         Class<?> javaClass = testClass.getJavaClass();
-        Set<Class<?>> classes = new HashSet<Class<?>>();
-        classes.add(javaClass);
-        Class<?> superclass = javaClass.getSuperclass();
-        while (superclass != Object.class) {
-            classes.add(superclass);
-            superclass = superclass.getSuperclass();
-        }
-
-        // Check if the application archive already contains the test classes
-        if (!appArchive.getName().endsWith(".war")) {
-            for (Class<?> clazz : classes) {
-                boolean testClassFound = false;
-                String path = clazz.getName().replace('.', '/') + ".class";
-                for (ArchivePath auxpath : appArchive.getContent().keySet()) {
-                    if (auxpath.toString().endsWith(path)) {
-                        testClassFound = true;
-                        break;
-                    }
-                }
-                if (testClassFound == false) {
-                    ((ClassContainer<?>) appArchive).addClass(clazz);
-                }
-            }
-        }
-
         final OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+        Set<String> declaredImports = new HashSet<String>();
         Attributes attributes = manifest.getMainAttributes();
         for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
             String key = entry.getKey().toString();
@@ -112,6 +124,9 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
             if (key.equals(Constants.IMPORT_PACKAGE)) {
                 String[] imports = splitWithComma(value);
                 builder.addImportPackages(imports);
+                for (HeaderClause clause : HeaderClause.parse(value)) {
+                    declaredImports.addAll(clause.getPaths());
+                }
                 continue;
             }
 
@@ -127,10 +142,20 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
         // Export the test class package otherwise the arq-bundle cannot load the test class
         builder.addExportPackages(javaClass);
 
-        // Add common test imports
-        builder.addImportPackages("org.jboss.arquillian.container.test.api", "org.jboss.arquillian.junit", "org.jboss.arquillian.osgi", "org.jboss.arquillian.test.api");
-        builder.addImportPackages("org.jboss.shrinkwrap.api", "org.jboss.shrinkwrap.api.asset", "org.jboss.shrinkwrap.api.spec");
-        builder.addImportPackages("org.junit", "org.junit.runner", "org.osgi.framework");
+        if (Boolean.getBoolean(PRECISE_IMPORTS) && !appArchive.getName().endsWith(".war")) {
+            // Import exactly the referenced packages, declared imports take precedence
+            Map<String, Version> versions = getImportVersions();
+            for (String packageName : getReferencedPackages(appArchive)) {
+                if (!declaredImports.contains(packageName)) {
+                    builder.addImportPackages(getImportClause(packageName, versions));
+                }
+            }
+        } else {
+            // Add common test imports
+            builder.addImportPackages("org.jboss.arquillian.container.test.api", "org.jboss.arquillian.junit", "org.jboss.arquillian.osgi", "org.jboss.arquillian.test.api");
+            builder.addImportPackages("org.jboss.shrinkwrap.api", "org.jboss.shrinkwrap.api.asset", "org.jboss.shrinkwrap.api.spec");
+            builder.addImportPackages("org.junit", "org.junit.runner", "org.osgi.framework");
+        }
 
         // Add or replace the manifest in the archive
         appArchive.delete(ArchivePaths.create(JarFile.MANIFEST_NAME));
@@ -141,10 +166,92 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
         }, JarFile.MANIFEST_NAME);
     }
 
+    private static Set<String> getReferencedPackages(Archive<?> archive) {
+        long startMillis = System.currentTimeMillis();
+        try {
+            Set<String> result = BundleGeneratorHelper.getReferencedPackages(archive);
+            logger.debug("Computed {} imports of {} in {}ms", result.size(), archive.getName(), System.currentTimeMillis() - startMillis);
+            return result;
+        } catch (Exception ex) {
+            throw new IllegalStateException("Cannot analyze package references: " + archive, ex);
+        }
+    }
+
+    /**
+     * Import a package with the consumer range of its configured version, for example
+     * version="[1.2,2)". Packages of unknown version are imported without range.
+     */
+    private static String getImportClause(String packageName, Map<String, Version> versions) {
+        Version version = versions.get(packageName);
+        if (version == null || version.equals(Version.emptyVersion))
+            return packageName;
+        return packageName + ";version=\"[" + version.getMajor() + "." + version.getMinor() + "," + (version.getMajor() + 1) + ")\"";
+    }
+
+    /**
+     * Get the package versions of the {@link #IMPORT_VERSIONS} system property.
+     */
+    private static Map<String, Version> getImportVersions() {
+        Map<String, Version> result = new HashMap<String, Version>();
+        String value = System.getProperty(IMPORT_VERSIONS);
+        if (value != null) {
+            for (HeaderClause clause : HeaderClause.parse(value)) {
+                String version = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+                if (version == null)
+                    throw new IllegalArgumentException("Version expected: " + IMPORT_VERSIONS + "=" + value);
+                for (String packageName : clause.getPaths()) {
+                    result.put(packageName, Version.parseVersion(version));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addTestClasses(Archive<?> appArchive, TestClass testClass) {
+
+        if (ClassContainer.class.isAssignableFrom(appArchive.getClass()) == false)
+            throw new IllegalArgumentException("ClassContainer expected: " + appArchive);
+
+        // Get the test class and its super classes
+        Set<Class<?>> classes = getTestClasses(testClass.getJavaClass());
+
+        // Check if the application archive already contains the test classes
+        if (!appArchive.getName().endsWith(".war")) {
+            Map<String, List<String>> classIndex = getClassIndex(appArchive);
+            for (Class<?> clazz : classes) {
+                String path = clazz.getName().replace('.', '/') + ".class";
+                if (containsClass(classIndex, path) == false) {
+                    ((ClassContainer<?>) appArchive).addClass(clazz);
+                }
+            }
+        }
+    }
+
+    private static Set<Class<?>> getTestClasses(Class<?> javaClass) {
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        classes.add(javaClass);
+        Class<?> superclass = javaClass.getSuperclass();
+        while (superclass != Object.class) {
+            classes.add(superclass);
+            superclass = superclass.getSuperclass();
+        }
+        return classes;
+    }
+
+    private static void setBundleManifest(Archive<?> archive, Manifest manifest) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            manifest.write(baos);
+            archive.delete(ArchivePaths.create(JarFile.MANIFEST_NAME));
+            archive.add(new ByteArrayAsset(baos.toByteArray()), JarFile.MANIFEST_NAME);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot write manifest: " + archive, ex);
+        }
+    }
+
     private void assertValidBundleArchive(Archive<?> archive) {
         try {
-            Manifest manifest = getBundleManifest(archive);
-            OSGiManifestBuilder.validateBundleManifest(manifest);
+            DeploymentMetaData.get(archive).assertValidBundle();
         } catch (RuntimeException rte) {
             throw rte;
         } catch (Exception ex) {
@@ -153,36 +260,48 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
     }
 
     private Manifest getBundleManifest(Archive<?> archive) {
-        try {
-            Node node = archive.get(JarFile.MANIFEST_NAME);
-            if (node == null)
-                return null;
+        return DeploymentMetaData.get(archive).getManifest();
+    }
 
-            Manifest manifest = new Manifest(node.getAsset().openStream());
-            return manifest;
-        } catch (Exception ex) {
-            return null;
+    /**
+     * Index the class entries of an archive by their file name, so that the test class
+     * lookups do not have to iterate over the whole archive content.
+     */
+    private static Map<String, List<String>> getClassIndex(Archive<?> archive) {
+        Map<String, List<String>> result = new HashMap<String, List<String>>();
+        for (ArchivePath auxpath : archive.getContent().keySet()) {
+            String path = auxpath.get();
+            if (path.endsWith(".class")) {
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                List<String> paths = result.get(name);
+                if (paths == null) {
+                    paths = new ArrayList<String>(1);
+                    result.put(name, paths);
+                }
+                paths.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static boolean containsClass(Map<String, List<String>> classIndex, String path) {
+        List<String> paths = classIndex.get(path.substring(path.lastIndexOf('/') + 1));
+        if (paths != null) {
+            // Archive paths are absolute, match at a path segment boundary
+            String suffix = "/" + path;
+            for (String auxpath : paths) {
+                if (auxpath.endsWith(suffix)) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
     private static String[] splitWithComma(String value) {
         // Header clauses are split with comma but comma can also appear in version parameter or in a custom parameter for "Attribute Matching"
         // e.g. Import-Package: org.jboss.arquillian.junit;version="[X.0.0,Y.0.0)";extra="A,B",...
-
-        // After each comma must be even number of double-quotes
-        return value.split(
-                "(?x)       " +   // Free-Spacing Mode
-                        ",          " +   // Split with comma
-                        "(?=        " +   // Followed by
-                        "  (?:      " +   // Start a non-capture group
-                        "    [^\"]* " +   // 0 or more non-quote characters
-                        "    \"     " +   // 1 quote
-                        "    [^\"]* " +   // 0 or more non-quote characters
-                        "    \"     " +   // 1 quote
-                        "  )*       " +   // 0 or more repetition of non-capture group (multiple of 2 quotes will be even)
-                        "  [^\"]*   " +   // Finally 0 or more non-quotes
-                        "  $        " +   // Till the end  (This is necessary, else every comma will satisfy the condition)
-                        ")          "     // End look-ahead
-        );
+        List<String> clauses = HeaderClause.split(value);
+        return clauses.toArray(new String[clauses.size()]);
     }
 }
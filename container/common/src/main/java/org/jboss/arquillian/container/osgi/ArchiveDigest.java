@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+
+/**
+ * A content digest of archives and classes.
+ *
+ * Archive entries are digested in path order with their path and content, so the digest
+ * does not depend on the order in which the entries were added.
+ */
+public final class ArchiveDigest {
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[8192];
+
+    public ArchiveDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public ArchiveDigest update(String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return this;
+    }
+
+    public ArchiveDigest update(InputStream input) throws IOException {
+        try {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return this;
+    }
+
+    public ArchiveDigest update(Archive<?> archive) throws IOException {
+        update(archive.getName());
+        Map<String, Node> content = new TreeMap<String, Node>();
+        for (Map.Entry<ArchivePath, Node> entry : archive.getContent().entrySet()) {
+            content.put(entry.getKey().get(), entry.getValue());
+        }
+        for (Map.Entry<String, Node> entry : content.entrySet()) {
+            update(entry.getKey());
+            Asset asset = entry.getValue().getAsset();
+            if (asset != null) {
+                update(asset.openStream());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Digest the class file of a class.
+     */
+    public ArchiveDigest update(Class<?> clazz) throws IOException {
+        update(clazz.getName());
+        InputStream input = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class");
+        if (input != null) {
+            update(input);
+        }
+        return this;
+    }
+
+    /**
+     * Get the hex encoded digest. The digest is reset afterwards.
+     */
+    public String getValue() {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -33,6 +33,17 @@ public abstract class CommonContainerConfiguration implements ContainerConfigura
     private String bootstrapCompleteService;
     private List<String> bootstrapCompleteServices;
     private boolean autostartBundle;
+    private boolean asyncStart;
+    private boolean batchDeployment;
+    private boolean refreshAfterUndeploy;
+    private int refreshTimeout = 30;
+    private boolean shareDeployments;
+    private boolean updateDeployments;
+    private int maxParkedDeployments = 16;
+    private boolean flattenArquillianBundle;
+    private String dependencyBundles;
+    private String localRepository;
+    private List<MavenBundle> mavenBundles = new ArrayList<MavenBundle>();
 
     public String getBootstrapCompleteService() {
         return bootstrapCompleteService;
@@ -54,8 +65,150 @@ public abstract class CommonContainerConfiguration implements ContainerConfigura
         this.autostartBundle = autostartBundle;
     }
 
+    /**
+     * If true, {@link CommonDeployableContainer#start()} returns as soon as the framework boot
+     * has been initiated and the first deployment waits for the container to become ready.
+     */
+    public boolean isAsyncStart() {
+        return asyncStart;
+    }
+
+    public void setAsyncStart(boolean asyncStart) {
+        this.asyncStart = asyncStart;
+    }
+
+    /**
+     * If true, the managed deployments of a test class are installed first and then
+     * resolved and started together. Only applies with {@link #isAutostartBundle()}.
+     */
+    public boolean isBatchDeployment() {
+        return batchDeployment;
+    }
+
+    public void setBatchDeployment(boolean batchDeployment) {
+        this.batchDeployment = batchDeployment;
+    }
+
+    /**
+     * If true, the bundles that depend on undeployed bundles are refreshed once the managed
+     * deployments of a test class have been undeployed.
+     */
+    public boolean isRefreshAfterUndeploy() {
+        return refreshAfterUndeploy;
+    }
+
+    public void setRefreshAfterUndeploy(boolean refreshAfterUndeploy) {
+        this.refreshAfterUndeploy = refreshAfterUndeploy;
+    }
+
+    /**
+     * The time in seconds to wait for a refresh to complete.
+     */
+    public int getRefreshTimeout() {
+        return refreshTimeout;
+    }
+
+    public void setRefreshTimeout(int refreshTimeout) {
+        this.refreshTimeout = refreshTimeout;
+    }
+
+    /**
+     * If true, deployments with identical content share one installed bundle, which stays
+     * installed for later test classes when it is no longer referenced.
+     */
+    public boolean isShareDeployments() {
+        return shareDeployments;
+    }
+
+    public void setShareDeployments(boolean shareDeployments) {
+        this.shareDeployments = shareDeployments;
+    }
+
+    /**
+     * If true, undeployed bundles stay installed and a later deployment with the same symbolic
+     * name updates the installed bundle in place. The update is skipped if the content is unchanged.
+     * Parked bundles are uninstalled when the container stops, so updates only apply within one run.
+     */
+    public boolean isUpdateDeployments() {
+        return updateDeployments;
+    }
+
+    public void setUpdateDeployments(boolean updateDeployments) {
+        this.updateDeployments = updateDeployments;
+    }
+
+    /**
+     * The maximum number of undeployed bundles that stay installed for reuse. The least recently
+     * used parked bundles are uninstalled first.
+     */
+    public int getMaxParkedDeployments() {
+        return maxParkedDeployments;
+    }
+
+    public void setMaxParkedDeployments(int maxParkedDeployments) {
+        this.maxParkedDeployments = maxParkedDeployments;
+    }
+
+    /**
+     * If true, the auxiliary archives are merged into the root of the Arquillian bundle
+     * instead of being embedded as nested jars on its Bundle-ClassPath.
+     */
+    public boolean isFlattenArquillianBundle() {
+        return flattenArquillianBundle;
+    }
+
+    public void setFlattenArquillianBundle(boolean flattenArquillianBundle) {
+        this.flattenArquillianBundle = flattenArquillianBundle;
+    }
+
+    /**
+     * Comma separated Maven coordinates of bundles that are installed by reference from the local
+     * repository once the container is started. Bundles with the same location are not installed again.
+     */
+    public String getDependencyBundles() {
+        return dependencyBundles;
+    }
+
+    public void setDependencyBundles(String dependencyBundles) {
+        this.dependencyBundles = dependencyBundles;
+    }
+
+    public List<MavenBundle> getMavenBundles() {
+        return mavenBundles;
+    }
+
+    /**
+     * The local Maven repository of the dependency bundles, defaults to <code>${maven.repo.local}</code>
+     * or <code>~/.m2/repository</code>.
+     */
+    public String getLocalRepository() {
+        return localRepository;
+    }
+
+    public void setLocalRepository(String localRepository) {
+        this.localRepository = localRepository;
+    }
+
     @Override
     public void validate() throws ConfigurationException {
+        if (dependencyBundles != null) {
+            mavenBundles = new ArrayList<MavenBundle>();
+            for (String coordinates : dependencyBundles.split(",")) {
+                if (coordinates.trim().isEmpty())
+                    continue;
+                try {
+                    mavenBundles.add(MavenBundle.parse(coordinates));
+                } catch (IllegalArgumentException ex) {
+                    throw new ConfigurationException("Invalid dependencyBundles: " + ex.getMessage());
+                }
+            }
+        }
+        if (refreshTimeout <= 0) {
+            throw new ConfigurationException("refreshTimeout must be positive: " + refreshTimeout);
+        }
+        if (maxParkedDeployments < 0) {
+            throw new ConfigurationException("maxParkedDeployments must not be negative: " + maxParkedDeployments);
+        }
         if (bootstrapCompleteService != null) {
             bootstrapCompleteService = bootstrapCompleteService.replaceAll("\\s",""); // Remove all whitespaces
             bootstrapCompleteServices = new ArrayList<String>();
@@ -1,22 +1,57 @@
 package org.jboss.arquillian.container.osgi;
 
 import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
 import org.jboss.arquillian.core.api.Instance;
+import org.jboss.arquillian.core.api.InstanceProducer;
+import org.jboss.arquillian.core.api.annotation.ApplicationScoped;
 import org.jboss.arquillian.core.api.annotation.Inject;
 import org.jboss.arquillian.core.spi.ServiceLoader;
 import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
 import org.jboss.shrinkwrap.api.Archive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class CommonDeployableContainer<T extends CommonContainerConfiguration> implements DeployableContainer<T> {
 
+    static final Logger logger = LoggerFactory.getLogger(CommonDeployableContainer.class.getPackage().getName());
+
     private CommonContainerConfiguration config;
     private Long arquillianBundleId;
+    private Archive<?> arquillianBundle;
+    private Future<Void> startFuture;
+    private String startKey;
+    // The failure of an asynchronous start, thrown by every later wait for the start
+    private volatile LifecycleException startFailure;
+    private final AtomicInteger failFastCount = new AtomicInteger();
+    private final AtomicLong failFastSavedMillis = new AtomicLong();
+    private final AtomicInteger resolveCount = new AtomicInteger();
+    private final AtomicLong resolveMillis = new AtomicLong();
+    private final SharedDeployments sharedDeployments = new SharedDeployments();
 
     @Inject
     private Instance<ServiceLoader> _serviceLoaderInstance;
 
+    @Inject
+    @ApplicationScoped
+    private InstanceProducer<ContainerStartupGroup> _startupGroupInstance;
+
     /**
      * @return Returns true if container starts bundles after deployment automaticly otherwise returns false
      */
@@ -24,6 +59,15 @@ public abstract class CommonDeployableContainer<T extends CommonContainerConfigu
         return config.isAutostartBundle();
     }
 
+    /**
+     * Check if the managed deployments should be started in one batch.
+     *
+     * @return Returns true if batch deployment is enabled
+     */
+    public boolean isBatchDeployment() {
+        return config.isBatchDeployment();
+    }
+
     /**
      * Install a bundle from an Archive
      *
@@ -34,9 +78,154 @@ public abstract class CommonDeployableContainer<T extends CommonContainerConfigu
     public abstract long installBundle(Archive<?> archive, boolean start) throws Exception;
 
     /**
-     * Perform a "refresh packages" operation
+     * Check if the bundles that depend on undeployed bundles should be refreshed after undeployment.
+     *
+     * @return Returns true if the refresh after undeployment is enabled
+     */
+    public boolean isRefreshAfterUndeploy() {
+        return config.isRefreshAfterUndeploy();
+    }
+
+    /**
+     * Check if deployments with identical content share one installed bundle.
+     *
+     * @return Returns true if deployment sharing is enabled
+     */
+    public boolean isShareDeployments() {
+        return config.isShareDeployments();
+    }
+
+    /**
+     * Check if a deployment updates an undeployed bundle with the same symbolic name.
+     *
+     * @return Returns true if in-place updates are enabled
+     */
+    public boolean isUpdateDeployments() {
+        return config.isUpdateDeployments();
+    }
+
+    /**
+     * Check if undeployed bundles are parked for reuse by later deployments.
+     *
+     * @return Returns true if deployment sharing or in-place updates are enabled
+     */
+    protected boolean isRetainDeployments() {
+        return isShareDeployments() || isUpdateDeployments();
+    }
+
+    /**
+     * @return The maximum number of parked bundles
+     */
+    protected int getMaxParkedDeployments() {
+        return config.getMaxParkedDeployments();
+    }
+
+    /**
+     * @return The bundles that are shared by identical deployments
+     */
+    protected SharedDeployments getSharedDeployments() {
+        return sharedDeployments;
+    }
+
+    /**
+     * Remove all parked shared bundles when the container stops.
+     *
+     * @return The bundles that must be uninstalled unless the framework is stopped as well
+     */
+    protected List<SharedDeployments.SharedBundle> evictSharedDeployments() {
+        int reused = sharedDeployments.getReuseCount();
+        if (reused > 0) {
+            logger.info("Shared bundles were reused by {} deployments", reused);
+        }
+        return sharedDeployments.evictAll();
+    }
+
+    /**
+     * Deploy an archive as a shared bundle. An installed bundle with the same content is reused.
+     * With in-place updates, a parked bundle with the same symbolic name is updated. Otherwise
+     * the conflicting parked bundles and the least recently used parked bundles beyond the limit
+     * are uninstalled and the archive is installed.
+     *
+     * @param archive      The deployment archive
+     * @param symbolicName The bundle symbolic name of the archive
+     * @return The id of the reused, updated or installed bundle
+     * @throws Exception If the bundle cannot be installed or updated
+     */
+    protected long deploySharedBundle(Archive<?> archive, String symbolicName) throws Exception {
+        SharedDeployments.SharedBundle sharedBundle = sharedDeployments.get(archive);
+        if (sharedBundle != null && isBundleInstalled(sharedBundle.getBundleId())) {
+            sharedDeployments.acquire(archive, sharedBundle);
+            // The exported archive is not needed
+            DeploymentExporter.getInstance().discard(archive);
+            logger.info("Reusing bundle: {}", sharedBundle);
+            return sharedBundle.getBundleId();
+        }
+
+        if (isUpdateDeployments()) {
+            SharedDeployments.SharedBundle parked = sharedDeployments.getParked(symbolicName);
+            if (parked != null && isBundleInstalled(parked.getBundleId())) {
+                logger.info("Updating bundle: {}", parked);
+                updateBundle(archive, parked.getBundleId());
+                sharedDeployments.update(archive, parked);
+                uninstallParkedBundles(sharedDeployments.evict(archive, symbolicName));
+                // Rewire the dependents of the previous revision
+                refreshBundle(parked.getBundleId());
+                return parked.getBundleId();
+            }
+        }
+        uninstallParkedBundles(sharedDeployments.evict(archive, symbolicName));
+        uninstallParkedBundles(sharedDeployments.evictEldest(getMaxParkedDeployments()));
+        long bundleId = installBundle(archive, false);
+        sharedDeployments.register(archive, bundleId, symbolicName);
+        return bundleId;
+    }
+
+    private void uninstallParkedBundles(List<SharedDeployments.SharedBundle> evicted) throws Exception {
+        for (SharedDeployments.SharedBundle parked : evicted) {
+            if (isBundleInstalled(parked.getBundleId())) {
+                logger.info("Uninstalling parked bundle: {}", parked);
+                uninstallBundle(parked.getBundleId());
+            }
+        }
+    }
+
+    /**
+     * Check if a bundle is installed, for example a shared bundle that may have been uninstalled by a test.
+     *
+     * @param bundleId Bundle id
+     * @return Returns true if the bundle exists and is not uninstalled
+     */
+    protected abstract boolean isBundleInstalled(long bundleId);
+
+    /**
+     * Update an installed bundle with the content of an archive.
      *
-     * @throws Exception If an error occured
+     * @param archive  The deployment archive
+     * @param bundleId Bundle id
+     * @throws Exception If an error occured and therefore the bundle was not updated
+     */
+    protected abstract void updateBundle(Archive<?> archive, long bundleId) throws Exception;
+
+    /**
+     * Refresh a bundle and its dependents, waiting for the refresh to complete.
+     *
+     * @param bundleId Bundle id
+     * @throws Exception If the refresh fails or does not complete in time
+     */
+    protected abstract void refreshBundle(long bundleId) throws Exception;
+
+    /**
+     * @return The time in seconds to wait for a refresh to complete
+     */
+    protected int getRefreshTimeout() {
+        return config.getRefreshTimeout();
+    }
+
+    /**
+     * Perform a "refresh packages" operation for the bundles that were uninstalled since the last
+     * refresh and the bundles that depend on them. Does nothing if no such bundle is left.
+     *
+     * @throws Exception If an error occured or the refresh did not complete on time
      */
     public abstract void refresh() throws Exception;
 
@@ -49,6 +238,19 @@ public abstract class CommonDeployableContainer<T extends CommonContainerConfigu
      */
     public abstract void startBundle(String symbolicName, String version) throws Exception;
 
+    /**
+     * Start a batch of installed deployments.
+     * Containers may resolve the bundles together and start independent bundles concurrently.
+     *
+     * @param deployments The deployments in deployment order
+     * @throws Exception If an error occured and therefore a bundle was not started
+     */
+    public void startBundles(List<DeploymentMetaData> deployments) throws Exception {
+        for (DeploymentMetaData metadata : deployments) {
+            startBundle(metadata.getSymbolicName(), metadata.getVersion());
+        }
+    }
+
     /**
      * Uninstall a bundle identified by <code>bundleId</code>
      *
@@ -57,6 +259,229 @@ public abstract class CommonDeployableContainer<T extends CommonContainerConfigu
      */
     public abstract void uninstallBundle(long bundleId) throws Exception;
 
+    /**
+     * Get the number of bundle starts that failed before their timeout expired.
+     */
+    public int getFailFastCount() {
+        return failFastCount.get();
+    }
+
+    /**
+     * Get the time in milliseconds that failed bundle starts did not spend waiting for their timeout.
+     */
+    public long getFailFastSavedMillis() {
+        return failFastSavedMillis.get();
+    }
+
+    /**
+     * Record a bundle start that failed before its timeout expired.
+     *
+     * @param bundle      The bundle that could not be started
+     * @param startMillis The time the start was initiated
+     * @param timeout     The start timeout that no longer needs to be waited for
+     * @param unit        The unit of the timeout
+     */
+    protected void recordFailFast(Object bundle, long startMillis, long timeout, TimeUnit unit) {
+        long elapsed = System.currentTimeMillis() - startMillis;
+        long saved = Math.max(0, unit.toMillis(timeout) - elapsed);
+        int count = failFastCount.incrementAndGet();
+        long total = failFastSavedMillis.addAndGet(saved);
+        logger.info("Start of {} failed after {}ms instead of {}ms, total saved by {} failures: {}ms", bundle, elapsed, unit.toMillis(timeout), count, total);
+    }
+
+    /**
+     * Record the time it took to resolve installed bundles.
+     *
+     * @param bundles     The bundles that were resolved
+     * @param count       The number of bundles
+     * @param startMillis The time the resolve was initiated
+     */
+    protected void recordResolve(Object bundles, int count, long startMillis) {
+        long elapsed = System.currentTimeMillis() - startMillis;
+        resolveCount.addAndGet(count);
+        resolveMillis.addAndGet(elapsed);
+        logger.debug("Resolved {} in {}ms", bundles, elapsed);
+    }
+
+    /**
+     * Log the total time spent resolving deployments, for example to compare precise
+     * imports with the default imports of test bundles.
+     */
+    protected void reportResolveTime() {
+        int count = resolveCount.get();
+        if (count > 0) {
+            logger.info("Resolved {} bundles in {}ms", count, resolveMillis.get());
+        }
+    }
+
+    /**
+     * Order bundles for a start, so that every bundle is started after the bundles it depends on.
+     *
+     * @param dependencies The bundles in deployment order, mapped to the bundles they depend on
+     * @return Groups of bundles that do not depend on each other, in start order
+     */
+    protected static <B> List<List<B>> getStartOrder(Map<B, Set<B>> dependencies) {
+        List<List<B>> result = new ArrayList<List<B>>();
+        Set<B> started = new HashSet<B>();
+        List<B> remaining = new ArrayList<B>(dependencies.keySet());
+        while (!remaining.isEmpty()) {
+            List<B> group = new ArrayList<B>();
+            for (B bundle : remaining) {
+                if (started.containsAll(dependencies.get(bundle)))
+                    group.add(bundle);
+            }
+            // Bundles with cyclic dependencies are started together
+            if (group.isEmpty())
+                group.addAll(remaining);
+            result.add(group);
+            started.addAll(group);
+            remaining.removeAll(group);
+        }
+        return result;
+    }
+
+    /**
+     * Start the framework or the container process and wait until it can take deployments.
+     *
+     * This may run on a thread other than the Arquillian thread and must therefore not use
+     * any injected Arquillian instances.
+     *
+     * @throws LifecycleException If the container cannot be started
+     */
+    protected abstract void startContainer() throws LifecycleException;
+
+    /**
+     * Called on the Arquillian thread once {@link #startContainer()} has completed.
+     * Installs the Arquillian bundle.
+     *
+     * @throws LifecycleException If the container cannot be completed, for example because the Arquillian bundle cannot be installed
+     */
+    protected void containerStarted() throws LifecycleException {
+        try {
+            installArquillianBundle();
+        } catch (Exception e) {
+            // Without the Arquillian bundle no test can run, fail the start with the real cause
+            throw new LifecycleException("Can't deploy " + ArquillianBundleGenerator.BUNDLE_NAME, e);
+        }
+        List<MavenBundle> dependencies = config.getMavenBundles();
+        if (!dependencies.isEmpty()) {
+            long startMillis = System.currentTimeMillis();
+            try {
+                int installed = installDependencyBundles(dependencies, MavenBundle.getLocalRepository(config.getLocalRepository()));
+                logger.info("Installed {} of {} dependency bundles by reference in {}ms", installed, dependencies.size(),
+                    System.currentTimeMillis() - startMillis);
+            } catch (Exception ex) {
+                throw new LifecycleException("Cannot install dependency bundles: " + dependencies, ex);
+            }
+        }
+    }
+
+    /**
+     * Install bundles by reference from a Maven repository and start them.
+     * Bundles whose location is already installed are not installed again.
+     *
+     * @param dependencies The bundles in installation order
+     * @param repository   The local Maven repository
+     * @return The number of bundles that were installed
+     * @throws Exception If an error occured and therefore a bundle was not installed or started
+     */
+    protected abstract int installDependencyBundles(List<MavenBundle> dependencies, File repository) throws Exception;
+
+    @Override
+    public void start() throws LifecycleException {
+        startFailure = null;
+        if (config.isAsyncStart()) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                startFuture = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startContainer();
+                        return null;
+                    }
+                });
+            } finally {
+                executor.shutdown();
+            }
+            if (startKey != null) {
+                getStartupGroup().remove(startKey);
+            }
+            startKey = getStartupGroup().register(getClass().getSimpleName(), startFuture);
+
+            // Generate the Arquillian bundle while the container boots
+            prepareArquillianBundle();
+        } else {
+            startContainer();
+            containerStarted();
+        }
+    }
+
+    /**
+     * Wait for an asynchronous start to complete.
+     * The first call after the container became ready completes the start on the calling thread.
+     *
+     * @throws LifecycleException If the container could not be started
+     */
+    protected void awaitStarted() throws LifecycleException {
+        if (startFailure != null)
+            throw new LifecycleException("Container start failed", startFailure);
+        if (startFuture != null) {
+            try {
+                // The other containers of the group keep booting
+                logger.debug("Waiting for container start, {} starts pending", getStartupGroup().getPendingCount());
+                awaitStartContainer();
+                containerStarted();
+            } catch (LifecycleException ex) {
+                // The first failure of the group reports the failed starts of the other containers
+                getStartupGroup().addFailures(startKey, ex);
+                startFailure = ex;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Wait for an asynchronous start before the container is stopped, without completing it.
+     */
+    protected void awaitStartedBeforeStop() {
+        if (startFuture != null) {
+            try {
+                awaitStartContainer();
+            } catch (LifecycleException ex) {
+                logger.warn("Container start did not complete", ex);
+            }
+        }
+        if (startKey != null) {
+            getStartupGroup().remove(startKey);
+            startKey = null;
+        }
+    }
+
+    private void awaitStartContainer() throws LifecycleException {
+        Future<Void> future = startFuture;
+        startFuture = null;
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new LifecycleException("Interrupted while waiting for container start", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof LifecycleException)
+                throw (LifecycleException) cause;
+            throw new LifecycleException("Cannot start container", cause);
+        }
+    }
+
+    private ContainerStartupGroup getStartupGroup() {
+        ContainerStartupGroup startupGroup = _startupGroupInstance.get();
+        if (startupGroup == null) {
+            startupGroup = new ContainerStartupGroup();
+            _startupGroupInstance.set(startupGroup);
+        }
+        return startupGroup;
+    }
+
     /**
      * Await bootstrap complete services
      */
@@ -77,12 +502,28 @@ public abstract class CommonDeployableContainer<T extends CommonContainerConfigu
      */
     protected abstract void awaitBootstrapCompleteService(String name);
 
-    protected long installArquillianBundle() throws Exception {
-        ServiceLoader serviceLoader = _serviceLoaderInstance.get();
-        ArquillianBundleGenerator arquillianBundleGenerator = serviceLoader.onlyOne(ArquillianBundleGenerator.class);
+    protected void prepareArquillianBundle() {
+        try {
+            ServiceLoader serviceLoader = _serviceLoaderInstance.get();
+            ArquillianBundleGenerator arquillianBundleGenerator = serviceLoader.onlyOne(ArquillianBundleGenerator.class);
+            arquillianBundle = arquillianBundleGenerator.createArquillianBundle(config.isFlattenArquillianBundle());
+        } catch (Exception e) {
+            logger.error("Can't create " + ArquillianBundleGenerator.BUNDLE_NAME, e);
+        }
+    }
 
-        Archive arquillianBundle = arquillianBundleGenerator.createArquillianBundle();
+    protected long installArquillianBundle() throws Exception {
+        if (arquillianBundle == null) {
+            prepareArquillianBundle();
+        }
+        if (arquillianBundle == null) {
+            throw new IllegalStateException("Arquillian bundle is not available");
+        }
+        long startMillis = System.currentTimeMillis();
         arquillianBundleId = installBundle(arquillianBundle, true);
+        arquillianBundle = null;
+        logger.info("Installed and started {} in {}ms, flattened: {}", ArquillianBundleGenerator.BUNDLE_NAME,
+            System.currentTimeMillis() - startMillis, config.isFlattenArquillianBundle());
         return arquillianBundleId;
     }
 
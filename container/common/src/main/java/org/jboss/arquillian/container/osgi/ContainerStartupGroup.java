@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+
+/**
+ * The asynchronous container starts of an Arquillian run.
+ *
+ * All containers of a group boot concurrently, and each container only waits for its own start.
+ * The first container that fails to start reports the failed starts of the other containers of
+ * the group as well, so that all startup failures appear in one report. A start leaves the group
+ * when its container is stopped.
+ */
+public class ContainerStartupGroup {
+
+    private final Map<String, Future<Void>> starts = new LinkedHashMap<String, Future<Void>>();
+    // Set once a startup failure has been reported for the current starts
+    private boolean reported;
+
+    /**
+     * Register the start of a container.
+     *
+     * @return The key of the start in this group
+     */
+    public synchronized String register(String name, Future<Void> future) {
+        String key = name;
+        for (int i = 2; starts.containsKey(key); i++) {
+            key = name + "#" + i;
+        }
+        starts.put(key, future);
+        return key;
+    }
+
+    /**
+     * Remove the start of a container that is stopped.
+     */
+    public synchronized void remove(String key) {
+        starts.remove(key);
+        if (starts.isEmpty()) {
+            reported = false;
+        }
+    }
+
+    /**
+     * Get the number of starts that have not completed yet.
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Future<Void> future : starts.values()) {
+            if (!future.isDone())
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Add the failed starts of the other containers to the failure of a container.
+     *
+     * Only the first failure of the group is completed this way. It waits for the other starts, so that
+     * the report covers the whole group.
+     *
+     * @param key     The key of the failed start
+     * @param failure The failure that the container throws
+     */
+    public void addFailures(String key, LifecycleException failure) {
+        Map<String, Future<Void>> others;
+        synchronized (this) {
+            if (reported)
+                return;
+            reported = true;
+            others = new LinkedHashMap<String, Future<Void>>(starts);
+            others.remove(key);
+        }
+        for (Map.Entry<String, Future<Void>> entry : others.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (CancellationException ex) {
+                // A stopped container
+            } catch (ExecutionException ex) {
+                failure.addSuppressed(new LifecycleException("Cannot start " + entry.getKey(), ex.getCause()));
+            }
+        }
+    }
+}
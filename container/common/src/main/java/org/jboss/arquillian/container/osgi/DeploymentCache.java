@@ -0,0 +1,226 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of processed test deployments.
+ *
+ * The cache is keyed by a digest of the application archive and the test class hierarchy.
+ * A hit provides the previously generated bundle manifest to the archive processor and the
+ * previously exported bundle to the container. Least recently used bundles are evicted when
+ * the cache exceeds its maximum size.
+ *
+ * The cache is disabled unless the {@link #CACHE_DIR} system property is set.
+ */
+public final class DeploymentCache {
+
+    static final Logger logger = LoggerFactory.getLogger(DeploymentCache.class.getPackage().getName());
+
+    /** The cache directory */
+    public static final String CACHE_DIR = "arquillian.osgi.deployment.cache";
+    /** The maximum cache size in MB, defaults to 256 */
+    public static final String CACHE_SIZE = "arquillian.osgi.deployment.cache.size";
+
+    private static final DeploymentCache instance = new DeploymentCache(System.getProperty(CACHE_DIR), Long.getLong(CACHE_SIZE, 256) * 1024 * 1024);
+
+    private final File cacheDir;
+    private final long maxSize;
+    // Keyed by archive id, the entries are consumed by the bundle export or cleared after the test class
+    private final Map<String, File> hits = new ConcurrentHashMap<String, File>();
+    private final Map<String, String> misses = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    DeploymentCache(String cacheDir, long maxSize) {
+        this.cacheDir = cacheDir != null ? new File(cacheDir) : null;
+        this.maxSize = maxSize;
+    }
+
+    public static DeploymentCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return cacheDir != null;
+    }
+
+    /**
+     * Get the cache key of an application archive before it gets processed.
+     *
+     * @param options The processor options that affect the generated bundle
+     */
+    public String getKey(Archive<?> archive, Collection<Class<?>> classes, Class<?> processor, String... options) throws IOException {
+        ArchiveDigest digest = new ArchiveDigest().update(processor.getName());
+        for (String option : options) {
+            digest.update(option);
+        }
+        digest.update(archive);
+        for (Class<?> clazz : classes) {
+            digest.update(clazz);
+        }
+        return digest.getValue();
+    }
+
+    /**
+     * Lookup a processed deployment.
+     *
+     * On a hit the cached bundle is used when the archive gets exported. On a miss the
+     * exported bundle is stored in the cache.
+     *
+     * @return The manifest of the cached bundle or null
+     */
+    public Manifest lookup(Archive<?> archive, String key) {
+        File file = new File(cacheDir, key + ".jar");
+        if (file.isFile()) {
+            try {
+                JarFile jarFile = new JarFile(file);
+                try {
+                    Manifest manifest = jarFile.getManifest();
+                    if (manifest != null) {
+                        file.setLastModified(System.currentTimeMillis());
+                        hits.put(archive.getId(), file);
+                        hitCount.incrementAndGet();
+                        logger.debug("Deployment cache hit: {}", archive.getName());
+                        return manifest;
+                    }
+                } finally {
+                    jarFile.close();
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot read cached deployment: " + file, ex);
+            }
+        }
+        misses.put(archive.getId(), key);
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Export an archive as bundle, using or populating the cache.
+     */
+    public InputStream export(Archive<?> archive) throws IOException {
+        File file = hits.remove(archive.getId());
+        if (file != null && file.isFile()) {
+            return new FileInputStream(file);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        archive.as(ZipExporter.class).exportTo(baos);
+        byte[] bytes = baos.toByteArray();
+
+        String key = misses.remove(archive.getId());
+        if (key != null) {
+            store(key, bytes);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private synchronized void store(String key, byte[] bytes) {
+        try {
+            Files.createDirectories(cacheDir.toPath());
+            File tmpFile = File.createTempFile(key, ".tmp", cacheDir);
+            Files.write(tmpFile.toPath(), bytes);
+            // Other test forks may share the cache directory
+            Files.move(tmpFile.toPath(), new File(cacheDir, key + ".jar").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException ex) {
+            logger.warn("Cannot store cached deployment: " + key, ex);
+        }
+    }
+
+    private void evict() {
+        File[] files = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".jar");
+            }
+        });
+        if (files == null)
+            return;
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(file1.lastModified(), file2.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+                logger.debug("Evicted cached deployment: {}", files[i].getName());
+            }
+        }
+    }
+
+    /**
+     * Forget the lookups of archives that have not been exported.
+     */
+    public void clear() {
+        hits.clear();
+        misses.clear();
+    }
+
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Log the hit rate of the cache.
+     */
+    public void report() {
+        int cached = hitCount.get();
+        int total = cached + missCount.get();
+        if (isEnabled() && total > 0) {
+            logger.info("Deployment cache {}: {} of {} deployments cached ({}%)", cacheDir, cached, total, cached * 100 / total);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.arquillian.osgi.bundle.BundleGeneratorHelper;
+import org.jboss.shrinkwrap.api.Archive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports the processed deployments of a test class in parallel.
+ *
+ * The deployments of a test class are submitted once they have been generated and packaged, and
+ * are exported in parallel on a fork-join pool. The container then takes the exported bundle when
+ * it deploys the archive, so later deployments of the class are exported while the first ones are
+ * installed. The deployments are still installed in deployment order. Nothing is exported before
+ * the deployments of a test class have been generated, so a test class with a single deployment
+ * does not gain anything.
+ *
+ * Parallel export is disabled unless the {@link #PARALLEL} system property is set.
+ */
+public final class DeploymentExporter {
+
+    static final Logger logger = LoggerFactory.getLogger(DeploymentExporter.class.getPackage().getName());
+
+    /** Enables the parallel export of the deployments of a test class */
+    public static final String PARALLEL = "arquillian.osgi.export.parallel";
+    /** The number of export threads, defaults to the number of available processors */
+    public static final String THREADS = "arquillian.osgi.export.threads";
+
+    private static final DeploymentExporter instance = new DeploymentExporter(Boolean.getBoolean(PARALLEL),
+        Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()));
+
+    private final ExecutorService executor;
+    // Keyed by archive id, the entries are consumed by the container or cleared after the test class
+    private final Map<String, Future<byte[]>> exports = new ConcurrentHashMap<String, Future<byte[]>>();
+    private final AtomicInteger exportCount = new AtomicInteger();
+    private final AtomicLong exportNanos = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    DeploymentExporter(boolean parallel, int threads) {
+        if (parallel) {
+            ForkJoinWorkerThreadFactory threadFactory = new ForkJoinWorkerThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("arquillian-osgi-export-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(DeploymentExporter.class.getClassLoader());
+                    return thread;
+                }
+            };
+            executor = new ForkJoinPool(Math.max(1, threads), threadFactory, null, true);
+        } else {
+            executor = null;
+        }
+    }
+
+    public static DeploymentExporter getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Start the export of a processed deployment.
+     */
+    public void submit(final Archive<?> archive) {
+        if (executor == null)
+            return;
+
+        Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                long start = System.nanoTime();
+                byte[] bytes = BundleGeneratorHelper.toByteArray(DeploymentCache.getInstance().export(archive));
+                exportNanos.addAndGet(System.nanoTime() - start);
+                return bytes;
+            }
+        });
+        exports.put(archive.getId(), future);
+    }
+
+    /**
+     * Get the exported bundle of an archive, waiting for its background export if needed.
+     */
+    public InputStream export(Archive<?> archive) throws IOException {
+        Future<byte[]> future = exports.remove(archive.getId());
+        if (future == null)
+            return DeploymentCache.getInstance().export(archive);
+
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = future.get();
+            exportCount.incrementAndGet();
+            return new ByteArrayInputStream(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting: " + archive.getName(), ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Cannot export: " + archive.getName(), cause);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Forget the export of an archive that is deployed without its exported bundle.
+     */
+    public void discard(Archive<?> archive) {
+        exports.remove(archive.getId());
+    }
+
+    /**
+     * Forget the exports of archives that have not been deployed.
+     */
+    public void clear() {
+        exports.clear();
+    }
+
+    int getSubmittedCount() {
+        return exports.size();
+    }
+
+    /**
+     * Log the time spent exporting and the time that deployments waited for their export.
+     */
+    public void report() {
+        int count = exportCount.get();
+        if (isEnabled() && count > 0) {
+            long exportMillis = TimeUnit.NANOSECONDS.toMillis(exportNanos.get());
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+            logger.info("Exported {} deployments in parallel in {}ms export time, deployments waited {}ms", count, exportMillis, waitMillis);
+        }
+    }
+}
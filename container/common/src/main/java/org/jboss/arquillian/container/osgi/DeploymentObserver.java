@@ -16,19 +16,33 @@
  */
 package org.jboss.arquillian.container.osgi;
 
-import java.util.jar.Manifest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.arquillian.container.spi.client.deployment.Deployment;
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentScenario;
 import org.jboss.arquillian.container.spi.event.container.AfterDeploy;
 import org.jboss.arquillian.container.spi.event.container.AfterStart;
+import org.jboss.arquillian.container.spi.event.container.AfterUnDeploy;
 import org.jboss.arquillian.container.spi.event.container.BeforeSetup;
+import org.jboss.arquillian.container.test.impl.client.deployment.event.DeployManagedDeployments;
+import org.jboss.arquillian.container.test.impl.client.deployment.event.GenerateDeployment;
+import org.jboss.arquillian.container.test.impl.client.deployment.event.UnDeployManagedDeployments;
 import org.jboss.arquillian.core.api.Instance;
 import org.jboss.arquillian.core.api.annotation.Inject;
 import org.jboss.arquillian.core.api.annotation.Observes;
 import org.jboss.arquillian.core.spi.ServiceLoader;
 import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
 import org.jboss.arquillian.test.spi.event.suite.After;
+import org.jboss.arquillian.test.spi.event.suite.AfterClass;
+import org.jboss.arquillian.test.spi.event.suite.AfterSuite;
 import org.jboss.arquillian.test.spi.event.suite.Before;
-import org.jboss.osgi.metadata.OSGiMetaData;
-import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
 import org.jboss.shrinkwrap.api.Archive;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,18 +56,106 @@ public class DeploymentObserver {
 
     static final Logger logger = LoggerFactory.getLogger(DeploymentObserver.class.getPackage().getName());
 
+    @Inject
+    private Instance<DeploymentScenario> deploymentScenario;
+
+    // The managed deployments that are started after all of them have been installed
+    private final Map<CommonDeployableContainer<?>, List<DeploymentMetaData>> batches = new LinkedHashMap<CommonDeployableContainer<?>, List<DeploymentMetaData>>();
+    private boolean batching;
+    // The containers with undeployments since their last refresh
+    private final Set<CommonDeployableContainer<?>> refreshPending = new LinkedHashSet<CommonDeployableContainer<?>>();
+
+    public void exportDeployments(@Observes(precedence = -100) GenerateDeployment event) {
+        // The archives are complete after the application archive processors and the packager have run,
+        // the deployments of this test class are exported in parallel while the first ones are installed
+        DeploymentScenario scenario = deploymentScenario.get();
+        if (scenario != null && DeploymentExporter.getInstance().isEnabled()) {
+            for (Deployment deployment : scenario.deployments()) {
+                DeploymentDescription description = deployment.getDescription();
+                if (description.isArchiveDeployment()) {
+                    Archive<?> archive = description.getTestableArchive() != null ? description.getTestableArchive() : description.getArchive();
+                    DeploymentExporter.getInstance().submit(archive);
+                }
+            }
+        }
+    }
+
+    public void beginBatch(@Observes(precedence = 100) DeployManagedDeployments event) {
+        batches.clear();
+        batching = true;
+    }
+
     public void autostartBundle(@Observes AfterDeploy event) throws Exception {
         if (event.getDeployableContainer() instanceof CommonDeployableContainer) {
             CommonDeployableContainer<?> container = (CommonDeployableContainer<?>) event.getDeployableContainer();
             if (container.isAutostartBundle()) {
-                Manifest manifest = new Manifest(event.getDeployment().getArchive().get("/META-INF/MANIFEST.MF").getAsset().openStream());
-                OSGiMetaData metadata = OSGiMetaDataBuilder.load(manifest);
-                if (metadata.getFragmentHost() == null) {
-                    container.startBundle(metadata.getBundleSymbolicName(), metadata.getBundleVersion().toString());
+                DeploymentMetaData metadata = DeploymentMetaData.get(event.getDeployment().getArchive());
+                if (!metadata.isFragment()) {
+                    if (batching && container.isBatchDeployment()) {
+                        List<DeploymentMetaData> batch = batches.get(container);
+                        if (batch == null) {
+                            batch = new ArrayList<DeploymentMetaData>();
+                            batches.put(container, batch);
+                        }
+                        batch.add(metadata);
+                    } else {
+                        container.startBundle(metadata.getSymbolicName(), metadata.getVersion());
+                    }
                 } else {
                     logger.debug("Fragment bundle cannot be started");
                 }
             }
         }
     }
+
+    public void startBatch(@Observes(precedence = -100) DeployManagedDeployments event) throws Exception {
+        batching = false;
+        try {
+            for (Map.Entry<CommonDeployableContainer<?>, List<DeploymentMetaData>> entry : batches.entrySet()) {
+                entry.getKey().startBundles(entry.getValue());
+            }
+        } finally {
+            batches.clear();
+        }
+    }
+
+    public void endBatch(@Observes AfterClass event) {
+        // A failed deployment skips the start of the batch
+        batching = false;
+        batches.clear();
+    }
+
+    public void scheduleRefresh(@Observes AfterUnDeploy event) {
+        if (event.getDeployableContainer() instanceof CommonDeployableContainer) {
+            CommonDeployableContainer<?> container = (CommonDeployableContainer<?>) event.getDeployableContainer();
+            if (container.isRefreshAfterUndeploy()) {
+                refreshPending.add(container);
+            }
+        }
+    }
+
+    public void refreshBundles(@Observes(precedence = -100) UnDeployManagedDeployments event) {
+        try {
+            for (CommonDeployableContainer<?> container : refreshPending) {
+                try {
+                    container.refresh();
+                } catch (Exception ex) {
+                    logger.warn("Cannot refresh bundles after undeployment", ex);
+                }
+            }
+        } finally {
+            refreshPending.clear();
+        }
+    }
+
+    public void clearDeployments(@Observes AfterClass event) {
+        // The deployments of a test class are not deployed after the class
+        DeploymentCache.getInstance().clear();
+        DeploymentExporter.getInstance().clear();
+    }
+
+    public void reportDeployments(@Observes AfterSuite event) {
+        DeploymentCache.getInstance().report();
+        DeploymentExporter.getInstance().report();
+    }
 }
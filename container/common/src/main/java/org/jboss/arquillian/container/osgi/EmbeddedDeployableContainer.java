@@ -16,26 +16,41 @@
  */
 package org.jboss.arquillian.container.osgi;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
 import javax.management.MBeanServerFactory;
+import org.jboss.arquillian.container.osgi.SharedDeployments.SharedBundle;
 import org.jboss.arquillian.container.spi.client.container.DeploymentException;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
 import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
 import org.jboss.arquillian.container.spi.client.protocol.metadata.JMXContext;
 import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
-import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
+import org.jboss.arquillian.protocol.osgi.BatchMethodExecutor;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.arquillian.protocol.osgi.LocalOSGiContext;
+import org.jboss.arquillian.protocol.osgi.LocalOSGiProtocol;
 import org.jboss.shrinkwrap.api.Archive;
-import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.descriptor.api.Descriptor;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -46,7 +61,13 @@ import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.ServiceTracker;
 
@@ -89,10 +110,13 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
     private BundleContext syscontext;
     private MBeanServerConnection mbeanServer;
     private EmbeddedContainerConfiguration configuration;
+    // Uninstalled bundles that may still be in use, refreshed together
+    private final Set<Bundle> refreshPending = Collections.synchronizedSet(new LinkedHashSet<Bundle>());
 
     @Override
     public ProtocolDescription getDefaultProtocol() {
-        return new ProtocolDescription("jmx-osgi");
+        // Batched test execution runs over JMX
+        return new ProtocolDescription(BatchMethodExecutor.isEnabled() ? "jmx-osgi" : LocalOSGiProtocol.NAME);
     }
 
     @Override
@@ -143,19 +167,20 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
     @Override
     public long installBundle(Archive<?> archive, boolean start) throws Exception {
         try {
-            ZipExporter exporter = archive.as(ZipExporter.class);
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            exporter.exportTo(baos);
-
             String location = archive.getName();
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(baos.toByteArray());
+            InputStream inputStream = DeploymentExporter.getInstance().export(archive);
             log.info("Installing bundle: " + location);
 
             Bundle bundle = installBundle(location, inputStream);
 
             if (start) {
-                bundle.start();
+                long startMillis = System.currentTimeMillis();
+                try {
+                    startBundle(bundle);
+                } catch (BundleException ex) {
+                    recordFailFast(bundle, startMillis, 1, TimeUnit.MINUTES);
+                    throw ex;
+                }
 
                 awaitBundleActive(bundle.getSymbolicName(), syscontext, 1, TimeUnit.MINUTES);
             }
@@ -172,30 +197,198 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         return syscontext.installBundle(location, inputStream);
     }
 
+    @Override
+    protected int installDependencyBundles(List<MavenBundle> dependencies, File repository) throws Exception {
+        int installed = 0;
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (MavenBundle dependency : dependencies) {
+            String location = getDependencyLocation(dependency.getFile(repository));
+            Bundle bundle = syscontext.getBundle(location);
+            if (bundle == null) {
+                log.info("Installing dependency bundle: " + location);
+                bundle = syscontext.installBundle(location);
+                installed++;
+            }
+            bundles.add(bundle);
+        }
+
+        FrameworkWiring frameworkWiring = syscontext.getBundle().adapt(FrameworkWiring.class);
+        long startMillis = System.currentTimeMillis();
+        frameworkWiring.resolveBundles(bundles);
+        recordResolve(bundles, bundles.size(), startMillis);
+        for (Bundle bundle : bundles) {
+            BundleRevision revision = bundle.adapt(BundleRevision.class);
+            boolean fragment = revision != null && (revision.getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+            if (!fragment && bundle.getState() != Bundle.ACTIVE) {
+                startBundle(bundle);
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Get the install location of a dependency bundle file. The framework copies a
+     * <code>file:</code> location into its bundle storage, frameworks that support
+     * <code>reference:</code> locations can read the file in place instead.
+     */
+    protected String getDependencyLocation(File file) {
+        return file.toURI().toString();
+    }
+
     protected void uninstallBundle(Bundle bundle) throws BundleException {
         bundle.uninstall();
+        refreshPending.add(bundle);
     }
 
     @Override
     public void uninstallBundle(long bundleId) throws Exception {
         Bundle bundle = syscontext.getBundle(bundleId);
 
-        bundle.uninstall();
+        uninstallBundle(bundle);
     }
 
     @Override
     public void startBundle(String symbolicName, String version) throws Exception {
+        awaitStarted();
+        startBundle(getBundle(symbolicName, version));
+    }
+
+    @Override
+    public void startBundles(List<DeploymentMetaData> deployments) throws Exception {
+        awaitStarted();
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (DeploymentMetaData metadata : deployments) {
+            bundles.add(getBundle(metadata.getSymbolicName(), metadata.getVersion()));
+        }
+
+        // Resolve the whole batch at once, bundles that cannot be resolved fail on start
+        FrameworkWiring frameworkWiring = syscontext.getBundle().adapt(FrameworkWiring.class);
+        long startMillis = System.currentTimeMillis();
+        frameworkWiring.resolveBundles(bundles);
+        recordResolve(bundles, bundles.size(), startMillis);
+
+        Map<Bundle, Set<Bundle>> dependencies = new LinkedHashMap<Bundle, Set<Bundle>>();
+        for (Bundle bundle : bundles) {
+            Set<Bundle> providers = new HashSet<Bundle>();
+            BundleWiring wiring = bundle.adapt(BundleWiring.class);
+            if (wiring != null) {
+                for (BundleWire wire : wiring.getRequiredWires(null)) {
+                    Bundle provider = wire.getProviderWiring().getBundle();
+                    if (provider != bundle && bundles.contains(provider))
+                        providers.add(provider);
+                }
+            }
+            dependencies.put(bundle, providers);
+        }
+
+        for (List<Bundle> group : getStartOrder(dependencies)) {
+            startBundlesConcurrently(group);
+        }
+    }
+
+    private void startBundlesConcurrently(List<Bundle> bundles) throws Exception {
+        if (bundles.size() == 1) {
+            startBundle(bundles.get(0));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(bundles.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Bundle bundle : bundles) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startBundle(bundle);
+                        return null;
+                    }
+                }));
+            }
+            Exception failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Bundle getBundle(String symbolicName, String version) {
         for (Bundle bundle : syscontext.getBundles()) {
             if (bundle.getSymbolicName().equals(symbolicName) && bundle.getVersion().toString().equals(version)) {
-                bundle.start();
-                return;
+                return bundle;
             }
         }
         throw new IllegalStateException("Bundle '" + symbolicName + ":" + version + "' was not found");
     }
 
+    /**
+     * Resolve and start a bundle. A bundle that cannot be resolved fails with its unresolved requirements.
+     */
+    protected void startBundle(final Bundle bundle) throws BundleException {
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        boolean fragment = revision != null && (revision.getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+        if (bundle.getState() == Bundle.INSTALLED && !fragment) {
+            final List<Throwable> errors = new ArrayList<Throwable>();
+            FrameworkListener listener = new FrameworkListener() {
+                @Override
+                public void frameworkEvent(FrameworkEvent event) {
+                    if (event.getType() == FrameworkEvent.ERROR && bundle.equals(event.getBundle())) {
+                        synchronized (errors) {
+                            errors.add(event.getThrowable());
+                        }
+                    }
+                }
+            };
+            FrameworkWiring frameworkWiring = syscontext.getBundle().adapt(FrameworkWiring.class);
+            syscontext.addFrameworkListener(listener);
+            try {
+                long startMillis = System.currentTimeMillis();
+                boolean resolved = frameworkWiring.resolveBundles(Collections.singleton(bundle));
+                recordResolve(bundle, 1, startMillis);
+                if (!resolved) {
+                    Throwable cause;
+                    synchronized (errors) {
+                        cause = errors.isEmpty() ? null : errors.get(0);
+                    }
+                    String message = "Cannot resolve " + bundle + ", unresolved requirements: " + getUnresolvedRequirements(frameworkWiring, revision);
+                    throw new BundleException(message, BundleException.RESOLVE_ERROR, cause);
+                }
+            } finally {
+                syscontext.removeFrameworkListener(listener);
+            }
+        }
+        bundle.start();
+    }
+
+    private List<String> getUnresolvedRequirements(FrameworkWiring frameworkWiring, BundleRevision revision) {
+        List<String> result = new ArrayList<String>();
+        if (revision != null) {
+            for (Requirement req : revision.getRequirements(null)) {
+                String resolution = req.getDirectives().get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+                if (Namespace.RESOLUTION_OPTIONAL.equals(resolution) || PackageNamespace.RESOLUTION_DYNAMIC.equals(resolution))
+                    continue;
+                if (frameworkWiring.findProviders(req).isEmpty()) {
+                    result.add(req.getNamespace() + req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE));
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
-    public void start() throws LifecycleException {
+    protected void startContainer() throws LifecycleException {
         log.debug("Starting OSGi embedded container: " + getClass().getName());
         try {
             syscontext = startFramework();
@@ -203,18 +396,24 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
             throw new LifecycleException("Cannot start embedded OSGi Framework", ex);
         }
 
-        try {
-            installArquillianBundle();
-        } catch (Exception e) {
-            log.error("Can't deploy " + ArquillianBundleGenerator.BUNDLE_NAME);
-        }
-
         log.info("Started OSGi embedded container: " + getClass().getName());
     }
 
     protected void awaitBundleActive(final String symbolicName, BundleContext syscontext, long timeout, TimeUnit unit) throws LifecycleException {
         final CountDownLatch latch = new CountDownLatch(1);
         final AtomicReference<Bundle> bundleRef = new AtomicReference<Bundle>();
+        final AtomicReference<Throwable> errorRef = new AtomicReference<Throwable>();
+        // An activation error is reported as framework event and the bundle would never become active
+        FrameworkListener listener = new FrameworkListener() {
+            @Override
+            public void frameworkEvent(FrameworkEvent event) {
+                Bundle bundle = event.getBundle();
+                if (event.getType() == FrameworkEvent.ERROR && bundle != null && symbolicName.equals(bundle.getSymbolicName())) {
+                    errorRef.compareAndSet(null, event.getThrowable());
+                    latch.countDown();
+                }
+            }
+        };
         int states = Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE;
         BundleTracker<Bundle> tracker = new BundleTracker<Bundle>(syscontext, states, null) {
             @Override
@@ -234,6 +433,8 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
                 }
             }
         };
+        long startMillis = System.currentTimeMillis();
+        syscontext.addFrameworkListener(listener);
         tracker.open();
 
         try {
@@ -246,9 +447,15 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
                 } catch (InterruptedException ex) {
                     throw new LifecycleException("Framework startup interupted", ex);
                 }
+                Throwable error = errorRef.get();
+                if (error != null) {
+                    recordFailFast(symbolicName, startMillis, timeout, unit);
+                    throw new LifecycleException("The bundle " + symbolicName + " can't be started", error);
+                }
             }
         } finally {
             tracker.close();
+            syscontext.removeFrameworkListener(listener);
         }
     }
 
@@ -285,27 +492,54 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
 
     @Override
     public void refresh() throws Exception {
+        awaitStarted();
         FrameworkWiring frameworkWiring = syscontext.getBundle().adapt(FrameworkWiring.class);
 
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        // Bundles that are no longer in use were already removed by the framework
+        Set<Bundle> bundles;
+        synchronized (refreshPending) {
+            bundles = new LinkedHashSet<Bundle>(refreshPending);
+            refreshPending.clear();
+        }
+        bundles.retainAll(frameworkWiring.getRemovalPendingBundles());
+        if (!bundles.isEmpty()) {
+            refreshBundles(bundles);
+        }
+    }
 
-        frameworkWiring.refreshBundles(null, new FrameworkListener() {
+    private void refreshBundles(Collection<Bundle> bundles) throws Exception {
+        FrameworkWiring frameworkWiring = syscontext.getBundle().adapt(FrameworkWiring.class);
+        int closure = frameworkWiring.getDependencyClosure(bundles).size();
+        log.info("Refreshing " + bundles + ", dependency closure: " + closure + " bundles");
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final AtomicReference<Throwable> errorRef = new AtomicReference<Throwable>();
+        long startMillis = System.currentTimeMillis();
+        frameworkWiring.refreshBundles(bundles, new FrameworkListener() {
 
             @Override
             public void frameworkEvent(FrameworkEvent frameworkEvent) {
+                if (frameworkEvent.getType() == FrameworkEvent.ERROR) {
+                    errorRef.compareAndSet(null, frameworkEvent.getThrowable());
+                }
                 countDownLatch.countDown();
             }
         });
 
-        try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        if (!countDownLatch.await(getRefreshTimeout(), TimeUnit.SECONDS))
+            throw new TimeoutException("Refresh of " + bundles + " did not complete within " + getRefreshTimeout() + "s");
+        if (errorRef.get() != null)
+            throw new BundleException("Cannot refresh " + bundles, errorRef.get());
+
+        log.debug("Refreshed " + closure + " bundles in " + (System.currentTimeMillis() - startMillis) + "ms");
     }
 
     @Override
     public void stop() throws LifecycleException {
+        awaitStartedBeforeStop();
+        // Parked bundles go away with the framework
+        evictSharedDeployments();
+        reportResolveTime();
         try {
             stopFramework();
             framework.waitForStop(3000);
@@ -321,18 +555,51 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
     @Override
     public ProtocolMetaData deploy(final Archive<?> archive) throws DeploymentException {
         try {
-            installBundle(archive, false);
+            awaitStarted();
+            if (isRetainDeployments()) {
+                deploySharedBundle(archive, DeploymentMetaData.get(archive).getSymbolicName());
+            } else {
+                installBundle(archive, false);
+            }
         } catch (Exception e) {
             throw new DeploymentException("Can't deploy archive", e);
         }
 
-        return new ProtocolMetaData().addContext(new JMXContext(mbeanServer));
+        return new ProtocolMetaData().addContext(new LocalOSGiContext(syscontext)).addContext(new JMXContext(mbeanServer));
+    }
+
+    @Override
+    protected boolean isBundleInstalled(long bundleId) {
+        Bundle bundle = syscontext.getBundle(bundleId);
+        return bundle != null && bundle.getState() != Bundle.UNINSTALLED;
+    }
+
+    @Override
+    protected void updateBundle(Archive<?> archive, long bundleId) throws Exception {
+        syscontext.getBundle(bundleId).update(DeploymentExporter.getInstance().export(archive));
+    }
+
+    @Override
+    protected void refreshBundle(long bundleId) throws Exception {
+        refreshBundles(Collections.singleton(syscontext.getBundle(bundleId)));
     }
 
     @Override
     public void undeploy(Archive<?> archive) throws DeploymentException {
+        try {
+            awaitStarted();
+        } catch (LifecycleException ex) {
+            throw new DeploymentException("Cannot undeploy: " + archive, ex);
+        }
         try {
             String location = archive.getName();
+            if (isRetainDeployments()) {
+                SharedBundle sharedBundle = getSharedDeployments().release(archive);
+                if (sharedBundle != null) {
+                    releaseSharedBundle(sharedBundle);
+                    return;
+                }
+            }
             log.info("Uninstalling bundle: " + location);
 
             Bundle bundle = syscontext.getBundle(location);
@@ -344,6 +611,17 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         }
     }
 
+    // A bundle that is no longer referenced is stopped, so that its services do not leak into other tests
+    private void releaseSharedBundle(SharedBundle sharedBundle) throws BundleException {
+        Bundle bundle = syscontext.getBundle(sharedBundle.getBundleId());
+        if (bundle != null && sharedBundle.isParked()) {
+            log.info("Parking bundle: " + sharedBundle);
+            if ((bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE)) != 0) {
+                bundle.stop();
+            }
+        }
+    }
+
     @Override
     public void deploy(Descriptor descriptor) throws DeploymentException {
         throw new UnsupportedOperationException("OSGi does not support Descriptor deployment");
@@ -0,0 +1,111 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * A bundle in a Maven repository, identified by <code>groupId:artifactId[:type[:classifier]]:version</code>.
+ *
+ * Dependency bundles are installed from the artifact in the local repository or from its
+ * <code>mvn:</code> URL, which the framework resolves.
+ */
+public final class MavenBundle {
+
+    private final String groupId;
+    private final String artifactId;
+    private final String type;
+    private final String classifier;
+    private final String version;
+
+    MavenBundle(String groupId, String artifactId, String type, String classifier, String version) {
+        this.groupId = groupId;
+        this.artifactId = artifactId;
+        this.type = type;
+        this.classifier = classifier;
+        this.version = version;
+    }
+
+    /**
+     * Parse Maven coordinates.
+     *
+     * @throws IllegalArgumentException If the coordinates are not valid
+     */
+    public static MavenBundle parse(String coordinates) {
+        String[] parts = coordinates.trim().split(":");
+        for (String part : parts) {
+            if (part.isEmpty())
+                throw new IllegalArgumentException("Invalid Maven coordinates: " + coordinates);
+        }
+        switch (parts.length) {
+            case 3:
+                return new MavenBundle(parts[0], parts[1], "jar", null, parts[2]);
+            case 4:
+                return new MavenBundle(parts[0], parts[1], parts[2], null, parts[3]);
+            case 5:
+                return new MavenBundle(parts[0], parts[1], parts[2], parts[3], parts[4]);
+            default:
+                throw new IllegalArgumentException("Invalid Maven coordinates: " + coordinates);
+        }
+    }
+
+    /**
+     * Get the local repository, which is <code>${maven.repo.local}</code> or <code>~/.m2/repository</code> by default.
+     */
+    public static File getLocalRepository(String localRepository) {
+        if (localRepository == null) {
+            localRepository = System.getProperty("maven.repo.local");
+        }
+        if (localRepository == null) {
+            localRepository = System.getProperty("user.home") + File.separator + ".m2" + File.separator + "repository";
+        }
+        return new File(localRepository).getAbsoluteFile();
+    }
+
+    /**
+     * Get the artifact file in a repository.
+     *
+     * @throws FileNotFoundException If the artifact is not in the repository
+     */
+    public File getFile(File repository) throws FileNotFoundException {
+        File dir = new File(repository, groupId.replace('.', File.separatorChar) + File.separator + artifactId + File.separator + version);
+        String name = artifactId + "-" + version + (classifier != null ? "-" + classifier : "") + "." + type;
+        File file = new File(dir, name);
+        if (!file.isFile())
+            throw new FileNotFoundException("Bundle " + this + " not found in repository: " + file);
+        return file;
+    }
+
+    /**
+     * Get the <code>mvn:</code> URL of the artifact, as understood by Pax URL.
+     */
+    public String getMavenURL() {
+        StringBuilder builder = new StringBuilder("mvn:").append(groupId).append('/').append(artifactId).append('/').append(version);
+        if (classifier != null) {
+            builder.append('/').append(type).append('/').append(classifier);
+        } else if (!"jar".equals(type)) {
+            builder.append('/').append(type);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return groupId + ":" + artifactId + ":" + (classifier != null ? type + ":" + classifier + ":" : "jar".equals(type) ? "" : type + ":") + version;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.arquillian.protocol.osgi.HeaderClause;
+import org.jboss.shrinkwrap.api.Archive;
+import org.osgi.framework.Constants;
+
+/**
+ * The reference counted bundles of a container that are shared by identical deployments.
+ *
+ * Deployments are identified by the content hash of their archive. A deployment whose hash
+ * matches an installed bundle reuses that bundle. A bundle that is no longer referenced stays
+ * installed as a parked bundle, so that a later test class can reuse it. Parked bundles are
+ * evicted when a different deployment with the same symbolic name is installed and when the
+ * container stops. With in-place updates, such a deployment updates the parked bundle instead.
+ * The number of parked bundles is limited, the least recently used ones are evicted first.
+ *
+ * A parked bundle still exports its packages, for example the test class package. It is
+ * therefore also evicted when a deployment exports or imports one of these packages, so that
+ * the deployment cannot be wired to the parked bundle.
+ */
+public final class SharedDeployments {
+
+    // Keyed by content hash, least recently used first
+    private final Map<String, SharedBundle> bundles = new LinkedHashMap<String, SharedBundle>(16, 0.75f, true);
+    // Content hashes of deployed archives, keyed by archive id
+    private final Map<String, String> deployed = new LinkedHashMap<String, String>();
+    // Content hashes of archives that are being deployed, keyed by archive id
+    private final Map<String, String> digests = new LinkedHashMap<String, String>();
+    private int reuseCount;
+
+    /**
+     * Get the bundle that was installed for an archive with the same content.
+     *
+     * @return The shared bundle or null
+     */
+    public synchronized SharedBundle get(Archive<?> archive) throws IOException {
+        return bundles.get(getHash(archive));
+    }
+
+    /**
+     * Reference a shared bundle for a deployment.
+     */
+    public synchronized void acquire(Archive<?> archive, SharedBundle bundle) {
+        bundle.references++;
+        digests.remove(archive.getId());
+        deployed.put(archive.getId(), bundle.hash);
+        reuseCount++;
+    }
+
+    /**
+     * Register the bundle that was installed for a deployment.
+     */
+    public synchronized SharedBundle register(Archive<?> archive, long bundleId, String symbolicName) throws IOException {
+        return register(archive, bundleId, symbolicName, archive.getName());
+    }
+
+    /**
+     * Get a parked bundle that can be updated with the content of a deployment.
+     *
+     * @return The most recently used parked bundle with the given symbolic name or null
+     */
+    public synchronized SharedBundle getParked(String symbolicName) {
+        SharedBundle result = null;
+        for (SharedBundle bundle : bundles.values()) {
+            if (bundle.isParked() && bundle.symbolicName != null && bundle.symbolicName.equals(symbolicName)) {
+                result = bundle;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Register a parked bundle that was updated with the content of a deployment.
+     */
+    public synchronized SharedBundle update(Archive<?> archive, SharedBundle parked) throws IOException {
+        bundles.remove(parked.hash);
+        return register(archive, parked.bundleId, parked.symbolicName, parked.location);
+    }
+
+    private SharedBundle register(Archive<?> archive, long bundleId, String symbolicName, String location) throws IOException {
+        String hash = getHash(archive);
+        SharedBundle bundle = new SharedBundle(hash, bundleId, symbolicName, location, getPackages(archive, Constants.EXPORT_PACKAGE));
+        bundle.references = 1;
+        bundles.put(hash, bundle);
+        digests.remove(archive.getId());
+        deployed.put(archive.getId(), hash);
+        return bundle;
+    }
+
+    /**
+     * Release the reference of a deployment.
+     *
+     * @return The shared bundle or null if the archive was not deployed as shared bundle
+     */
+    public synchronized SharedBundle release(Archive<?> archive) {
+        digests.remove(archive.getId());
+        String hash = deployed.remove(archive.getId());
+        SharedBundle bundle = hash != null ? bundles.get(hash) : null;
+        if (bundle != null && bundle.references > 0) {
+            bundle.references--;
+        }
+        return bundle;
+    }
+
+    /**
+     * Remove the parked bundles that conflict with a deployment.
+     *
+     * @return The bundles with the same symbolic name or location and the bundles that export
+     *         a package the deployment exports or imports, least recently used first. They must be uninstalled.
+     */
+    public synchronized List<SharedBundle> evict(Archive<?> archive, String symbolicName) {
+        Set<String> packages = new HashSet<String>(getPackages(archive, Constants.EXPORT_PACKAGE));
+        packages.addAll(getPackages(archive, Constants.IMPORT_PACKAGE));
+        return evict(symbolicName, archive.getName(), packages);
+    }
+
+    private List<SharedBundle> evict(String symbolicName, String location, Set<String> packages) {
+        List<SharedBundle> result = new ArrayList<SharedBundle>();
+        Iterator<SharedBundle> iterator = bundles.values().iterator();
+        while (iterator.hasNext()) {
+            SharedBundle bundle = iterator.next();
+            boolean all = symbolicName == null && location == null;
+            boolean conflict = all || (symbolicName != null && symbolicName.equals(bundle.symbolicName)) || bundle.location.equals(location)
+                || !Collections.disjoint(bundle.exports, packages);
+            if (bundle.isParked() && conflict) {
+                result.add(bundle);
+                iterator.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove the least recently used parked bundles that exceed a limit.
+     *
+     * @param maxParked The number of parked bundles to keep
+     * @return The bundles that must be uninstalled
+     */
+    public synchronized List<SharedBundle> evictEldest(int maxParked) {
+        List<SharedBundle> result = new ArrayList<SharedBundle>();
+        int parked = 0;
+        for (SharedBundle bundle : bundles.values()) {
+            if (bundle.isParked()) {
+                parked++;
+            }
+        }
+        Iterator<SharedBundle> iterator = bundles.values().iterator();
+        while (parked > maxParked && iterator.hasNext()) {
+            SharedBundle bundle = iterator.next();
+            if (bundle.isParked()) {
+                result.add(bundle);
+                iterator.remove();
+                parked--;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all parked bundles.
+     *
+     * @return The bundles that must be uninstalled
+     */
+    public synchronized List<SharedBundle> evictAll() {
+        return evict(null, null, Collections.<String> emptySet());
+    }
+
+    /**
+     * Get the number of deployments that reused an installed bundle.
+     */
+    public synchronized int getReuseCount() {
+        return reuseCount;
+    }
+
+    private String getHash(Archive<?> archive) throws IOException {
+        String hash = digests.get(archive.getId());
+        if (hash == null) {
+            hash = new ArchiveDigest().update(archive).getValue();
+            digests.put(archive.getId(), hash);
+        }
+        return hash;
+    }
+
+    private static Set<String> getPackages(Archive<?> archive, String header) {
+        Set<String> result = new HashSet<String>();
+        Manifest manifest = DeploymentMetaData.get(archive).getManifest();
+        if (manifest != null) {
+            Attributes attributes = manifest.getMainAttributes();
+            for (HeaderClause clause : HeaderClause.parse(attributes.getValue(header))) {
+                result.addAll(clause.getPaths());
+            }
+        }
+        return result;
+    }
+
+    public static final class SharedBundle {
+        private final String hash;
+        private final long bundleId;
+        private final String symbolicName;
+        private final String location;
+        private final Set<String> exports;
+        private volatile int references;
+
+        SharedBundle(String hash, long bundleId, String symbolicName, String location, Set<String> exports) {
+            this.hash = hash;
+            this.bundleId = bundleId;
+            this.symbolicName = symbolicName;
+            this.location = location;
+            this.exports = exports;
+        }
+
+        public long getBundleId() {
+            return bundleId;
+        }
+
+        public String getSymbolicName() {
+            return symbolicName;
+        }
+
+        /**
+         * A parked bundle is installed but not referenced by any deployment.
+         */
+        public boolean isParked() {
+            return references == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + bundleId + "]" + symbolicName + ", references: " + references;
+        }
+    }
+}
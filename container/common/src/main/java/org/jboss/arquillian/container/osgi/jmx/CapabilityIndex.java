@@ -0,0 +1,297 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.jboss.arquillian.protocol.osgi.HeaderClause;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.jmx.framework.BundleStateMBean;
+
+/**
+ * An index of the packages and bundles that are available in a remote framework.
+ *
+ * The index is built with a single {@link BundleStateMBean#listBundles()} call and then kept
+ * up to date from the bundle event notifications of the {@link BundleStateMBean}. It is used
+ * to reject deployments with unsatisfiable requirements before they are transferred.
+ *
+ * The packages of an uninstalled bundle remain wireable until the framework is refreshed,
+ * they are kept in the index until {@link #refreshed(Collection)} is called for the bundle.
+ */
+final class CapabilityIndex implements NotificationListener {
+
+    private final BundleStateMBean bundleStateMBean;
+    // The exported packages and the bundle capability of each bundle, keyed by bundle id
+    private final Map<Long, Capabilities> bundles = new HashMap<Long, Capabilities>();
+    // The versions of the exported packages, keyed by package name
+    private final Map<String, List<Version>> packages = new HashMap<String, List<Version>>();
+    // Uninstalled bundles whose packages remain exported until refresh, keyed by bundle id
+    private final Map<Long, Capabilities> removalPending = new HashMap<Long, Capabilities>();
+
+    CapabilityIndex(BundleStateMBean bundleStateMBean) {
+        this.bundleStateMBean = bundleStateMBean;
+    }
+
+    /**
+     * Build the index from the bundles of the framework.
+     */
+    synchronized void load() throws IOException {
+        bundles.clear();
+        packages.clear();
+        TabularData bundleData = bundleStateMBean.listBundles();
+        for (Object value : bundleData.values()) {
+            add((CompositeData) value);
+        }
+        // Uninstalled bundles are not listed
+        for (Capabilities capabilities : removalPending.values()) {
+            addPackages(capabilities);
+        }
+    }
+
+    /**
+     * Remove the packages of uninstalled bundles that are no longer exported after a refresh.
+     */
+    synchronized void refreshed(Collection<Long> bundleIds) {
+        for (Long bundleId : bundleIds) {
+            Capabilities capabilities = removalPending.remove(bundleId);
+            if (capabilities != null) {
+                removePackages(capabilities);
+            }
+        }
+    }
+
+    /**
+     * Add a bundle that was installed by the container, before its event arrives.
+     */
+    synchronized void add(long bundleId, Manifest manifest) {
+        Attributes attributes = manifest.getMainAttributes();
+        Capabilities capabilities = new Capabilities(getSymbolicName(attributes.getValue(Constants.BUNDLE_SYMBOLICNAME)),
+            attributes.getValue(Constants.BUNDLE_VERSION));
+        addExportHeader(capabilities, attributes.getValue(Constants.EXPORT_PACKAGE));
+        put(bundleId, capabilities);
+    }
+
+    synchronized int size() {
+        return bundles.size();
+    }
+
+    /**
+     * Get the mandatory requirements of a bundle manifest that no bundle in the framework can satisfy.
+     * Packages that the bundle exports itself are satisfied.
+     */
+    synchronized List<String> getUnsatisfiedRequirements(Manifest manifest) {
+        List<String> result = new ArrayList<String>();
+        Attributes attributes = manifest.getMainAttributes();
+
+        List<String> ownPackages = new ArrayList<String>();
+        for (HeaderClause clause : HeaderClause.parse(attributes.getValue(Constants.EXPORT_PACKAGE))) {
+            ownPackages.addAll(clause.getPaths());
+        }
+
+        for (HeaderClause clause : HeaderClause.parse(attributes.getValue(Constants.IMPORT_PACKAGE))) {
+            if (Constants.RESOLUTION_OPTIONAL.equals(clause.getDirective(Constants.RESOLUTION_DIRECTIVE)))
+                continue;
+            String range = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+            VersionRange versionRange = new VersionRange(range != null ? range : "0.0.0");
+            for (String name : clause.getPaths()) {
+                if (!ownPackages.contains(name) && !includes(packages.get(name), versionRange)) {
+                    result.add(range != null ? name + ";version=" + range : name);
+                }
+            }
+        }
+
+        for (HeaderClause clause : HeaderClause.parse(attributes.getValue(Constants.REQUIRE_BUNDLE))) {
+            if (Constants.RESOLUTION_OPTIONAL.equals(clause.getDirective(Constants.RESOLUTION_DIRECTIVE)))
+                continue;
+            String range = clause.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE);
+            VersionRange versionRange = new VersionRange(range != null ? range : "0.0.0");
+            List<Version> versions = new ArrayList<Version>();
+            for (Capabilities capabilities : bundles.values()) {
+                if (clause.getName().equals(capabilities.symbolicName)) {
+                    versions.add(capabilities.version);
+                }
+            }
+            if (!includes(versions, versionRange)) {
+                result.add(Constants.REQUIRE_BUNDLE + ": " + clause);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification.getUserData() instanceof CompositeData))
+            return;
+
+        CompositeData eventData = (CompositeData) notification.getUserData();
+        Long bundleId = (Long) eventData.get(BundleStateMBean.IDENTIFIER);
+        Integer eventType = (Integer) eventData.get(BundleStateMBean.EVENT);
+        if (bundleId == null || eventType == null)
+            return;
+
+        switch (eventType) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.RESOLVED:
+                try {
+                    CompositeData bundleData = bundleStateMBean.getBundle(bundleId);
+                    if (bundleData != null) {
+                        synchronized (this) {
+                            add(bundleData);
+                        }
+                    }
+                } catch (IOException ex) {
+                    JMXDeployableContainer.logger.debug("Cannot update capability index for bundle [" + bundleId + "]", ex);
+                }
+                break;
+            case BundleEvent.UNINSTALLED:
+                synchronized (this) {
+                    // The bundle can no longer be required, its packages can still be imported
+                    Capabilities capabilities = bundles.remove(bundleId);
+                    if (capabilities != null) {
+                        removalPending.put(bundleId, capabilities);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void add(CompositeData bundleData) {
+        Long bundleId = (Long) bundleData.get(BundleStateMBean.IDENTIFIER);
+        Capabilities capabilities = new Capabilities((String) bundleData.get(BundleStateMBean.SYMBOLIC_NAME),
+            (String) bundleData.get(BundleStateMBean.VERSION));
+
+        // Resolved bundles report their exports, installed bundles may still export their declared packages
+        String[] exported = (String[]) bundleData.get(BundleStateMBean.EXPORTED_PACKAGES);
+        if (exported != null && exported.length > 0) {
+            for (String export : exported) {
+                int index = export.indexOf(';');
+                String name = index < 0 ? export : export.substring(0, index);
+                String version = index < 0 ? null : export.substring(index + 1);
+                capabilities.addPackage(name, version);
+            }
+        } else {
+            TabularData headers = (TabularData) bundleData.get(BundleStateMBean.HEADERS);
+            if (headers != null) {
+                for (Object value : headers.values()) {
+                    CompositeData headerData = (CompositeData) value;
+                    if (Constants.EXPORT_PACKAGE.equals(headerData.get(BundleStateMBean.KEY))) {
+                        addExportHeader(capabilities, (String) headerData.get(BundleStateMBean.VALUE));
+                    }
+                }
+            }
+        }
+        put(bundleId, capabilities);
+    }
+
+    private static void addExportHeader(Capabilities capabilities, String header) {
+        for (HeaderClause clause : HeaderClause.parse(header)) {
+            String version = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+            for (String name : clause.getPaths()) {
+                capabilities.addPackage(name, version);
+            }
+        }
+    }
+
+    private void put(Long bundleId, Capabilities capabilities) {
+        Capabilities previous = bundles.put(bundleId, capabilities);
+        if (previous != null) {
+            removePackages(previous);
+        }
+        addPackages(capabilities);
+    }
+
+    private void addPackages(Capabilities capabilities) {
+        for (Map.Entry<String, Version> entry : capabilities.packages) {
+            List<Version> versions = packages.get(entry.getKey());
+            if (versions == null) {
+                versions = new ArrayList<Version>(1);
+                packages.put(entry.getKey(), versions);
+            }
+            versions.add(entry.getValue());
+        }
+    }
+
+    private void removePackages(Capabilities capabilities) {
+        for (Map.Entry<String, Version> entry : capabilities.packages) {
+            List<Version> versions = packages.get(entry.getKey());
+            if (versions != null) {
+                versions.remove(entry.getValue());
+                if (versions.isEmpty()) {
+                    packages.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static boolean includes(List<Version> versions, VersionRange range) {
+        if (versions != null) {
+            for (Version version : versions) {
+                if (range.includes(version)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getSymbolicName(String header) {
+        List<HeaderClause> clauses = HeaderClause.parse(header);
+        return clauses.isEmpty() ? null : clauses.get(0).getName();
+    }
+
+    private static final class Capabilities {
+        private final String symbolicName;
+        private final Version version;
+        private final List<Map.Entry<String, Version>> packages = new ArrayList<Map.Entry<String, Version>>();
+
+        Capabilities(String symbolicName, String version) {
+            this.symbolicName = symbolicName;
+            this.version = parseVersion(version);
+        }
+
+        void addPackage(String name, String version) {
+            packages.add(new SimpleImmutableEntry<String, Version>(name.trim(), parseVersion(version)));
+        }
+
+        private static Version parseVersion(String version) {
+            try {
+                return Version.parseVersion(version != null ? version.trim() : null);
+            } catch (IllegalArgumentException ex) {
+                return Version.emptyVersion;
+            }
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class JMXContainerConfiguration extends CommonContainerConfiguration {
     protected String jmxServiceURL;
     protected String jmxUsername;
     protected String jmxPassword;
+    protected boolean offlineResolveCheck;
+    protected boolean mavenDependencyURLs;
 
     @Override
     public void validate() throws ConfigurationException {
@@ -59,4 +61,29 @@ public class JMXContainerConfiguration extends CommonContainerConfiguration {
         this.jmxPassword = jmxPassword;
     }
 
+    /**
+     * If true, the requirements of a deployment are checked against an index of the framework
+     * capabilities before the deployment is transferred.
+     */
+    public boolean isOfflineResolveCheck() {
+        return offlineResolveCheck;
+    }
+
+    public void setOfflineResolveCheck(boolean offlineResolveCheck) {
+        this.offlineResolveCheck = offlineResolveCheck;
+    }
+
+    /**
+     * If true, dependency bundles are installed from their <code>mvn:</code> URLs, which requires a
+     * framework that resolves such URLs from the same repository, like Karaf. Otherwise they are
+     * installed from the <code>file:</code> URLs of the local repository.
+     */
+    public boolean isMavenDependencyURLs() {
+        return mavenDependencyURLs;
+    }
+
+    public void setMavenDependencyURLs(boolean mavenDependencyURLs) {
+        this.mavenDependencyURLs = mavenDependencyURLs;
+    }
+
 }
@@ -16,16 +16,24 @@
  */
 package org.jboss.arquillian.container.osgi.jmx;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -42,6 +50,9 @@ import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import org.jboss.arquillian.container.osgi.AbstractOSGiApplicationArchiveProcessor;
 import org.jboss.arquillian.container.osgi.CommonDeployableContainer;
+import org.jboss.arquillian.container.osgi.DeploymentExporter;
+import org.jboss.arquillian.container.osgi.MavenBundle;
+import org.jboss.arquillian.container.osgi.SharedDeployments.SharedBundle;
 import org.jboss.arquillian.container.osgi.jmx.http.SimpleHTTPServer;
 import org.jboss.arquillian.container.spi.client.container.DeploymentException;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
@@ -54,19 +65,22 @@ import org.jboss.arquillian.core.api.InstanceProducer;
 import org.jboss.arquillian.core.api.annotation.Inject;
 import org.jboss.arquillian.core.spi.ServiceLoader;
 import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
-import org.jboss.osgi.metadata.OSGiMetaData;
-import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.arquillian.protocol.osgi.HeaderClause;
 import org.jboss.osgi.spi.BundleInfo;
 import org.jboss.osgi.vfs.AbstractVFS;
 import org.jboss.osgi.vfs.VFSUtils;
 import org.jboss.osgi.vfs.VirtualFile;
 import org.jboss.shrinkwrap.api.Archive;
-import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.jboss.shrinkwrap.descriptor.api.Descriptor;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
 import org.osgi.jmx.framework.BundleStateMBean;
 import org.osgi.jmx.framework.FrameworkMBean;
+import org.osgi.jmx.framework.PackageStateMBean;
 import org.osgi.jmx.framework.ServiceStateMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,13 +96,20 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
     protected final Map<String, BundleHandle> deployedBundles = new HashMap<String, BundleHandle>();
     private JMXContainerConfiguration config;
+    // Bundles that were wired to uninstalled bundles, refreshed together
+    private final Set<Long> refreshPending = new LinkedHashSet<Long>();
+    private final Set<Long> uninstalledBundles = new HashSet<Long>();
 
     @Inject
     @ContainerScoped
     protected InstanceProducer<MBeanServerConnection> mbeanServerInstance;
+    private MBeanServerConnection mbeanServer;
     protected FrameworkMBean frameworkMBean;
     protected BundleStateMBean bundleStateMBean;
     protected ServiceStateMBean serviceStateMBean;
+    protected PackageStateMBean packageStateMBean;
+    private CapabilityIndex capabilityIndex;
+    private ObjectName bundleStateName;
 
     protected JMXContainerConfiguration getContainerConfiguration() {
         return config;
@@ -105,15 +126,84 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         this.config = configuration;
     }
 
+    /**
+     * Set the connection obtained by {@link #startContainer()}.
+     * It is published as a container scoped instance when the start completes.
+     */
+    protected void setMBeanServer(MBeanServerConnection mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    @Override
+    protected void containerStarted() throws LifecycleException {
+        mbeanServerInstance.set(mbeanServer);
+        super.containerStarted();
+        if (config.isOfflineResolveCheck()) {
+            loadCapabilityIndex();
+        }
+    }
+
+    private void loadCapabilityIndex() {
+        long startMillis = System.currentTimeMillis();
+        CapabilityIndex index = new CapabilityIndex(bundleStateMBean);
+        try {
+            // Listen for bundle events first, so that no change gets lost while the index is loaded
+            Set<ObjectName> names = mbeanServer.queryNames(ObjectNameFactory.create("osgi.core:type=bundleState,*"), null);
+            if (names.isEmpty())
+                throw new IllegalStateException("BundleStateMBean not registered");
+            ObjectName name = names.iterator().next();
+            mbeanServer.addNotificationListener(name, index, null, null);
+            bundleStateName = name;
+            index.load();
+            capabilityIndex = index;
+            logger.info("Indexed the capabilities of {} bundles in {}ms", index.size(), System.currentTimeMillis() - startMillis);
+        } catch (Exception ex) {
+            logger.warn("Cannot index the framework capabilities, offline resolve check disabled", ex);
+            removeCapabilityIndex(index);
+        }
+    }
+
+    private void removeCapabilityIndex(CapabilityIndex index) {
+        capabilityIndex = null;
+        if (bundleStateName != null) {
+            try {
+                mbeanServer.removeNotificationListener(bundleStateName, index);
+            } catch (Exception ex) {
+                logger.debug("Cannot remove bundle event listener", ex);
+            }
+            bundleStateName = null;
+        }
+    }
+
+    /**
+     * Check the requirements of a deployment against the capability index, so that a deployment
+     * which cannot resolve fails before it is transferred.
+     *
+     * @throws BundleException If a mandatory requirement cannot be satisfied
+     */
+    private void assertResolvable(Archive<?> archive) throws BundleException {
+        Manifest manifest = DeploymentMetaData.get(archive).getManifest();
+        if (manifest == null)
+            return;
+
+        long startMillis = System.currentTimeMillis();
+        List<String> unsatisfied = capabilityIndex.getUnsatisfiedRequirements(manifest);
+        logger.debug("Checked the requirements of {} in {}ms", archive.getName(), System.currentTimeMillis() - startMillis);
+        if (!unsatisfied.isEmpty()) {
+            String message = "Cannot resolve " + archive.getName() + ", unsatisfied requirements: " + unsatisfied;
+            throw new BundleException(message, BundleException.RESOLVE_ERROR);
+        }
+    }
+
     @Override
     public ProtocolMetaData deploy(Archive<?> archive) throws DeploymentException {
         try {
-            Manifest manifest = new Manifest(archive.get("/META-INF/MANIFEST.MF").getAsset().openStream());
-            OSGiMetaData metadata = OSGiMetaDataBuilder.load(manifest);
+            awaitStarted();
+            DeploymentMetaData metadata = DeploymentMetaData.get(archive);
 
-            BundleHandle handle = installBundle(archive);
+            BundleHandle handle = isRetainDeployments() ? deploySharedBundle(archive, metadata) : installBundle(archive);
 
-            deployedBundles.put(metadata.getBundleSymbolicName(), handle);
+            deployedBundles.put(metadata.getSymbolicName(), handle);
 
         } catch (RuntimeException rte) {
             throw rte;
@@ -124,6 +214,36 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         return new ProtocolMetaData().addContext(new JMXContext(mbeanServer));
     }
 
+    private BundleHandle deploySharedBundle(Archive<?> archive, DeploymentMetaData metadata) throws Exception {
+        long bundleId = deploySharedBundle(archive, metadata.getSymbolicName());
+        return new BundleHandle(bundleId, metadata.getSymbolicName(), metadata.getVersion());
+    }
+
+    @Override
+    protected boolean isBundleInstalled(long bundleId) {
+        return isInstalled(bundleId);
+    }
+
+    @Override
+    protected void updateBundle(Archive<?> archive, long bundleId) throws Exception {
+        installBundle(archive, Long.valueOf(bundleId));
+    }
+
+    @Override
+    protected void refreshBundle(long bundleId) throws Exception {
+        refreshBundles(new long[] { bundleId });
+    }
+
+    private boolean isInstalled(long bundleId) {
+        try {
+            String state = bundleStateMBean.getState(bundleId);
+            return state != null && !BundleStateMBean.UNINSTALLED.equals(state);
+        } catch (Exception ex) {
+            // The bundle no longer exists
+            return false;
+        }
+    }
+
     @Override
     public void deploy(Descriptor desc) throws DeploymentException {
         throw new UnsupportedOperationException();
@@ -132,14 +252,37 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     @Override
     public void undeploy(Archive<?> archive) throws DeploymentException {
         try {
-            Manifest manifest = new Manifest(archive.get("/META-INF/MANIFEST.MF").getAsset().openStream());
-            OSGiMetaData metadata = OSGiMetaDataBuilder.load(manifest);
-
-            undeploy(metadata.getBundleSymbolicName());
-
+            awaitStarted();
+        } catch (LifecycleException ex) {
+            throw new DeploymentException("Cannot undeploy: " + archive.getName(), ex);
+        }
+        DeploymentMetaData metadata = DeploymentMetaData.get(archive);
+        if (metadata.getSymbolicName() == null)
+            throw new DeploymentException("Cannot undeploy: " + archive.getName());
+
+        if (isRetainDeployments()) {
+            SharedBundle sharedBundle = getSharedDeployments().release(archive);
+            if (sharedBundle != null) {
+                deployedBundles.remove(metadata.getSymbolicName());
+                releaseSharedBundle(sharedBundle);
+                return;
+            }
         }
-        catch (IOException e) {
-            throw new DeploymentException("Cannot undeploy: " + archive.getName(), e);
+        undeploy(metadata.getSymbolicName());
+    }
+
+    // A bundle that is no longer referenced is stopped, so that its services do not leak into other tests
+    private void releaseSharedBundle(SharedBundle sharedBundle) {
+        if (sharedBundle.isParked() && isInstalled(sharedBundle.getBundleId())) {
+            logger.info("Parking bundle: {}", sharedBundle);
+            try {
+                String state = bundleStateMBean.getState(sharedBundle.getBundleId());
+                if (BundleStateMBean.ACTIVE.equals(state) || BundleStateMBean.STARTING.equals(state)) {
+                    frameworkMBean.stopBundle(sharedBundle.getBundleId());
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot stop parked bundle: " + sharedBundle, ex);
+            }
         }
     }
 
@@ -161,7 +304,7 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
             if (bundleState != null && !bundleState.equals(BundleStateMBean.UNINSTALLED)) {
                 try {
                     long bundleId = handle.getBundleId();
-                    frameworkMBean.uninstallBundle(bundleId);
+                    uninstall(bundleId);
                 } catch (IOException ex) {
                     logger.error("Cannot undeploy: " + symbolicName, ex);
                 }
@@ -169,8 +312,76 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         }
     }
 
+    /**
+     * Uninstall a bundle and remember the bundles that are wired to it.
+     * The dependents can no longer be determined once the bundle is gone.
+     */
+    private void uninstall(long bundleId) throws IOException {
+        long[] importing = bundleStateMBean.getImportingBundles(bundleId);
+        long[] requiring = bundleStateMBean.getRequiringBundles(bundleId);
+        frameworkMBean.uninstallBundle(bundleId);
+        synchronized (refreshPending) {
+            uninstalledBundles.add(bundleId);
+            for (long dependent : importing) {
+                refreshPending.add(dependent);
+            }
+            for (long dependent : requiring) {
+                refreshPending.add(dependent);
+            }
+        }
+    }
+
     @Override
     public void refresh() throws Exception {
+        awaitStarted();
+        final long[] bundleIds;
+        final List<Long> uninstalled;
+        synchronized (refreshPending) {
+            refreshPending.removeAll(uninstalledBundles);
+            bundleIds = toArray(new ArrayList<Long>(refreshPending));
+            uninstalled = new ArrayList<Long>(uninstalledBundles);
+            refreshPending.clear();
+            uninstalledBundles.clear();
+        }
+        // Uninstalled bundles without dependents were already removed by the framework
+        if (bundleIds.length > 0) {
+            refreshBundles(bundleIds);
+        }
+        CapabilityIndex index = capabilityIndex;
+        if (index != null) {
+            index.refreshed(uninstalled);
+        }
+    }
+
+    private void refreshBundles(final long[] bundleIds) throws Exception {
+        logger.info("Refreshing bundles: {}", Arrays.toString(bundleIds));
+        long startMillis = System.currentTimeMillis();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<CompositeData> future;
+        try {
+            future = executor.submit(new Callable<CompositeData>() {
+                @Override
+                public CompositeData call() throws Exception {
+                    return frameworkMBean.refreshBundlesAndWait(bundleIds);
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+
+        CompositeData result;
+        try {
+            result = future.get(getRefreshTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new TimeoutException("Refresh of " + Arrays.toString(bundleIds) + " did not complete within " + getRefreshTimeout() + "s");
+        } catch (ExecutionException ex) {
+            throw new LifecycleException("Cannot refresh " + Arrays.toString(bundleIds), ex.getCause());
+        }
+        if (!Boolean.TRUE.equals(result.get(FrameworkMBean.SUCCESS)))
+            throw new BundleException("Cannot refresh " + Arrays.toString(bundleIds));
+
+        logger.debug("Refreshed {} in {}ms", Arrays.toString(bundleIds), System.currentTimeMillis() - startMillis);
     }
 
     @Override
@@ -181,7 +392,7 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     @Override
     public void uninstallBundle(long bundleId) throws Exception {
         try {
-            frameworkMBean.uninstallBundle(bundleId);
+            uninstall(bundleId);
             logger.info("Bundle '" + bundleId + " was uninstalled");
         } catch (Exception ex) {
             throw new LifecycleException("Cannot uninstall " + bundleId, ex);
@@ -190,6 +401,21 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
     @Override
     public void stop() throws LifecycleException {
+        awaitStartedBeforeStop();
+        reportResolveTime();
+        if (capabilityIndex != null) {
+            removeCapabilityIndex(capabilityIndex);
+        }
+        // Parked bundles would otherwise remain in a remote framework
+        for (SharedBundle parked : evictSharedDeployments()) {
+            try {
+                if (isInstalled(parked.getBundleId())) {
+                    frameworkMBean.uninstallBundle(parked.getBundleId());
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot uninstall parked bundle: " + parked, ex);
+            }
+        }
     }
 
     @Override
@@ -197,7 +423,13 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         BundleHandle bundleHandle = installBundle(archive);
 
         if (start) {
-            startBundle(bundleHandle.getBundleId());
+            long startMillis = System.currentTimeMillis();
+            try {
+                startBundle(bundleHandle.getBundleId());
+            } catch (BundleException ex) {
+                recordFailFast(bundleHandle, startMillis, 30, TimeUnit.SECONDS);
+                throw ex;
+            }
 
             awaitBundleActive(bundleHandle.getBundleId(), 30, TimeUnit.SECONDS);
         }
@@ -206,21 +438,79 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     }
 
     private BundleHandle installBundle(Archive<?> archive) throws BundleException, IOException {
+        return installBundle(archive, null);
+    }
+
+    @Override
+    protected int installDependencyBundles(List<MavenBundle> dependencies, File repository) throws Exception {
+        // The locations of all installed bundles in a single call
+        Map<String, Long> locations = new HashMap<String, Long>();
+        for (Object value : bundleStateMBean.listBundles().values()) {
+            CompositeData bundleType = (CompositeData) value;
+            locations.put((String) bundleType.get(BundleStateMBean.LOCATION), (Long) bundleType.get(BundleStateMBean.IDENTIFIER));
+        }
+
+        int installed = 0;
+        List<Long> bundleIds = new ArrayList<Long>();
+        for (MavenBundle dependency : dependencies) {
+            URL fileURL = config.isMavenDependencyURLs() ? null : dependency.getFile(repository).toURI().toURL();
+            String location = fileURL != null ? fileURL.toExternalForm() : dependency.getMavenURL();
+            Long bundleId = locations.get(location);
+            if (bundleId == null) {
+                logger.info("Installing dependency bundle: {}", location);
+                if (fileURL != null) {
+                    // A remote framework gets the file served over HTTP
+                    bundleId = installBundle(location, fileURL, null).getBundleId();
+                } else {
+                    bundleId = frameworkMBean.installBundle(location);
+                }
+                locations.put(location, bundleId);
+                installed++;
+            }
+            bundleIds.add(bundleId);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        frameworkMBean.resolveBundles(toArray(bundleIds));
+        recordResolve(bundleIds, bundleIds.size(), startMillis);
+        for (Long bundleId : bundleIds) {
+            if (!bundleStateMBean.isFragment(bundleId) && !BundleStateMBean.ACTIVE.equals(bundleStateMBean.getState(bundleId))) {
+                startBundle(bundleId);
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Install an archive, or update the bundle with the given id if it is not null.
+     */
+    private BundleHandle installBundle(Archive<?> archive, Long updateId) throws BundleException, IOException {
+        CapabilityIndex index = capabilityIndex;
+        if (index != null) {
+            assertResolvable(archive);
+        }
         VirtualFile virtualFile = toVirtualFile(archive);
+        BundleHandle handle;
         try {
-            return installBundle(archive.getName(), virtualFile);
+            handle = installBundle(archive.getName(), virtualFile, updateId);
         } finally {
             VFSUtils.safeClose(virtualFile);
         }
+        // Later deployments of the test class may depend on this one, its bundle event may still be on the way
+        Manifest manifest = DeploymentMetaData.get(archive).getManifest();
+        if (index != null && manifest != null) {
+            index.add(handle.getBundleId(), manifest);
+        }
+        return handle;
     }
 
-    private BundleHandle installBundle(String location, VirtualFile virtualFile) throws BundleException, IOException {
+    private BundleHandle installBundle(String location, VirtualFile virtualFile, Long updateId) throws BundleException, IOException {
         BundleInfo info = BundleInfo.createBundleInfo(virtualFile);
         URL streamURL = info.getRoot().getStreamURL();
-        return installBundle(location, streamURL);
+        return installBundle(location, streamURL, updateId);
     }
 
-    private BundleHandle installBundle(String location, URL streamURL) throws BundleException, IOException {
+    private BundleHandle installBundle(String location, URL streamURL, Long updateId) throws BundleException, IOException {
         URL serverUrl = streamURL;
 
         // Adapt URL to remote system by serving over HTTP
@@ -232,7 +522,13 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         }
 
         try {
-            long bundleId = frameworkMBean.installBundleFromURL(location, serverUrl.toExternalForm());
+            long bundleId;
+            if (updateId != null) {
+                bundleId = updateId;
+                frameworkMBean.updateBundleFromURL(bundleId, serverUrl.toExternalForm());
+            } else {
+                bundleId = frameworkMBean.installBundleFromURL(location, serverUrl.toExternalForm());
+            }
             String symbolicName = bundleStateMBean.getSymbolicName(bundleId);
             String version = bundleStateMBean.getVersion(bundleId);
             return new BundleHandle(bundleId, symbolicName, version);
@@ -262,8 +558,7 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     }
 
     private VirtualFile toVirtualFile(Archive<?> archive) throws IOException {
-        ZipExporter exporter = archive.as(ZipExporter.class);
-        return AbstractVFS.toVirtualFile(archive.getName(), exporter.exportAsInputStream());
+        return AbstractVFS.toVirtualFile(archive.getName(), DeploymentExporter.getInstance().export(archive));
     }
 
     protected void awaitBeginningStartLevel(final Integer beginningStartLevel, long timeout, TimeUnit unit) throws IOException, TimeoutException,
@@ -304,9 +599,10 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     }
 
     protected void awaitBundleActive(long bundleId, long timeout, TimeUnit unit) throws IOException, TimeoutException,
-        InterruptedException {
+        InterruptedException, BundleException {
 
-        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        long startMillis = System.currentTimeMillis();
+        long timeoutMillis = startMillis + unit.toMillis(timeout);
 
         String bundleState = null;
 
@@ -314,9 +610,16 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
             bundleState = bundleStateMBean.getState(bundleId);
             if (BundleStateMBean.ACTIVE.equals(bundleState)) {
                 return;
-            } else {
-                Thread.sleep(500);
+            } else if (BundleStateMBean.INSTALLED.equals(bundleState)) {
+                // A bundle that cannot resolve will never become active
+                try {
+                    assertBundleResolved(bundleId);
+                } catch (BundleException ex) {
+                    recordFailFast("[" + bundleId + "]", startMillis, timeout, unit);
+                    throw ex;
+                }
             }
+            Thread.sleep(500);
         }
         throw new TimeoutException("Arquillian bundle [" + bundleId + "] not started: " + bundleState);
     }
@@ -360,6 +663,23 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         return connector.getMBeanServerConnection();
     }
 
+    /**
+     * Get the PackageStateMBean if the framework provides one.
+     * Without it, bundles that cannot be resolved are reported without their unsatisfied imports.
+     *
+     * @return The MBean proxy or null
+     */
+    protected PackageStateMBean getPackageStateMBean(MBeanServerConnection mbeanServer) {
+        // The MBean is registered together with the other OSGi MBeans, there is no need to wait long
+        ObjectName oname = ObjectNameFactory.create("osgi.core:type=packageState,*");
+        try {
+            return getMBeanProxy(mbeanServer, oname, PackageStateMBean.class, 5, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            logger.warn("No PackageStateMBean, unresolved imports are not reported");
+            return null;
+        }
+    }
+
     protected <U> U getMBeanProxy(final MBeanServerConnection mbeanServer, final ObjectName oname, final Class<U> type,
         final long timeout, final TimeUnit unit) throws TimeoutException {
 
@@ -394,6 +714,76 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
     @Override
     public void startBundle(String symbolicName, String version) throws Exception {
+        awaitStarted();
+        startBundle(getDeployedBundle(symbolicName, version).getBundleId());
+    }
+
+    @Override
+    public void startBundles(List<DeploymentMetaData> deployments) throws Exception {
+        awaitStarted();
+        List<Long> bundleIds = new ArrayList<Long>();
+        for (DeploymentMetaData metadata : deployments) {
+            bundleIds.add(getDeployedBundle(metadata.getSymbolicName(), metadata.getVersion()).getBundleId());
+        }
+
+        // Resolve the whole batch at once, bundles that cannot be resolved fail on start
+        long startMillis = System.currentTimeMillis();
+        frameworkMBean.resolveBundles(toArray(bundleIds));
+        recordResolve(bundleIds, bundleIds.size(), startMillis);
+
+        for (List<Long> group : getStartOrder(getDependencies(bundleIds))) {
+            for (Long bundleId : group) {
+                assertBundleResolved(bundleId);
+            }
+            CompositeData result = frameworkMBean.startBundles(toArray(group));
+            if (!Boolean.TRUE.equals(result.get(FrameworkMBean.SUCCESS))) {
+                Object bundleId = result.get(FrameworkMBean.BUNDLE_IN_ERROR);
+                throw new BundleException("Cannot start bundle [" + bundleId + "]: " + result.get(FrameworkMBean.ERROR));
+            }
+        }
+    }
+
+    private Map<Long, Set<Long>> getDependencies(List<Long> bundleIds) throws IOException {
+        Map<Long, Set<Long>> result = new LinkedHashMap<Long, Set<Long>>();
+        for (Long bundleId : bundleIds) {
+            Set<Long> providers = new HashSet<Long>();
+            for (long provider : bundleStateMBean.getRequiredBundles(bundleId)) {
+                providers.add(provider);
+            }
+            result.put(bundleId, providers);
+        }
+
+        // Package wirings of the whole framework in a single call
+        if (packageStateMBean != null) {
+            for (Object value : packageStateMBean.listPackages().values()) {
+                CompositeData packageType = (CompositeData) value;
+                Long[] exporters = (Long[]) packageType.get(PackageStateMBean.EXPORTING_BUNDLES);
+                Long[] importers = (Long[]) packageType.get(PackageStateMBean.IMPORTING_BUNDLES);
+                for (Long importer : importers) {
+                    Set<Long> providers = result.get(importer);
+                    if (providers != null) {
+                        providers.addAll(Arrays.asList(exporters));
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Set<Long>> entry : result.entrySet()) {
+            entry.getValue().remove(entry.getKey());
+            entry.getValue().retainAll(result.keySet());
+        }
+        return result;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private BundleHandle getDeployedBundle(String symbolicName, String version) throws Exception {
         BundleHandle bHandle = this.deployedBundles.get(symbolicName);
         if ((bHandle == null) || !bHandle.getSymbolicName().equals(symbolicName) || !bHandle.getVersion().equals(version)) {
             bHandle = getBundle(symbolicName, version);
@@ -401,14 +791,81 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
                 throw new IllegalStateException("Bundle '" + symbolicName + ":" + version + "' was not found");
             }
         }
-
-        startBundle(bHandle.getBundleId());
+        return bHandle;
     }
 
     public void startBundle(long bundleId) throws Exception {
+        assertBundleResolved(bundleId);
         frameworkMBean.startBundle(bundleId);
     }
 
+    /**
+     * Resolve an installed bundle, so that a bundle which cannot be started fails with its
+     * missing imports instead of never becoming active.
+     *
+     * @throws BundleException If the bundle cannot be resolved
+     */
+    protected void assertBundleResolved(long bundleId) throws IOException, BundleException {
+        if (!BundleStateMBean.INSTALLED.equals(bundleStateMBean.getState(bundleId)))
+            return;
+
+        long startMillis = System.currentTimeMillis();
+        boolean resolved = frameworkMBean.resolveBundle(bundleId);
+        recordResolve("[" + bundleId + "]", 1, startMillis);
+        if (!resolved) {
+            List<String> missing = getMissingImports(bundleId);
+            String message = "Cannot resolve bundle [" + bundleId + "]" + (missing.isEmpty() ? "" : ", missing imports: " + missing);
+            throw new BundleException(message, BundleException.RESOLVE_ERROR);
+        }
+    }
+
+    private List<String> getMissingImports(long bundleId) throws IOException {
+        List<String> result = new ArrayList<String>();
+        String importHeader = getHeader(bundleId, Constants.IMPORT_PACKAGE);
+        if (packageStateMBean == null || importHeader == null)
+            return result;
+
+        Map<String, List<Version>> exported = new HashMap<String, List<Version>>();
+        for (Object value : packageStateMBean.listPackages().values()) {
+            CompositeData packageType = (CompositeData) value;
+            String name = (String) packageType.get(PackageStateMBean.NAME);
+            List<Version> versions = exported.get(name);
+            if (versions == null) {
+                versions = new ArrayList<Version>();
+                exported.put(name, versions);
+            }
+            versions.add(Version.parseVersion((String) packageType.get(PackageStateMBean.VERSION)));
+        }
+
+        for (HeaderClause clause : HeaderClause.parse(importHeader)) {
+            if (Constants.RESOLUTION_OPTIONAL.equals(clause.getDirective(Constants.RESOLUTION_DIRECTIVE)))
+                continue;
+            String range = clause.getAttribute(Constants.VERSION_ATTRIBUTE);
+            VersionRange versionRange = new VersionRange(range != null ? range : "0.0.0");
+            for (String name : clause.getPaths()) {
+                boolean found = false;
+                List<Version> versions = exported.get(name);
+                for (int i = 0; !found && versions != null && i < versions.size(); i++) {
+                    found = versionRange.includes(versions.get(i));
+                }
+                if (!found) {
+                    result.add(range != null ? name + ";version=" + range : name);
+                }
+            }
+        }
+        return result;
+    }
+
+    private String getHeader(long bundleId, String key) throws IOException {
+        for (Object value : bundleStateMBean.getHeaders(bundleId).values()) {
+            CompositeData headerType = (CompositeData) value;
+            if (key.equals(headerType.get(BundleStateMBean.KEY))) {
+                return (String) headerType.get(BundleStateMBean.VALUE);
+            }
+        }
+        return null;
+    }
+
     protected BundleHandle getBundle(String symbolicName, String version) throws Exception {
         TabularData listBundles = bundleStateMBean.listBundles();
         Iterator<?> iterator = listBundles.values().iterator();
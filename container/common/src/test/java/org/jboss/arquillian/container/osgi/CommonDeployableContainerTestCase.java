@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+
+/**
+ * Test the start and the shared deployments of {@link CommonDeployableContainer}
+ */
+public class CommonDeployableContainerTestCase {
+
+    @Test
+    public void testArquillianBundleNotInstalled() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        try {
+            // No Arquillian bundle can be generated without the service loader
+            container.start();
+            fail("LifecycleException expected");
+        } catch (LifecycleException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(container.operations.isEmpty());
+    }
+
+    @Test
+    public void testReuseUnchanged() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setShareDeployments(true);
+
+        JavaArchive archive = createArchive("a", "1");
+        assertEquals(1, container.deploySharedBundle(archive, "a"));
+        container.getSharedDeployments().release(archive);
+
+        assertEquals(1, container.deploySharedBundle(createArchive("a", "1"), "a"));
+        assertEquals(Arrays.asList("install 1"), container.operations);
+        assertEquals(1, container.getSharedDeployments().getReuseCount());
+    }
+
+    @Test
+    public void testReplaceChanged() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setShareDeployments(true);
+
+        JavaArchive archive = createArchive("a", "1");
+        container.deploySharedBundle(archive, "a");
+        container.getSharedDeployments().release(archive);
+
+        // Without in-place updates the parked bundle is replaced
+        assertEquals(2, container.deploySharedBundle(createArchive("a", "2"), "a"));
+        assertEquals(Arrays.asList("install 1", "uninstall 1", "install 2"), container.operations);
+    }
+
+    @Test
+    public void testUpdateChanged() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setUpdateDeployments(true);
+
+        JavaArchive archive = createArchive("a", "1");
+        container.deploySharedBundle(archive, "a");
+        container.getSharedDeployments().release(archive);
+
+        JavaArchive changed = createArchive("a", "2");
+        assertEquals(1, container.deploySharedBundle(changed, "a"));
+        assertEquals(Arrays.asList("install 1", "update 1", "refresh 1"), container.operations);
+        assertSame(changed, container.installed.get(1L));
+
+        // The updated content is reused as well
+        container.getSharedDeployments().release(changed);
+        assertEquals(1, container.deploySharedBundle(createArchive("a", "2"), "a"));
+        assertEquals(Arrays.asList("install 1", "update 1", "refresh 1"), container.operations);
+    }
+
+    @Test
+    public void testUpdateUnchanged() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setUpdateDeployments(true);
+
+        JavaArchive archive = createArchive("a", "1");
+        container.deploySharedBundle(archive, "a");
+        container.getSharedDeployments().release(archive);
+
+        assertEquals(1, container.deploySharedBundle(createArchive("a", "1"), "a"));
+        assertEquals(Arrays.asList("install 1"), container.operations);
+    }
+
+    @Test
+    public void testUpdateReferenced() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setUpdateDeployments(true);
+
+        // A bundle that is still referenced is not updated
+        container.deploySharedBundle(createArchive("a", "1"), "a");
+        assertEquals(2, container.deploySharedBundle(createArchive("a", "2"), "a"));
+        assertEquals(Arrays.asList("install 1", "install 2"), container.operations);
+    }
+
+    @Test
+    public void testSharedBundleUninstalled() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setShareDeployments(true);
+
+        JavaArchive archive = createArchive("a", "1");
+        container.deploySharedBundle(archive, "a");
+        container.getSharedDeployments().release(archive);
+
+        // A test uninstalled the parked bundle
+        container.installed.clear();
+        assertEquals(2, container.deploySharedBundle(createArchive("a", "1"), "a"));
+        assertEquals(Arrays.asList("install 1", "install 2"), container.operations);
+    }
+
+    @Test
+    public void testMaxParked() throws Exception {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setShareDeployments(true);
+        container.getConfiguration().setMaxParkedDeployments(1);
+
+        JavaArchive a = createArchive("a", "1");
+        JavaArchive b = createArchive("b", "1");
+        container.deploySharedBundle(a, "a");
+        container.deploySharedBundle(b, "b");
+        container.getSharedDeployments().release(a);
+        container.getSharedDeployments().release(b);
+
+        // The least recently used parked bundle is uninstalled
+        assertEquals(3, container.deploySharedBundle(createArchive("c", "1"), "c"));
+        assertEquals(Arrays.asList("install 1", "install 2", "uninstall 1", "install 3"), container.operations);
+        assertEquals(2, container.deploySharedBundle(createArchive("b", "1"), "b"));
+    }
+
+    private static JavaArchive createArchive(final String symbolicName, String content) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, symbolicName + ".jar");
+        archive.add(new StringAsset(content), "content.txt");
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(symbolicName);
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+import org.junit.Test;
+
+/**
+ * Test {@link ContainerStartupGroup}
+ */
+public class ContainerStartupGroupTestCase {
+
+    @Test
+    public void testAddFailures() throws Exception {
+        ContainerStartupGroup group = new ContainerStartupGroup();
+        String first = group.register("Container", failed("first"));
+        group.register("Container", CompletableFuture.<Void> completedFuture(null));
+        String third = group.register("Container", failed("third"));
+        assertEquals("Container#3", third);
+        assertEquals(0, group.getPendingCount());
+
+        LifecycleException failure = new LifecycleException("first");
+        group.addFailures(first, failure);
+        assertEquals(1, failure.getSuppressed().length);
+        assertEquals("Cannot start Container#3", failure.getSuppressed()[0].getMessage());
+        assertEquals("third", failure.getSuppressed()[0].getCause().getMessage());
+
+        // The group has been reported once
+        LifecycleException other = new LifecycleException("third");
+        group.addFailures(third, other);
+        assertEquals(0, other.getSuppressed().length);
+    }
+
+    @Test
+    public void testWaitForPendingStarts() throws Exception {
+        ContainerStartupGroup group = new ContainerStartupGroup();
+        String first = group.register("First", failed("first"));
+        final CompletableFuture<Void> pending = new CompletableFuture<Void>();
+        group.register("Second", pending);
+        assertEquals(1, group.getPendingCount());
+
+        new Thread() {
+            @Override
+            public void run() {
+                pending.completeExceptionally(new IllegalStateException("second"));
+            }
+        }.start();
+        LifecycleException failure = new LifecycleException("first");
+        group.addFailures(first, failure);
+        assertEquals(1, failure.getSuppressed().length);
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        ContainerStartupGroup group = new ContainerStartupGroup();
+        String key = group.register("Container", failed("first"));
+        group.addFailures(key, new LifecycleException("first"));
+        group.remove(key);
+
+        // A new run of the group reports again
+        key = group.register("Container", failed("second"));
+        group.register("Other", failed("other"));
+        LifecycleException failure = new LifecycleException("second");
+        group.addFailures(key, failure);
+        assertEquals(1, failure.getSuppressed().length);
+    }
+
+    private static CompletableFuture<Void> failed(String message) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        future.completeExceptionally(new IllegalStateException(message));
+        return future;
+    }
+}
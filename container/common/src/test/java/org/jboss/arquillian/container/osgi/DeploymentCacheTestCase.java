@@ -0,0 +1,220 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.jar.Manifest;
+
+import org.jboss.arquillian.test.spi.TestClass;
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ArchivePaths;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link DeploymentCache}
+ */
+public class DeploymentCacheTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDisabled() throws Exception {
+        DeploymentCache cache = new DeploymentCache(null, 1024);
+        assertFalse(cache.isEnabled());
+
+        JavaArchive archive = createArchive("test.jar", 1);
+        assertTrue(toByteArray(cache.export(archive)).length > 10000);
+    }
+
+    @Test
+    public void testMissAndHit() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+        assertTrue(cache.isEnabled());
+
+        JavaArchive archive = createArchive("test.jar", 1);
+        String key = cache.getKey(archive, Collections.<Class<?>> singleton(getClass()), getClass());
+        assertNull(cache.lookup(archive, key));
+        byte[] bytes = toByteArray(cache.export(archive));
+        assertTrue(new File(folder.getRoot(), key + ".jar").isFile());
+
+        JavaArchive other = createArchive("test.jar", 1);
+        assertEquals(key, cache.getKey(other, Collections.<Class<?>> singleton(getClass()), getClass()));
+        Manifest manifest = cache.lookup(other, key);
+        assertNotNull(manifest);
+        assertEquals("test.jar", manifest.getMainAttributes().getValue("Bundle-SymbolicName"));
+        assertArrayEquals(bytes, toByteArray(cache.export(other)));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testKeyDependsOnContent() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+        String key = cache.getKey(createArchive("test.jar", 1), Collections.<Class<?>> singleton(getClass()), getClass());
+        assertFalse(key.equals(cache.getKey(createArchive("test.jar", 2), Collections.<Class<?>> singleton(getClass()), getClass())));
+        assertFalse(key.equals(cache.getKey(createArchive("test.jar", 1), Collections.<Class<?>> singleton(Test.class), getClass())));
+    }
+
+    @Test
+    public void testKeyDependsOnOptions() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+        JavaArchive archive = createArchive("test.jar", 1);
+        String key = cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass(), "option=false");
+        assertEquals(key, cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass(), "option=false"));
+        assertFalse(key.equals(cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass(), "option=true")));
+        assertFalse(key.equals(cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass())));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+
+        JavaArchive archive = createArchive("test.jar", 1);
+        String key = cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass());
+        assertNull(cache.lookup(archive, key));
+        cache.clear();
+
+        // The export of a cleared archive is not stored
+        cache.export(archive);
+        assertFalse(new File(folder.getRoot(), key + ".jar").exists());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // Room for two of the incompressible deployments
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 25000);
+
+        File fileA = store(cache, createArchive("a.jar", 1));
+        File fileB = store(cache, createArchive("b.jar", 2));
+        assertTrue(fileA.isFile());
+        assertTrue(fileB.isFile());
+        fileA.setLastModified(System.currentTimeMillis() - 20000);
+        fileB.setLastModified(System.currentTimeMillis() - 10000);
+
+        // A hit makes the entry the most recently used
+        JavaArchive archive = createArchive("a.jar", 1);
+        assertNotNull(cache.lookup(archive, cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass())));
+        cache.export(archive).close();
+
+        File fileC = store(cache, createArchive("c.jar", 3));
+        assertTrue(fileA.isFile());
+        assertFalse(fileB.exists());
+        assertTrue(fileC.isFile());
+    }
+
+    @Test
+    public void testProcessorHit() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+        OSGiApplicationArchiveProcessor processor = new OSGiApplicationArchiveProcessor();
+        TestClass testClass = new TestClass(SimpleTest.class);
+        String path = "/" + SimpleTest.class.getName().replace('.', '/') + ".class";
+
+        JavaArchive archive = createArchive("test.jar", 1);
+        processor.process(archive, testClass, cache);
+        assertTrue(archive.contains(path));
+        byte[] bytes = toByteArray(cache.export(archive));
+
+        // A hit adds the test classes as well, the archive matches the cached bundle
+        JavaArchive other = createArchive("test.jar", 1);
+        processor.process(other, testClass, cache);
+        assertEquals(1, cache.getHitCount());
+        assertTrue(other.contains(path));
+        assertEquals(archive.getContent().keySet(), other.getContent().keySet());
+        assertArrayEquals(bytes, toByteArray(cache.export(other)));
+    }
+
+    @Test
+    public void testProcessorPreciseImports() throws Exception {
+        DeploymentCache cache = new DeploymentCache(folder.getRoot().getPath(), 1024 * 1024);
+        OSGiApplicationArchiveProcessor processor = new OSGiApplicationArchiveProcessor();
+        TestClass testClass = new TestClass(SimpleTest.class);
+
+        JavaArchive archive = createArchive("test.jar", 1);
+        processor.process(archive, testClass, cache);
+        cache.export(archive).close();
+
+        // A bundle with the fixed imports does not match a run with precise imports
+        System.setProperty(AbstractOSGiApplicationArchiveProcessor.PRECISE_IMPORTS, "true");
+        try {
+            processor.process(createArchive("test.jar", 1), testClass, cache);
+        } finally {
+            System.clearProperty(AbstractOSGiApplicationArchiveProcessor.PRECISE_IMPORTS);
+        }
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    private File store(DeploymentCache cache, JavaArchive archive) throws IOException {
+        String key = cache.getKey(archive, Collections.<Class<?>> emptySet(), getClass());
+        assertNull(cache.lookup(archive, key));
+        cache.export(archive).close();
+        return new File(folder.getRoot(), key + ".jar");
+    }
+
+    private static JavaArchive createArchive(final String name, long seed) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        byte[] content = new byte[10000];
+        new Random(seed).nextBytes(content);
+        archive.add(new ByteArrayAsset(content), "content.bin");
+        archive.add(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(name);
+                return builder.openStream();
+            }
+        }, ArchivePaths.create("META-INF/MANIFEST.MF"));
+        return archive;
+    }
+
+    private static byte[] toByteArray(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    public static class SimpleTest {
+    }
+}
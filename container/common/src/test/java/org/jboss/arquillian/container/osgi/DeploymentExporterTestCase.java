@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.jar.JarInputStream;
+
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+
+/**
+ * Test {@link DeploymentExporter}
+ */
+public class DeploymentExporterTestCase {
+
+    @Test
+    public void testDisabled() throws Exception {
+        DeploymentExporter exporter = new DeploymentExporter(false, 1);
+        assertFalse(exporter.isEnabled());
+
+        JavaArchive archive = createArchive("test.jar");
+        exporter.submit(archive);
+        assertEquals(0, exporter.getSubmittedCount());
+        assertEntry(exporter.export(archive));
+    }
+
+    @Test
+    public void testSubmitAndExport() throws Exception {
+        DeploymentExporter exporter = new DeploymentExporter(true, 2);
+        assertTrue(exporter.isEnabled());
+
+        JavaArchive archive = createArchive("test.jar");
+        exporter.submit(archive);
+        assertEquals(1, exporter.getSubmittedCount());
+        assertEntry(exporter.export(archive));
+        assertEquals(0, exporter.getSubmittedCount());
+
+        // A second export of the same archive is done on demand
+        assertEntry(exporter.export(archive));
+    }
+
+    @Test
+    public void testParallelExports() throws Exception {
+        DeploymentExporter exporter = new DeploymentExporter(true, 2);
+
+        JavaArchive first = createArchive("first.jar");
+        JavaArchive second = createArchive("second.jar");
+        exporter.submit(first);
+        exporter.submit(second);
+        assertEquals(2, exporter.getSubmittedCount());
+        assertEntry(exporter.export(second));
+        assertEntry(exporter.export(first));
+        assertEquals(0, exporter.getSubmittedCount());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        DeploymentExporter exporter = new DeploymentExporter(true, 1);
+
+        // A reused shared bundle does not take its export
+        JavaArchive archive = createArchive("test.jar");
+        exporter.submit(archive);
+        exporter.discard(archive);
+        assertEquals(0, exporter.getSubmittedCount());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        DeploymentExporter exporter = new DeploymentExporter(true, 1);
+
+        JavaArchive archive = createArchive("test.jar");
+        exporter.submit(archive);
+        exporter.clear();
+        assertEquals(0, exporter.getSubmittedCount());
+
+        // Later deployments are exported as usual
+        for (int i = 0; i < 4; i++) {
+            JavaArchive other = createArchive("other" + i + ".jar");
+            exporter.submit(other);
+            assertEntry(exporter.export(other));
+        }
+    }
+
+    private static JavaArchive createArchive(String name) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.add(new StringAsset(name), "content.txt");
+        return archive;
+    }
+
+    private static void assertEntry(InputStream input) throws Exception {
+        JarInputStream jarInput = new JarInputStream(input);
+        try {
+            assertNotNull(jarInput.getNextJarEntry());
+        } finally {
+            jarInput.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.spi.event.container.AfterDeploy;
+import org.jboss.arquillian.container.test.impl.client.deployment.event.DeployManagedDeployments;
+import org.jboss.arquillian.test.spi.event.suite.AfterClass;
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+
+/**
+ * Test {@link DeploymentObserver}
+ */
+public class DeploymentObserverTestCase {
+
+    @Test
+    public void testStartOrder() throws Exception {
+        Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+        dependencies.put("d", set("b", "c"));
+        dependencies.put("a", set());
+        dependencies.put("b", set("a"));
+        dependencies.put("c", set("a"));
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b", "c"), Arrays.asList("d")),
+            CommonDeployableContainer.getStartOrder(dependencies));
+    }
+
+    @Test
+    public void testStartOrderCycle() throws Exception {
+        Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+        dependencies.put("a", set());
+        dependencies.put("x", set("y", "a"));
+        dependencies.put("y", set("x"));
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("x", "y")),
+            CommonDeployableContainer.getStartOrder(dependencies));
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        TestDeployableContainer container = createContainer(true);
+        DeploymentObserver observer = new DeploymentObserver();
+
+        observer.beginBatch(new DeployManagedDeployments());
+        observer.autostartBundle(new AfterDeploy(container, description("a")));
+        observer.autostartBundle(new AfterDeploy(container, description("b")));
+        assertTrue(container.started.isEmpty());
+
+        observer.startBatch(new DeployManagedDeployments());
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b")), container.started);
+
+        // Deployments outside of the managed deployment are started immediately
+        observer.autostartBundle(new AfterDeploy(container, description("c")));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), container.started);
+    }
+
+    @Test
+    public void testBatchingDisabled() throws Exception {
+        TestDeployableContainer container = createContainer(false);
+        DeploymentObserver observer = new DeploymentObserver();
+
+        observer.beginBatch(new DeployManagedDeployments());
+        observer.autostartBundle(new AfterDeploy(container, description("a")));
+        assertEquals(Collections.singletonList(Arrays.asList("a")), container.started);
+    }
+
+    @Test
+    public void testBatchingAfterFailedDeployment() throws Exception {
+        TestDeployableContainer container = createContainer(true);
+        DeploymentObserver observer = new DeploymentObserver();
+
+        // The managed deployment fails before the batch is started
+        observer.beginBatch(new DeployManagedDeployments());
+        observer.autostartBundle(new AfterDeploy(container, description("a")));
+        observer.endBatch(new AfterClass(getClass()));
+
+        observer.autostartBundle(new AfterDeploy(container, description("b")));
+        assertEquals(Collections.singletonList(Arrays.asList("b")), container.started);
+
+        observer.startBatch(new DeployManagedDeployments());
+        assertEquals(Collections.singletonList(Arrays.asList("b")), container.started);
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    private static DeploymentDescription description(final String symbolicName) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, symbolicName + ".jar");
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(symbolicName);
+                return builder.openStream();
+            }
+        });
+        return new DeploymentDescription(symbolicName, archive);
+    }
+
+    private static TestDeployableContainer createContainer(boolean batchDeployment) {
+        TestDeployableContainer container = new TestDeployableContainer();
+        container.getConfiguration().setBatchDeployment(batchDeployment);
+        return container;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link MavenBundle}
+ */
+public class MavenBundleTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals("org.acme:api:1.0", MavenBundle.parse(" org.acme:api:1.0 ").toString());
+        assertEquals("org.acme:api:bundle:1.0", MavenBundle.parse("org.acme:api:bundle:1.0").toString());
+        assertEquals("org.acme:api:1.0", MavenBundle.parse("org.acme:api:jar:1.0").toString());
+        assertEquals("org.acme:api:jar:tests:1.0", MavenBundle.parse("org.acme:api:jar:tests:1.0").toString());
+    }
+
+    @Test
+    public void testParseInvalid() throws Exception {
+        for (String coordinates : new String[] { "org.acme:api", "org.acme::1.0", "org.acme:api:jar:tests:1.0:x", ":api:1.0" }) {
+            try {
+                MavenBundle.parse(coordinates);
+                fail("IllegalArgumentException expected: " + coordinates);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testGetFile() throws Exception {
+        File repository = folder.getRoot();
+        File dir = folder.newFolder("org", "acme", "api", "1.0");
+        File jar = new File(dir, "api-1.0.jar");
+        File bundle = new File(dir, "api-1.0.bundle");
+        File tests = new File(dir, "api-1.0-tests.jar");
+        for (File file : new File[] { jar, bundle, tests }) {
+            file.createNewFile();
+        }
+
+        assertEquals(jar, MavenBundle.parse("org.acme:api:1.0").getFile(repository));
+        assertEquals(bundle, MavenBundle.parse("org.acme:api:bundle:1.0").getFile(repository));
+        assertEquals(tests, MavenBundle.parse("org.acme:api:jar:tests:1.0").getFile(repository));
+        try {
+            MavenBundle.parse("org.acme:api:2.0").getFile(repository);
+            fail("FileNotFoundException expected");
+        } catch (FileNotFoundException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetMavenURL() throws Exception {
+        assertEquals("mvn:org.acme/api/1.0", MavenBundle.parse("org.acme:api:1.0").getMavenURL());
+        assertEquals("mvn:org.acme/api/1.0/bundle", MavenBundle.parse("org.acme:api:bundle:1.0").getMavenURL());
+        assertEquals("mvn:org.acme/api/1.0/jar/tests", MavenBundle.parse("org.acme:api:jar:tests:1.0").getMavenURL());
+    }
+
+    @Test
+    public void testGetLocalRepository() throws Exception {
+        assertEquals(folder.getRoot().getAbsoluteFile(), MavenBundle.getLocalRepository(folder.getRoot().getPath()));
+    }
+}
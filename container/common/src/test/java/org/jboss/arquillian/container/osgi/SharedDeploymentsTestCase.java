@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.arquillian.container.osgi.SharedDeployments.SharedBundle;
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+
+/**
+ * Test {@link SharedDeployments}
+ */
+public class SharedDeploymentsTestCase {
+
+    @Test
+    public void testReuse() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        JavaArchive archive = createArchive("a.jar", "a", "content", "org.acme.a", null);
+        assertNull(shared.get(archive));
+        SharedBundle bundle = shared.register(archive, 10, "a");
+        assertFalse(bundle.isParked());
+
+        // An identical deployment references the same bundle
+        JavaArchive other = createArchive("a.jar", "a", "content", "org.acme.a", null);
+        assertSame(bundle, shared.get(other));
+        shared.acquire(other, bundle);
+        assertEquals(1, shared.getReuseCount());
+
+        assertSame(bundle, shared.release(archive));
+        assertFalse(bundle.isParked());
+        assertSame(bundle, shared.release(other));
+        assertTrue(bundle.isParked());
+
+        // A parked bundle can be reused by a later deployment
+        JavaArchive later = createArchive("a.jar", "a", "content", "org.acme.a", null);
+        assertSame(bundle, shared.get(later));
+        assertNull(shared.release(createArchive("b.jar", "b", "content", null, null)));
+    }
+
+    @Test
+    public void testGetParked() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        JavaArchive first = createArchive("a-1.jar", "a", "first", null, null);
+        JavaArchive second = createArchive("a-2.jar", "a", "second", null, null);
+        shared.register(first, 10, "a");
+        SharedBundle bundle = shared.register(second, 11, "a");
+        assertNull(shared.getParked("a"));
+
+        shared.release(first);
+        shared.release(second);
+        for (int i = 0; i < 10; i++) {
+            assertSame(bundle, shared.getParked("a"));
+        }
+        assertNull(shared.getParked("b"));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        JavaArchive archive = createArchive("a.jar", "a", "first", null, null);
+        shared.register(archive, 10, "a");
+        shared.release(archive);
+        SharedBundle parked = shared.getParked("a");
+
+        JavaArchive changed = createArchive("a.jar", "a", "changed", null, null);
+        assertNull(shared.get(changed));
+        SharedBundle updated = shared.update(changed, parked);
+        assertEquals(10, updated.getBundleId());
+        assertFalse(updated.isParked());
+        assertNull(shared.get(createArchive("a.jar", "a", "first", null, null)));
+        assertSame(updated, shared.get(createArchive("a.jar", "a", "changed", null, null)));
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        SharedBundle a = park(shared, createArchive("a.jar", "a", "a", "org.acme.a", null), 10);
+        SharedBundle b = park(shared, createArchive("b.jar", "b", "b", "org.acme.b", null), 11);
+        SharedBundle c = park(shared, createArchive("c.jar", "c", "c", "org.acme.c", null), 12);
+        SharedBundle d = shared.register(createArchive("d.jar", "d", "d", "org.acme.d", null), 13, "d");
+
+        // Same symbolic name
+        assertEquals(Collections.singletonList(a), shared.evict(createArchive("other.jar", "a", "x", null, null), "a"));
+        // Same location
+        assertEquals(Collections.singletonList(b), shared.evict(createArchive("b.jar", "x", "x", null, null), "x"));
+        // A referenced bundle is not evicted
+        assertTrue(shared.evict(createArchive("x.jar", "x", "x", "org.acme.d", null), "x").isEmpty());
+
+        SharedBundle e = park(shared, createArchive("e.jar", "e", "e", "org.acme.e", null), 14);
+        List<SharedBundle> all = shared.evictAll();
+        assertEquals(Arrays.asList(c, e), all);
+        assertFalse(d.isParked());
+    }
+
+    @Test
+    public void testEvictExporters() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        SharedBundle a = park(shared, createArchive("a.jar", "a", "a", "org.acme.test", null), 10);
+        SharedBundle b = park(shared, createArchive("b.jar", "b", "b", "org.acme.b", null), 11);
+
+        // A deployment that exports the same test package
+        assertEquals(Collections.singletonList(a), shared.evict(createArchive("x.jar", "x", "x", "org.acme.test", null), "x"));
+        // A deployment that imports a package of a parked bundle
+        assertEquals(Collections.singletonList(b), shared.evict(createArchive("y.jar", "y", "y", null, "org.acme.b;version=\"[1.0,2)\""), "y"));
+        assertTrue(shared.evictAll().isEmpty());
+    }
+
+    @Test
+    public void testEvictEldest() throws Exception {
+        SharedDeployments shared = new SharedDeployments();
+
+        SharedBundle a = park(shared, createArchive("a.jar", "a", "a", null, null), 10);
+        SharedBundle b = park(shared, createArchive("b.jar", "b", "b", null, null), 11);
+        SharedBundle c = park(shared, createArchive("c.jar", "c", "c", null, null), 12);
+        shared.register(createArchive("d.jar", "d", "d", null, null), 13, "d");
+        assertTrue(shared.evictEldest(3).isEmpty());
+
+        // A reused bundle becomes the most recently used one
+        JavaArchive reused = createArchive("a.jar", "a", "a", null, null);
+        shared.acquire(reused, shared.get(reused));
+        shared.release(reused);
+
+        // The referenced bundle is not counted
+        assertEquals(Arrays.asList(b, c), shared.evictEldest(1));
+        assertEquals(Collections.singletonList(a), shared.evictAll());
+    }
+
+    private static SharedBundle park(SharedDeployments shared, JavaArchive archive, long bundleId) throws Exception {
+        SharedBundle bundle = shared.register(archive, bundleId, archive.getName().substring(0, archive.getName().indexOf('.')));
+        shared.release(archive);
+        assertTrue(bundle.isParked());
+        return bundle;
+    }
+
+    private static JavaArchive createArchive(String name, final String symbolicName, String content, final String exports, final String imports) {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, name);
+        archive.add(new StringAsset(content), "content.txt");
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(symbolicName);
+                if (exports != null)
+                    builder.addExportPackages(exports);
+                if (imports != null)
+                    builder.addImportPackages(imports);
+                return builder.openStream();
+            }
+        });
+        return archive;
+    }
+}
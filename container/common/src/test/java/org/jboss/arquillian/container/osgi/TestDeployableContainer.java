@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.arquillian.container.spi.client.container.DeploymentException;
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.descriptor.api.Descriptor;
+
+/**
+ * A container that records the bundle operations instead of running a framework.
+ */
+class TestDeployableContainer extends CommonDeployableContainer<CommonContainerConfiguration> {
+
+    private final CommonContainerConfiguration configuration = new CommonContainerConfiguration() {
+    };
+    // The installed archives, keyed by bundle id
+    final Map<Long, Archive<?>> installed = new LinkedHashMap<Long, Archive<?>>();
+    // The bundle operations in call order
+    final List<String> operations = new ArrayList<String>();
+    // The symbolic names of the started bundles, grouped by start call
+    final List<List<String>> started = new ArrayList<List<String>>();
+    private long nextBundleId = 1;
+
+    TestDeployableContainer() {
+        configuration.setAutostartBundle(true);
+        setup(configuration);
+    }
+
+    CommonContainerConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void startBundles(List<DeploymentMetaData> deployments) throws Exception {
+        List<String> batch = new ArrayList<String>();
+        for (DeploymentMetaData metadata : deployments) {
+            batch.add(metadata.getSymbolicName());
+        }
+        started.add(batch);
+    }
+
+    @Override
+    public void startBundle(String symbolicName, String version) throws Exception {
+        started.add(Collections.singletonList(symbolicName));
+    }
+
+    @Override
+    public long installBundle(Archive<?> archive, boolean start) throws Exception {
+        long bundleId = nextBundleId++;
+        installed.put(bundleId, archive);
+        operations.add("install " + bundleId);
+        return bundleId;
+    }
+
+    @Override
+    public void uninstallBundle(long bundleId) throws Exception {
+        installed.remove(bundleId);
+        operations.add("uninstall " + bundleId);
+    }
+
+    @Override
+    protected boolean isBundleInstalled(long bundleId) {
+        return installed.containsKey(bundleId);
+    }
+
+    @Override
+    protected void updateBundle(Archive<?> archive, long bundleId) throws Exception {
+        installed.put(bundleId, archive);
+        operations.add("update " + bundleId);
+    }
+
+    @Override
+    protected void refreshBundle(long bundleId) throws Exception {
+        operations.add("refresh " + bundleId);
+    }
+
+    @Override
+    public void refresh() throws Exception {
+    }
+
+    @Override
+    protected void startContainer() throws LifecycleException {
+    }
+
+    @Override
+    protected int installDependencyBundles(List<MavenBundle> dependencies, File repository) throws Exception {
+        return 0;
+    }
+
+    @Override
+    protected void awaitBootstrapCompleteService(String name) {
+    }
+
+    @Override
+    public Class<CommonContainerConfiguration> getConfigurationClass() {
+        return CommonContainerConfiguration.class;
+    }
+
+    @Override
+    public void stop() throws LifecycleException {
+    }
+
+    @Override
+    public ProtocolDescription getDefaultProtocol() {
+        return ProtocolDescription.DEFAULT;
+    }
+
+    @Override
+    public ProtocolMetaData deploy(Archive<?> archive) throws DeploymentException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void undeploy(Archive<?> archive) throws DeploymentException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deploy(Descriptor descriptor) throws DeploymentException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void undeploy(Descriptor descriptor) throws DeploymentException {
+        throw new UnsupportedOperationException();
+    }
+}
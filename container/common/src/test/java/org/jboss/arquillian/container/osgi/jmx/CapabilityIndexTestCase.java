@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.management.Notification;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import org.junit.Test;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.jmx.framework.BundleStateMBean;
+
+/**
+ * Test {@link CapabilityIndex}
+ */
+public class CapabilityIndexTestCase {
+
+    @Test
+    public void testVersionRanges() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+        index.add(1, manifest(Constants.BUNDLE_SYMBOLICNAME, "a", Constants.EXPORT_PACKAGE, "org.acme.a;version=1.5"));
+
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a").isEmpty());
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a;version=\"[1.0,2)\"").isEmpty());
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a;version=1.5").isEmpty());
+        assertEquals(Arrays.asList("org.acme.a;version=[2.0,3)"), unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a;version=\"[2.0,3)\""));
+        assertEquals(Arrays.asList("org.acme.b"), unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a,org.acme.b"));
+    }
+
+    @Test
+    public void testOptionalImports() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a;resolution:=optional").isEmpty());
+        assertEquals(Arrays.asList("org.acme.b"), unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a;resolution:=optional,org.acme.b"));
+    }
+
+    @Test
+    public void testOwnExports() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+
+        Manifest manifest = manifest(Constants.EXPORT_PACKAGE, "org.acme.own;version=1.0", Constants.IMPORT_PACKAGE, "org.acme.own;version=\"[1.0,2)\"");
+        assertTrue(index.getUnsatisfiedRequirements(manifest).isEmpty());
+    }
+
+    @Test
+    public void testRequireBundle() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+        index.add(1, manifest(Constants.BUNDLE_SYMBOLICNAME, "b;singleton:=true", Constants.BUNDLE_VERSION, "1.2.0"));
+
+        assertTrue(unsatisfied(index, Constants.REQUIRE_BUNDLE, "b").isEmpty());
+        assertTrue(unsatisfied(index, Constants.REQUIRE_BUNDLE, "b;bundle-version=\"[1.0,2)\"").isEmpty());
+        assertTrue(unsatisfied(index, Constants.REQUIRE_BUNDLE, "c;resolution:=optional").isEmpty());
+        assertEquals(1, unsatisfied(index, Constants.REQUIRE_BUNDLE, "b;bundle-version=\"[2.0,3)\"").size());
+        assertEquals(1, unsatisfied(index, Constants.REQUIRE_BUNDLE, "c").size());
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+        index.add(1, manifest(Constants.BUNDLE_SYMBOLICNAME, "a", Constants.EXPORT_PACKAGE, "org.acme.a"));
+        index.add(1, manifest(Constants.BUNDLE_SYMBOLICNAME, "a", Constants.EXPORT_PACKAGE, "org.acme.b"));
+
+        assertEquals(1, index.size());
+        assertEquals(Arrays.asList("org.acme.a"), unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a,org.acme.b"));
+    }
+
+    @Test
+    public void testUninstalledUntilRefresh() throws Exception {
+        CapabilityIndex index = new CapabilityIndex(null);
+        index.add(1, manifest(Constants.BUNDLE_SYMBOLICNAME, "a", Constants.EXPORT_PACKAGE, "org.acme.a"));
+        index.add(2, manifest(Constants.BUNDLE_SYMBOLICNAME, "b", Constants.EXPORT_PACKAGE, "org.acme.b"));
+
+        index.handleNotification(bundleEvent(1, BundleEvent.UNINSTALLED), null);
+        assertEquals(1, index.size());
+
+        // The packages of an uninstalled bundle can be imported until refresh
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a").isEmpty());
+        assertEquals(1, unsatisfied(index, Constants.REQUIRE_BUNDLE, "a").size());
+
+        index.refreshed(Collections.singleton(2L));
+        assertTrue(unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a,org.acme.b").isEmpty());
+
+        index.refreshed(Collections.singleton(1L));
+        assertEquals(Arrays.asList("org.acme.a"), unsatisfied(index, Constants.IMPORT_PACKAGE, "org.acme.a,org.acme.b"));
+    }
+
+    private static List<String> unsatisfied(CapabilityIndex index, String name, String value) {
+        return index.getUnsatisfiedRequirements(manifest(Constants.BUNDLE_SYMBOLICNAME, "test", name, value));
+    }
+
+    private static Manifest manifest(String... headers) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (int i = 0; i < headers.length; i += 2) {
+            attributes.putValue(headers[i], headers[i + 1]);
+        }
+        return manifest;
+    }
+
+    private static Notification bundleEvent(long bundleId, int eventType) throws Exception {
+        String[] names = new String[] { BundleStateMBean.IDENTIFIER, BundleStateMBean.EVENT };
+        CompositeType type = new CompositeType("BundleEvent", "BundleEvent", names, names, new OpenType<?>[] { SimpleType.LONG, SimpleType.INTEGER });
+        Notification notification = new Notification("org.osgi.jmx.framework.BundleEvent", "test", 1);
+        notification.setUserData(new CompositeDataSupport(type, names, new Object[] { bundleId, eventType }));
+        return notification;
+    }
+}
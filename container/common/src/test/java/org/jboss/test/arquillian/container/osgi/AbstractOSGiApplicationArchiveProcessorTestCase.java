@@ -16,6 +16,9 @@
  */
 package org.jboss.test.arquillian.container.osgi;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
@@ -25,7 +28,17 @@ import java.util.List;
 import java.util.Map;
 
 import org.jboss.arquillian.container.osgi.AbstractOSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.container.osgi.OSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
+import org.jboss.arquillian.protocol.osgi.HeaderClause;
+import org.jboss.arquillian.test.spi.TestClass;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Assert;
 import org.junit.Test;
+import org.osgi.framework.Constants;
 
 /**
  * Test {@link AbstractOSGiApplicationArchiveProcessor}
@@ -71,9 +84,73 @@ public class AbstractOSGiApplicationArchiveProcessorTestCase {
         }
     }
 
+    @Test
+    public void classIndexLargeArchive() throws Exception {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "large.jar");
+        for (int i = 0; i < 20000; i++) {
+            archive.add(EmptyAsset.INSTANCE, "org/acme/p" + (i % 100) + "/sub/Type" + i + ".class");
+        }
+        archive.add(EmptyAsset.INSTANCE, "WEB-INF/classes/org/acme/test/SimpleTestCase.class");
+
+        Object classIndex = getClassIndex(archive);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(containsClass(classIndex, "org/acme/test/SimpleTestCase.class"));
+            assertTrue(containsClass(classIndex, "org/acme/p" + (i % 100) + "/sub/Type" + i + ".class"));
+            assertFalse(containsClass(classIndex, "org/acme/test/OtherTestCase.class"));
+        }
+
+        // Matches are at path segment boundaries only
+        assertFalse(containsClass(classIndex, "cme/test/SimpleTestCase.class"));
+        assertFalse(containsClass(classIndex, "org/acme/p1/sub/Type2.class"));
+    }
+
+    @Test
+    public void preciseImportVersions() throws Exception {
+        System.setProperty(AbstractOSGiApplicationArchiveProcessor.PRECISE_IMPORTS, "true");
+        System.setProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_VERSIONS, "org.junit;version=4.12.0");
+        try {
+            JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "precise.jar");
+            new OSGiApplicationArchiveProcessor().process(archive, new TestClass(PreciseImportsTest.class));
+
+            String header = DeploymentMetaData.get(archive).getManifest().getMainAttributes().getValue(Constants.IMPORT_PACKAGE);
+            Map<String, HeaderClause> imports = new HashMap<String, HeaderClause>();
+            for (HeaderClause clause : HeaderClause.parse(header)) {
+                for (String packageName : clause.getPaths()) {
+                    imports.put(packageName, clause);
+                }
+            }
+
+            // Only the configured version gets a range
+            assertEquals("[4.12,5)", imports.get("org.junit").getAttribute(Constants.VERSION_ATTRIBUTE));
+            assertNull(imports.get("org.jboss.shrinkwrap.api").getAttribute(Constants.VERSION_ATTRIBUTE));
+            assertFalse(imports.containsKey("org.jboss.arquillian.junit"));
+        } finally {
+            System.clearProperty(AbstractOSGiApplicationArchiveProcessor.PRECISE_IMPORTS);
+            System.clearProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_VERSIONS);
+        }
+    }
+
+    private static Object getClassIndex(Archive<?> archive) throws Exception {
+        Method method = AbstractOSGiApplicationArchiveProcessor.class.getDeclaredMethod("getClassIndex", Archive.class);
+        method.setAccessible(true);
+        return method.invoke(null, archive);
+    }
+
+    private static boolean containsClass(Object classIndex, String path) throws Exception {
+        Method method = AbstractOSGiApplicationArchiveProcessor.class.getDeclaredMethod("containsClass", Map.class, String.class);
+        method.setAccessible(true);
+        return (Boolean) method.invoke(null, classIndex, path);
+    }
+
     private static List<String> splitWithComma(String value) throws Exception{
         Method method = AbstractOSGiApplicationArchiveProcessor.class.getDeclaredMethod("splitWithComma", String.class);
         method.setAccessible(true);
         return Arrays.asList((String [])method.invoke(null, value));
     }
+
+    public static class PreciseImportsTest {
+        public void test() {
+            Assert.assertNotNull(ShrinkWrap.create(JavaArchive.class));
+        }
+    }
 }
@@ -16,6 +16,7 @@
  */
 package org.jboss.arquillian.container.osgi.felix;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -68,6 +69,12 @@ public class FelixEmbeddedDeployableContainer extends EmbeddedDeployableContaine
         return bundleContext;
     }
 
+    @Override
+    protected String getDependencyLocation(File file) {
+        // Read the bundle in place instead of copying it to the bundle cache
+        return "reference:" + super.getDependencyLocation(file);
+    }
+
     @Override
     protected ContainerLogger getLogger() {
         return new AbstractContainerLogger() {
@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.jboss.arquillian.container.osgi.ArchiveDigest;
+import org.jboss.arquillian.container.osgi.jmx.ObjectNameFactory;
+import org.osgi.jmx.framework.BundleStateMBean;
+import org.osgi.jmx.framework.FrameworkMBean;
+
+/**
+ * Provisions Karaf features through the <code>FeaturesService</code> MBean.
+ *
+ * The features are installed without intermediate refreshes and the framework is refreshed once
+ * afterwards. The bundles of the installed features are recorded in the data directory of the Karaf
+ * instance, so that a later start with the same features and unchanged feature bundles skips the
+ * provisioning. Other bundles, such as the Arquillian bundle and the dependency bundles that are
+ * installed after the features, are not recorded.
+ */
+final class FeaturesProvisioner {
+
+    static final String STATE_FILE = "arquillian-features.properties";
+
+    private static final ObjectName FEATURES_NAME = ObjectNameFactory.create("org.apache.karaf:type=feature,*");
+
+    // The attribute of the FeaturesService MBean and the items of its feature data
+    static final String FEATURES = "Features";
+    static final String FEATURE_BUNDLES = "Bundles";
+    static final String FEATURE_INSTALLED = "Installed";
+
+    private final MBeanServerConnection mbeanServer;
+    private final FrameworkMBean frameworkMBean;
+    private final BundleStateMBean bundleStateMBean;
+
+    FeaturesProvisioner(MBeanServerConnection mbeanServer, FrameworkMBean frameworkMBean, BundleStateMBean bundleStateMBean) {
+        this.mbeanServer = mbeanServer;
+        this.frameworkMBean = frameworkMBean;
+        this.bundleStateMBean = bundleStateMBean;
+    }
+
+    /**
+     * Install features from the given feature repositories.
+     *
+     * @param dataDir      The data directory of the Karaf instance or null if it is unknown
+     * @param repositories The feature repository URLs
+     * @param features     The features as <code>name</code> or <code>name/version</code>
+     * @return True if the features were installed, false if the data directory was already provisioned
+     */
+    boolean provision(File dataDir, List<String> repositories, List<String> features) throws Exception {
+        String request = "repositories=" + repositories + ",features=" + features;
+        File stateFile = dataDir != null && dataDir.isDirectory() ? new File(dataDir, STATE_FILE) : null;
+        ObjectName name = getFeaturesName();
+        if (stateFile != null && stateFile.isFile()) {
+            Properties state = load(stateFile);
+            if (request.equals(state.getProperty("request")) && getFeatureBundleHash(name).equals(state.getProperty("bundles"))) {
+                return false;
+            }
+        }
+
+        for (String repository : repositories) {
+            KarafManagedDeployableContainer._logger.info("Adding feature repository: {}", repository);
+            mbeanServer.invoke(name, "addRepository", new Object[] { repository }, new String[] { String.class.getName() });
+        }
+        for (String feature : features) {
+            KarafManagedDeployableContainer._logger.info("Installing feature: {}", feature);
+            int index = feature.indexOf('/');
+            if (index < 0) {
+                mbeanServer.invoke(name, "installFeature", new Object[] { feature, Boolean.TRUE },
+                    new String[] { String.class.getName(), boolean.class.getName() });
+            } else {
+                Object[] params = new Object[] { feature.substring(0, index), feature.substring(index + 1), Boolean.TRUE };
+                mbeanServer.invoke(name, "installFeature", params,
+                    new String[] { String.class.getName(), String.class.getName(), boolean.class.getName() });
+            }
+        }
+        // The refreshes of the individual features were skipped, do them at once
+        frameworkMBean.refreshBundlesAndWait(null);
+
+        if (stateFile != null) {
+            Properties state = new Properties();
+            state.setProperty("request", request);
+            state.setProperty("bundles", getFeatureBundleHash(name));
+            store(stateFile, state);
+        }
+        return true;
+    }
+
+    private ObjectName getFeaturesName() throws IOException {
+        Set<ObjectName> names = mbeanServer.queryNames(FEATURES_NAME, null);
+        if (names.isEmpty())
+            throw new IllegalStateException("FeaturesService MBean not registered: " + FEATURES_NAME);
+        return names.iterator().next();
+    }
+
+    /**
+     * Get a digest of the locations and versions of the installed bundles of the installed features.
+     */
+    private String getFeatureBundleHash(ObjectName name) throws Exception {
+        Set<String> locations = new HashSet<String>();
+        TabularData featureData = (TabularData) mbeanServer.getAttribute(name, FEATURES);
+        for (Object value : featureData.values()) {
+            CompositeData featureType = (CompositeData) value;
+            String[] featureBundles = (String[]) featureType.get(FEATURE_BUNDLES);
+            if (Boolean.TRUE.equals(featureType.get(FEATURE_INSTALLED)) && featureBundles != null) {
+                locations.addAll(Arrays.asList(featureBundles));
+            }
+        }
+        Set<String> bundles = new TreeSet<String>();
+        for (Object value : bundleStateMBean.listBundles().values()) {
+            CompositeData bundleType = (CompositeData) value;
+            if (locations.contains(bundleType.get(BundleStateMBean.LOCATION))) {
+                bundles.add(bundleType.get(BundleStateMBean.LOCATION) + "|" + bundleType.get(BundleStateMBean.SYMBOLIC_NAME) + "|"
+                    + bundleType.get(BundleStateMBean.VERSION));
+            }
+        }
+        ArchiveDigest digest = new ArchiveDigest();
+        for (String bundle : bundles) {
+            digest.update(bundle);
+        }
+        return digest.getValue();
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        return properties;
+    }
+
+    private static void store(File file, Properties properties) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            properties.store(output, "Features provisioned by Arquillian");
+        } finally {
+            output.close();
+        }
+    }
+}
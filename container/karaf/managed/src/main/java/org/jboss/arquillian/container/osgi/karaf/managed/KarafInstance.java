@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The directory layout of a Karaf process.
+ *
+ * The default instance uses <code>karafHome</code> for everything. A named instance shares the
+ * <code>lib</code> and <code>system</code> directories of <code>karafHome</code> but gets its own
+ * <code>etc</code> and <code>data</code> directories below <code>${karafHome}/instances/${name}</code>.
+ */
+final class KarafInstance {
+
+    static final String MANAGEMENT_CONFIG = "org.apache.karaf.management.cfg";
+    static final String MAVEN_CONFIG = "org.ops4j.pax.url.mvn.cfg";
+
+    private final File home;
+    private final File base;
+
+    private KarafInstance(File home, File base) {
+        this.home = home;
+        this.base = base;
+    }
+
+    static KarafInstance create(File karafHome, String instanceName) throws IOException {
+        if (instanceName == null)
+            return new KarafInstance(karafHome, karafHome);
+
+        File base = new File(new File(karafHome, "instances"), instanceName);
+        File etc = new File(base, "etc");
+        if (!etc.isDirectory()) {
+            copyDirectory(new File(karafHome, "etc").toPath(), etc.toPath());
+        }
+        return new KarafInstance(karafHome, base);
+    }
+
+    File getHome() {
+        return home;
+    }
+
+    File getBase() {
+        return base;
+    }
+
+    File getEtc() {
+        return new File(base, "etc");
+    }
+
+    File getData() {
+        return new File(base, "data");
+    }
+
+    File getInstances() {
+        return new File(home, "instances");
+    }
+
+    /**
+     * Rewrite the RMI ports of the instance management configuration.
+     */
+    void configureManagementPorts(int rmiRegistryPort, int rmiServerPort) throws IOException {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("rmiRegistryPort", String.valueOf(rmiRegistryPort));
+        properties.put("rmiServerPort", String.valueOf(rmiServerPort));
+        configure(MANAGEMENT_CONFIG, properties);
+    }
+
+    /**
+     * Let the Maven resolver of the instance resolve artifacts from a local repository only.
+     */
+    void configureOfflineRepository(File repository) throws IOException {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("org.ops4j.pax.url.mvn.offline", "true");
+        properties.put("org.ops4j.pax.url.mvn.defaultRepositories", repository.toURI() + "@id=arquillian.offline@snapshots");
+        properties.put("org.ops4j.pax.url.mvn.repositories", "");
+        configure(MAVEN_CONFIG, properties);
+    }
+
+    private void configure(String configName, Map<String, String> properties) throws IOException {
+        Path config = new File(getEtc(), configName).toPath();
+        List<String> lines = Files.exists(config) ? Files.readAllLines(config, StandardCharsets.ISO_8859_1) : new ArrayList<String>();
+        List<String> result = new ArrayList<String>();
+        Set<String> written = new HashSet<String>();
+        boolean continuation = false;
+        boolean replaced = false;
+        for (String line : lines) {
+            if (continuation) {
+                // Continuation lines belong to the value of the previous line
+                continuation = isContinued(line);
+                if (!replaced)
+                    result.add(line);
+                continue;
+            }
+            String trimmed = line.trim();
+            if (trimmed.startsWith("#") || trimmed.startsWith("!")) {
+                result.add(line);
+                continue;
+            }
+            String key = trimmed.split("[=:\\s]", 2)[0];
+            replaced = properties.containsKey(key);
+            if (replaced) {
+                if (written.add(key))
+                    result.add(key + " = " + properties.get(key));
+            } else {
+                result.add(line);
+            }
+            continuation = isContinued(line);
+        }
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (!written.contains(entry.getKey()))
+                result.add(entry.getKey() + " = " + entry.getValue());
+        }
+        Files.write(config, result, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * A line is continued if it ends with an odd number of backslashes.
+     */
+    private static boolean isContinued(String line) {
+        int count = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            count++;
+        }
+        return count % 2 == 1;
+    }
+
+    /**
+     * Get distinct ports that are currently not in use on the local host.
+     *
+     * The ports are released before they are returned, so another process may still take them.
+     * A caller that fails to bind them should allocate new ones.
+     */
+    static int[] allocateFreePorts(int count) throws IOException {
+        // Keep all sockets open until every port is known, so that the ports are distinct
+        List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+        try {
+            int[] ports = new int[count];
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                socket.setReuseAddress(true);
+                ports[i] = socket.getLocalPort();
+            }
+            return ports;
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static void copyDirectory(final Path source, final Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "KarafInstance[home=" + home + ",base=" + base + "]";
+    }
+}
@@ -16,6 +16,9 @@
  */
 package org.jboss.arquillian.container.osgi.karaf.managed;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.jboss.arquillian.container.osgi.jmx.JMXContainerConfiguration;
 import org.jboss.arquillian.container.spi.ConfigurationException;
 
@@ -32,10 +35,18 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
     public static final String DEFAULT_JMX_PASSWORD = "karaf";
 
     private String karafHome;
+    private String karafInstance;
+    private boolean allocatePorts;
+    private boolean jmxAttach;
     private String javaVmArguments;
     private Integer karafBeginningStartLevel;
     private boolean allowConnectingToRunningServer;
     private boolean outputToConsole;
+    private String features;
+    private String featureRepositories;
+    private String featuresOfflineRepository;
+    private List<String> featureList = new ArrayList<String>();
+    private List<String> featureRepositoryList = new ArrayList<String>();
 
     public KarafManagedContainerConfiguration() {
         super();
@@ -51,6 +62,43 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
         this.karafHome = karafHome;
     }
 
+    /**
+     * The name of a dedicated Karaf instance. When set, the instance gets its own
+     * <code>karaf.base</code> and <code>karaf.data</code> under <code>${karafHome}/instances</code>,
+     * which allows several Karaf processes (e.g. one per surefire fork) to share one installation.
+     */
+    public String getKarafInstance() {
+        return karafInstance;
+    }
+
+    public void setKarafInstance(String karafInstance) {
+        this.karafInstance = karafInstance;
+    }
+
+    /**
+     * If true, free RMI registry and RMI server ports are allocated when the container
+     * is started and the <code>jmxServiceURL</code> is derived from them.
+     */
+    public boolean isAllocatePorts() {
+        return allocatePorts;
+    }
+
+    public void setAllocatePorts(boolean allocatePorts) {
+        this.allocatePorts = allocatePorts;
+    }
+
+    /**
+     * If true, the JMX connection to a Karaf process started by the container is established
+     * through the Attach API and the local management agent of the process instead of RMI.
+     */
+    public boolean isJmxAttach() {
+        return jmxAttach;
+    }
+
+    public void setJmxAttach(boolean jmxAttach) {
+        this.jmxAttach = jmxAttach;
+    }
+
     public String getJavaVmArguments() {
         return javaVmArguments;
     }
@@ -83,9 +131,54 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
         this.outputToConsole = outputToConsole;
     }
 
+    /**
+     * Comma separated features, as <code>name</code> or <code>name/version</code>, that are installed
+     * in one batch once Karaf is started.
+     */
+    public String getFeatures() {
+        return features;
+    }
+
+    public void setFeatures(String features) {
+        this.features = features;
+    }
+
+    public List<String> getFeatureList() {
+        return featureList;
+    }
+
+    /**
+     * Comma separated URLs of the feature repositories that provide the {@link #getFeatures()}.
+     */
+    public String getFeatureRepositories() {
+        return featureRepositories;
+    }
+
+    public void setFeatureRepositories(String featureRepositories) {
+        this.featureRepositories = featureRepositories;
+    }
+
+    public List<String> getFeatureRepositoryList() {
+        return featureRepositoryList;
+    }
+
+    /**
+     * A local Maven repository from which the Karaf instance resolves features and bundles without
+     * remote access.
+     */
+    public String getFeaturesOfflineRepository() {
+        return featuresOfflineRepository;
+    }
+
+    public void setFeaturesOfflineRepository(String featuresOfflineRepository) {
+        this.featuresOfflineRepository = featuresOfflineRepository;
+    }
+
     @Override
     public void validate() throws ConfigurationException {
         super.validate();
+        featureList = split(features);
+        featureRepositoryList = split(featureRepositories);
         if (javaVmArguments == null)
             setJavaVmArguments(DEFAULT_JAVAVM_ARGUMENTS);
         if (jmxServiceURL == null)
@@ -94,5 +187,20 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
             setJmxUsername(DEFAULT_JMX_USERNAME);
         if (jmxPassword == null)
             setJmxPassword(DEFAULT_JMX_PASSWORD);
+        if (allocatePorts && karafInstance == null)
+            throw new ConfigurationException("allocatePorts requires a karafInstance, the shared karafHome cannot be reconfigured");
+        if (featuresOfflineRepository != null && karafInstance == null)
+            throw new ConfigurationException("featuresOfflineRepository requires a karafInstance, the shared karafHome cannot be reconfigured");
+    }
+
+    private static List<String> split(String value) {
+        List<String> result = new ArrayList<String>();
+        if (value != null) {
+            for (String token : value.split(",")) {
+                if (!token.trim().isEmpty())
+                    result.add(token.trim());
+            }
+        }
+        return result;
     }
 }
@@ -27,10 +27,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
 import org.jboss.arquillian.container.osgi.jmx.JMXDeployableContainer;
 import org.jboss.arquillian.container.osgi.jmx.ObjectNameFactory;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
-import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
 import org.osgi.jmx.framework.BundleStateMBean;
 import org.osgi.jmx.framework.FrameworkMBean;
 import org.osgi.jmx.framework.ServiceStateMBean;
@@ -46,8 +46,13 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
 
     static final Logger _logger = LoggerFactory.getLogger(KarafManagedDeployableContainer.class.getPackage().getName());
 
+    private static final int PORT_ALLOCATION_ATTEMPTS = 3;
+
     private KarafManagedContainerConfiguration config;
     private Process process;
+    private KarafInstance instance;
+    // The attach connection to the process, closed when the process is destroyed
+    private volatile JMXConnector connector;
 
     @Override
     public Class<T> getConfigurationClass() {
@@ -63,14 +68,16 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
     }
 
     @Override
-    public void start() throws LifecycleException {
+    protected void startContainer() throws LifecycleException {
 
-        // Try to connect to an already running server
+        // Try to connect to an already running server, unless we are about to allocate new ports anyway
         MBeanServerConnection mbeanServer = null;
-        try {
-            mbeanServer = getMBeanServerConnection(500, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException ex) {
-            // ignore
+        if (!config.isAllocatePorts()) {
+            try {
+                mbeanServer = getMBeanServerConnection(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                // ignore
+            }
         }
 
         if (mbeanServer != null && !config.isAllowConnectingToRunningServer()) {
@@ -90,6 +97,20 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
             if (!karafHomeDir.isDirectory())
                 throw new IllegalStateException("Not a valid Karaf home dir: " + karafHomeDir);
 
+            try {
+                instance = KarafInstance.create(karafHomeDir, config.getKarafInstance());
+                if (config.getFeaturesOfflineRepository() != null) {
+                    instance.configureOfflineRepository(new File(config.getFeaturesOfflineRepository()).getAbsoluteFile());
+                }
+            } catch (IOException ex) {
+                throw new LifecycleException("Cannot create Karaf instance: " + config.getKarafInstance(), ex);
+            }
+
+            if (config.isJmxAttach() && !LocalJMXConnector.isAvailable()) {
+                _logger.warn("Attach API not available, using JMX service URL: {}", config.getJmxServiceURL());
+                config.setJmxAttach(false);
+            }
+
             String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
             _logger.info(String.format("Using java: %s", java));
 
@@ -104,18 +125,18 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
             cmd.addAll(Arrays.asList(javaArgs.split("\\s")));
 
             // Karaf properties
-            cmd.add("-Dkaraf.home=" + karafHomeDir);
-            cmd.add("-Dkaraf.base=" + karafHomeDir);
-            cmd.add("-Dkaraf.etc=" + karafHomeDir + "/etc");
-            cmd.add("-Dkaraf.data=" + karafHomeDir + "/data");
-            cmd.add("-Dkaraf.instances=" + karafHomeDir + "/instances");
+            cmd.add("-Dkaraf.home=" + instance.getHome());
+            cmd.add("-Dkaraf.base=" + instance.getBase());
+            cmd.add("-Dkaraf.etc=" + instance.getEtc());
+            cmd.add("-Dkaraf.data=" + instance.getData());
+            cmd.add("-Dkaraf.instances=" + instance.getInstances());
             cmd.add("-Dkaraf.restart.jvm.supported=true");
             cmd.add("-Dkaraf.startLocalConsole=false");
             cmd.add("-Dkaraf.startRemoteShell=false");
 
             // Java properties
-            cmd.add("-Djava.io.tmpdir=" + new File(karafHomeDir, "data/tmp"));
-            cmd.add("-Djava.util.logging.config.file=" + new File(karafHomeDir, "etc/java.util.logging.properties"));
+            cmd.add("-Djava.io.tmpdir=" + new File(instance.getData(), "tmp"));
+            cmd.add("-Djava.util.logging.config.file=" + new File(instance.getEtc(), "java.util.logging.properties"));
             cmd.add("-Djava.endorsed.dirs=" + new File(karafHomeDir, "lib/endorsed"));
 
             // Classpath
@@ -144,26 +165,43 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
             }
             _logger.debug("Starting Karaf with: {}", cmdstr);
 
-            try {
-                ProcessBuilder processBuilder = new ProcessBuilder(cmd);
-                processBuilder.directory(karafHomeDir);
-                processBuilder.redirectErrorStream(true);
-                process = processBuilder.start();
-                new Thread(new ConsoleConsumer()).start();
-            } catch (Exception ex) {
-                throw new LifecycleException("Cannot start managed Karaf container", ex);
-            }
+            // Allocated ports may be taken by another process before Karaf binds them, retry with new ones
+            int attempts = config.isAllocatePorts() ? PORT_ALLOCATION_ATTEMPTS : 1;
+            for (int attempt = 1; mbeanServer == null; attempt++) {
+                if (config.isAllocatePorts()) {
+                    try {
+                        int[] ports = KarafInstance.allocateFreePorts(2);
+                        instance.configureManagementPorts(ports[0], ports[1]);
+                        config.setJmxServiceURL(getJmxServiceURL(config.getJmxServiceURL(), ports[0], ports[1]));
+                    } catch (IOException ex) {
+                        throw new LifecycleException("Cannot allocate JMX ports for: " + instance, ex);
+                    }
+                }
+                _logger.info("Using {} with JMX service URL: {}", instance, config.getJmxServiceURL());
+
+                try {
+                    ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+                    processBuilder.directory(instance.getBase());
+                    processBuilder.redirectErrorStream(true);
+                    process = processBuilder.start();
+                    new Thread(new ConsoleConsumer()).start();
+                } catch (Exception ex) {
+                    throw new LifecycleException("Cannot start managed Karaf container", ex);
+                }
 
-            // Get the MBeanServerConnection
-            try {
-                mbeanServer = getMBeanServerConnection(30, TimeUnit.SECONDS);
-            } catch (Exception ex) {
-                destroyKarafProcess();
-                throw new LifecycleException("Cannot obtain MBean server connection", ex);
+                // Get the MBeanServerConnection
+                try {
+                    mbeanServer = getMBeanServerConnection(30, TimeUnit.SECONDS);
+                } catch (Exception ex) {
+                    destroyKarafProcess();
+                    if (attempt >= attempts)
+                        throw new LifecycleException("Cannot obtain MBean server connection", ex);
+                    _logger.warn("Cannot connect to Karaf on the allocated ports, retrying with new ports", ex);
+                }
             }
         }
 
-        mbeanServerInstance.set(mbeanServer);
+        setMBeanServer(mbeanServer);
 
         try {
             // Get the FrameworkMBean
@@ -178,6 +216,9 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
             oname = ObjectNameFactory.create("osgi.core:type=serviceState,*");
             serviceStateMBean = getMBeanProxy(mbeanServer, oname, ServiceStateMBean.class, 30, TimeUnit.SECONDS);
 
+            // Get the PackageStateMBean, which is optional
+            packageStateMBean = getPackageStateMBean(mbeanServer);
+
             // Await the beginning start level
             Integer beginningStartLevel = config.getKarafBeginningStartLevel();
             if (beginningStartLevel != null)
@@ -185,11 +226,9 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
 
             // Await bootsrap complete services
             awaitBootstrapCompleteServices();
-            try {
-                installArquillianBundle();
-            } catch (Exception e) {
-                _logger.error("Can't deploy " + ArquillianBundleGenerator.BUNDLE_NAME);
-            }
+
+            if (!config.getFeatureList().isEmpty())
+                provisionFeatures(mbeanServer);
 
         } catch (RuntimeException rte) {
             destroyKarafProcess();
@@ -200,15 +239,65 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
         }
     }
 
+    private void provisionFeatures(MBeanServerConnection mbeanServer) throws Exception {
+        long startMillis = System.currentTimeMillis();
+        // The data directory of a running server that was not started here is unknown
+        File dataDir = instance != null ? instance.getData() : null;
+        FeaturesProvisioner provisioner = new FeaturesProvisioner(mbeanServer, frameworkMBean, bundleStateMBean);
+        if (provisioner.provision(dataDir, config.getFeatureRepositoryList(), config.getFeatureList())) {
+            _logger.info("Provisioned features {} in {}ms", config.getFeatureList(), System.currentTimeMillis() - startMillis);
+        } else {
+            _logger.info("Features {} already provisioned in {}, checked in {}ms", config.getFeatureList(), dataDir,
+                System.currentTimeMillis() - startMillis);
+        }
+    }
+
     @Override
     public void stop() throws LifecycleException {
         super.stop();
         destroyKarafProcess();
     }
 
+    @Override
+    protected MBeanServerConnection getMBeanServerConnection() throws IOException {
+        if (process != null && config.isJmxAttach()) {
+            closeConnector();
+            connector = LocalJMXConnector.connect(process);
+            return connector.getMBeanServerConnection();
+        }
+        return super.getMBeanServerConnection();
+    }
+
+    /**
+     * Replace the RMI ports of the configured JMX service URL, keeping the JNDI name of the connector.
+     */
+    static String getJmxServiceURL(String serviceURL, int rmiRegistryPort, int rmiServerPort) {
+        String connectorName = serviceURL.substring(serviceURL.lastIndexOf('/') + 1);
+        return "service:jmx:rmi://127.0.0.1:" + rmiServerPort + "/jndi/rmi://127.0.0.1:" + rmiRegistryPort + "/" + connectorName;
+    }
+
+    private void closeConnector() {
+        JMXConnector aux = connector;
+        connector = null;
+        if (aux != null) {
+            try {
+                aux.close();
+            } catch (IOException ex) {
+                _logger.debug("Cannot close JMX connector", ex);
+            }
+        }
+    }
+
     private void destroyKarafProcess() {
+        closeConnector();
         if (process != null) {
             process.destroy();
+            try {
+                // The next process must not find the instance locked
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Connects to the platform MBeanServer of a child process through the Attach API.
+ *
+ * The local management agent of the target VM is started on demand and the connection goes
+ * through its local connector address. There is no RMI registry lookup and no authentication.
+ *
+ * The Attach API is accessed reflectively, it lives in <code>tools.jar</code> on Java 8
+ * and in the <code>jdk.attach</code> module on later versions.
+ */
+final class LocalJMXConnector {
+
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+
+    private LocalJMXConnector() {
+    }
+
+    /**
+     * Connect to the process, the caller must close the connector.
+     */
+    static JMXConnector connect(Process process) throws IOException {
+        String address = startLocalManagementAgent(getProcessId(process));
+        return JMXConnectorFactory.connect(new JMXServiceURL(address));
+    }
+
+    static boolean isAvailable() {
+        try {
+            loadVirtualMachineClass();
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private static String startLocalManagementAgent(String pid) throws IOException {
+        try {
+            Class<?> vmClass = loadVirtualMachineClass();
+            Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                return (String) vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+            } finally {
+                vmClass.getMethod("detach").invoke(vm);
+            }
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Cannot attach to process: " + pid, cause);
+        } catch (Exception ex) {
+            throw new IOException("Cannot attach to process: " + pid, ex);
+        }
+    }
+
+    private static Class<?> loadVirtualMachineClass() throws ClassNotFoundException {
+        try {
+            return Class.forName(VIRTUAL_MACHINE);
+        } catch (ClassNotFoundException ex) {
+            // Java 8 ships the Attach API in tools.jar
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!toolsJar.isFile())
+                throw ex;
+            try {
+                ClassLoader loader = new URLClassLoader(new URL[] { toolsJar.toURI().toURL() }, LocalJMXConnector.class.getClassLoader());
+                return Class.forName(VIRTUAL_MACHINE, true, loader);
+            } catch (IOException ioex) {
+                throw ex;
+            }
+        }
+    }
+
+    private static String getProcessId(Process process) throws IOException {
+        try {
+            // Java 9+
+            Method method = Process.class.getMethod("pid");
+            return String.valueOf(method.invoke(process));
+        } catch (NoSuchMethodException ex) {
+            // Java 8 on Unix
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return String.valueOf(field.getInt(process));
+            } catch (Exception fex) {
+                throw new IOException("Cannot obtain process id of: " + process, fex);
+            }
+        } catch (Exception ex) {
+            throw new IOException("Cannot obtain process id of: " + process, ex);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.jmx.framework.BundleStateMBean;
+import org.osgi.jmx.framework.FrameworkMBean;
+
+/**
+ * Test the skip logic of the {@link FeaturesProvisioner}
+ */
+public class FeaturesProvisionerTestCase {
+
+    private static final List<String> REPOSITORIES = Collections.singletonList("mvn:org.acme/features/1.0/xml/features");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MBeanServer mbeanServer;
+    private FeaturesService featuresService;
+    // The installed bundles, symbolic name and version keyed by location
+    private final Map<String, String[]> bundles = new LinkedHashMap<String, String[]>();
+    private int refreshCount;
+
+    @Before
+    public void setUp() throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer();
+        featuresService = new FeaturesService();
+        mbeanServer.registerMBean(featuresService, new ObjectName("org.apache.karaf:type=feature,name=root"));
+    }
+
+    @After
+    public void tearDown() {
+        MBeanServerFactory.releaseMBeanServer(mbeanServer);
+    }
+
+    @Test
+    public void testSkipProvisioned() throws Exception {
+        File dataDir = folder.newFolder("data");
+        assertTrue(provision(dataDir, "acme"));
+        assertEquals(Arrays.asList("addRepository " + REPOSITORIES.get(0), "installFeature acme"), featuresService.operations);
+        assertEquals(1, refreshCount);
+        assertTrue(new File(dataDir, FeaturesProvisioner.STATE_FILE).isFile());
+
+        // Bundles that do not come from the features are installed after the provisioning
+        bundles.put("file:/arquillian-osgi-bundle.jar", new String[] { "arquillian-osgi-bundle", "1.0.0" });
+        bundles.put("reference:file:/dependency.jar", new String[] { "dependency", "1.0.0" });
+
+        featuresService.operations.clear();
+        assertFalse(provision(dataDir, "acme"));
+        assertTrue(featuresService.operations.isEmpty());
+        assertEquals(1, refreshCount);
+    }
+
+    @Test
+    public void testFeatureBundleChanged() throws Exception {
+        File dataDir = folder.newFolder("data");
+        assertTrue(provision(dataDir, "acme"));
+
+        bundles.put("mvn:org.acme/acme-api/1.0", new String[] { "acme-api", "1.0.1" });
+        assertTrue(provision(dataDir, "acme"));
+        assertFalse(provision(dataDir, "acme"));
+
+        bundles.remove("mvn:org.acme/acme-impl/1.0");
+        assertTrue(provision(dataDir, "acme"));
+    }
+
+    @Test
+    public void testRequestChanged() throws Exception {
+        File dataDir = folder.newFolder("data");
+        assertTrue(provision(dataDir, "acme"));
+        assertTrue(provision(dataDir, "acme/1.0"));
+        assertEquals("installFeature acme 1.0", featuresService.operations.get(featuresService.operations.size() - 1));
+    }
+
+    @Test
+    public void testUnknownDataDir() throws Exception {
+        assertTrue(provision(null, "acme"));
+        assertTrue(provision(null, "acme"));
+    }
+
+    private boolean provision(File dataDir, String feature) throws Exception {
+        FeaturesProvisioner provisioner = new FeaturesProvisioner(mbeanServer, proxy(FrameworkMBean.class), proxy(BundleStateMBean.class));
+        return provisioner.provision(dataDir, REPOSITORIES, Collections.singletonList(feature));
+    }
+
+    private <T> T proxy(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("refreshBundlesAndWait")) {
+                    refreshCount++;
+                    return null;
+                }
+                if (method.getName().equals("listBundles")) {
+                    return listBundles();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+
+    private TabularData listBundles() throws OpenDataException {
+        String[] names = new String[] { BundleStateMBean.LOCATION, BundleStateMBean.SYMBOLIC_NAME, BundleStateMBean.VERSION };
+        CompositeType type = new CompositeType("Bundle", "Bundle", names, names, new OpenType<?>[] { SimpleType.STRING, SimpleType.STRING, SimpleType.STRING });
+        TabularDataSupport result = new TabularDataSupport(new TabularType("Bundles", "Bundles", type, new String[] { BundleStateMBean.LOCATION }));
+        for (Map.Entry<String, String[]> entry : bundles.entrySet()) {
+            result.put(new CompositeDataSupport(type, names, new Object[] { entry.getKey(), entry.getValue()[0], entry.getValue()[1] }));
+        }
+        return result;
+    }
+
+    public interface FeaturesServiceMBean {
+
+        TabularData getFeatures() throws Exception;
+
+        void addRepository(String url) throws Exception;
+
+        void installFeature(String name, boolean noRefresh) throws Exception;
+
+        void installFeature(String name, String version, boolean noRefresh) throws Exception;
+    }
+
+    /**
+     * A FeaturesService with a single feature of two bundles
+     */
+    public class FeaturesService implements FeaturesServiceMBean {
+
+        final List<String> operations = new ArrayList<String>();
+        private final String[] featureBundles = new String[] { "mvn:org.acme/acme-api/1.0", "mvn:org.acme/acme-impl/1.0" };
+        private boolean installed;
+
+        @Override
+        public TabularData getFeatures() throws Exception {
+            String[] names = new String[] { "Name", FeaturesProvisioner.FEATURE_BUNDLES, FeaturesProvisioner.FEATURE_INSTALLED };
+            CompositeType type = new CompositeType("Feature", "Feature", names, names,
+                new OpenType<?>[] { SimpleType.STRING, new ArrayType<String[]>(1, SimpleType.STRING), SimpleType.BOOLEAN });
+            TabularDataSupport result = new TabularDataSupport(new TabularType("Features", "Features", type, new String[] { "Name" }));
+            result.put(new CompositeDataSupport(type, names, new Object[] { "acme", featureBundles, installed }));
+            return result;
+        }
+
+        @Override
+        public void addRepository(String url) {
+            operations.add("addRepository " + url);
+        }
+
+        @Override
+        public void installFeature(String name, boolean noRefresh) {
+            operations.add("installFeature " + name);
+            install();
+        }
+
+        @Override
+        public void installFeature(String name, String version, boolean noRefresh) {
+            operations.add("installFeature " + name + " " + version);
+            install();
+        }
+
+        private void install() {
+            installed = true;
+            bundles.put(featureBundles[0], new String[] { "acme-api", "1.0.0" });
+            bundles.put(featureBundles[1], new String[] { "acme-impl", "1.0.0" });
+        }
+    }
+}
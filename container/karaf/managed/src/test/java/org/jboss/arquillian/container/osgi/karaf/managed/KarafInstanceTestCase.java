@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the {@link KarafInstance} setup.
+ */
+public class KarafInstanceTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAllocateFreePorts() throws Exception {
+        int[] ports = KarafInstance.allocateFreePorts(2);
+        assertEquals(2, ports.length);
+        assertNotEquals(ports[0], ports[1]);
+        for (int port : ports) {
+            // The ports are released again
+            new ServerSocket(port).close();
+        }
+    }
+
+    @Test
+    public void testDefaultInstance() throws Exception {
+        File home = folder.newFolder("karaf");
+        KarafInstance instance = KarafInstance.create(home, null);
+        assertEquals(home, instance.getBase());
+        assertEquals(new File(home, "etc"), instance.getEtc());
+        assertEquals(new File(home, "data"), instance.getData());
+    }
+
+    @Test
+    public void testNamedInstance() throws Exception {
+        File home = folder.newFolder("karaf");
+        File etc = new File(home, "etc");
+        assertTrue(etc.mkdir());
+        Files.write(new File(etc, KarafInstance.MANAGEMENT_CONFIG).toPath(), Arrays.asList("rmiRegistryPort = 1099"), StandardCharsets.ISO_8859_1);
+
+        KarafInstance instance = KarafInstance.create(home, "test");
+        File base = new File(new File(home, "instances"), "test");
+        assertEquals(base, instance.getBase());
+        assertEquals(home, instance.getHome());
+        assertTrue(new File(instance.getEtc(), KarafInstance.MANAGEMENT_CONFIG).isFile());
+
+        // The instance configuration is independent of karafHome
+        instance.configureManagementPorts(2000, 2001);
+        assertEquals(Arrays.asList("rmiRegistryPort = 1099"), Files.readAllLines(new File(etc, KarafInstance.MANAGEMENT_CONFIG).toPath()));
+    }
+
+    @Test
+    public void testConfigureContinuationLines() throws Exception {
+        File home = folder.newFolder("karaf");
+        File etc = new File(home, "etc");
+        assertTrue(etc.mkdir());
+        File config = new File(etc, KarafInstance.MAVEN_CONFIG);
+        Files.write(config.toPath(), Arrays.asList(
+            "# Remote repositories \\",
+            "org.ops4j.pax.url.mvn.repositories = \\",
+            "    http://repo1.maven.org/maven2@id=central, \\",
+            "    org.ops4j.pax.url.mvn.offline=false",
+            "org.ops4j.pax.url.mvn.settings = C:\\\\",
+            "org.ops4j.pax.url.mvn.localRepository = \\",
+            "    /tmp/repository",
+            "org.ops4j.pax.url.mvn.useFallbackRepositories = false"), StandardCharsets.ISO_8859_1);
+
+        File repository = folder.newFolder("repository");
+        KarafInstance.create(home, null).configureOfflineRepository(repository);
+        assertEquals(Arrays.asList(
+            "# Remote repositories \\",
+            "org.ops4j.pax.url.mvn.repositories = ",
+            "org.ops4j.pax.url.mvn.settings = C:\\\\",
+            "org.ops4j.pax.url.mvn.localRepository = \\",
+            "    /tmp/repository",
+            "org.ops4j.pax.url.mvn.useFallbackRepositories = false",
+            "org.ops4j.pax.url.mvn.offline = true",
+            "org.ops4j.pax.url.mvn.defaultRepositories = " + repository.toURI() + "@id=arquillian.offline@snapshots"),
+            Files.readAllLines(config.toPath(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testJmxServiceURL() {
+        String url = "service:jmx:rmi://localhost:44444/jndi/rmi://localhost:1099/karaf-root";
+        assertEquals("service:jmx:rmi://127.0.0.1:2001/jndi/rmi://127.0.0.1:2000/karaf-root",
+            KarafManagedDeployableContainer.getJmxServiceURL(url, 2000, 2001));
+    }
+}
@@ -22,7 +22,6 @@ import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import org.jboss.arquillian.container.osgi.jmx.JMXDeployableContainer;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
-import org.jboss.arquillian.osgi.bundle.ArquillianBundleGenerator;
 import org.osgi.jmx.framework.BundleStateMBean;
 import org.osgi.jmx.framework.FrameworkMBean;
 import org.osgi.jmx.framework.ServiceStateMBean;
@@ -60,7 +59,7 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
     }
 
     @Override
-    public void start() throws LifecycleException {
+    protected void startContainer() throws LifecycleException {
         // In the case of remote container adapters, this is ideally the place
         // to verify if the container is running, along with any other necessary
         // validations.
@@ -70,7 +69,7 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
         // Try to connect to an already running server
         try {
             mbeanServer = getMBeanServerConnection(30, TimeUnit.SECONDS);
-            mbeanServerInstance.set(mbeanServer);
+            setMBeanServer(mbeanServer);
         } catch (TimeoutException e) {
             throw new LifecycleException("Error connecting to Karaf MBeanServer: ", e);
         }
@@ -88,15 +87,12 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
             oname = new ObjectName("osgi.core:type=serviceState,*");
             serviceStateMBean = getMBeanProxy(mbeanServer, oname, ServiceStateMBean.class, 30, TimeUnit.SECONDS);
 
+            // Get the PackageStateMBean, which is optional
+            packageStateMBean = getPackageStateMBean(mbeanServer);
+
             // Await bootsrap complete services
             awaitBootstrapCompleteServices();
 
-            try {
-                installArquillianBundle();
-            } catch (Exception e) {
-                logger.error("Can't deploy " + ArquillianBundleGenerator.BUNDLE_NAME);
-            }
-
         } catch (RuntimeException rte) {
             throw rte;
         } catch (Exception ex) {
@@ -106,6 +102,7 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
 
     @Override
     public void stop() throws LifecycleException {
+        awaitStartedBeforeStop();
         try {
             uninstallArquillianBundle();
         } catch (Exception e) {
@@ -0,0 +1,419 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerInvocationHandler;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.container.test.spi.command.Command;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.protocol.jmx.JMXMethodExecutor;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunnerMBean;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult;
+
+/**
+ * Runs the in-container test methods of a test class that the client runs with a single invocation
+ * of the {@link BatchTestRunnerMBean}.
+ *
+ * The client reports the test methods it runs through the {@link BatchRunListener}, after any
+ * filter has been applied. The batch is started by the first of these methods. Its results arrive
+ * as notifications while the remaining methods still run, and each following test method takes its
+ * result from the batch. Commands that the tests send to the client are serviced while the batch
+ * runs. Methods that cannot be batched, methods whose result got lost, and all methods if the
+ * client does not report its test methods or the Arquillian bundle has no batch runner, are invoked
+ * one by one as usual.
+ *
+ * Batch execution is enabled with the {@link #BATCH} system property. It does not apply to test
+ * classes that depend on the order of their methods or on client side actions between them.
+ */
+public class BatchMethodExecutor extends JMXMethodExecutor {
+
+    private static final Logger log = Logger.getLogger(BatchMethodExecutor.class.getName());
+
+    /** Enables batch execution */
+    public static final String BATCH = "arquillian.osgi.batch";
+    /** The time in seconds to wait for a result once the batch has completed, defaults to 30 */
+    public static final String RESULT_TIMEOUT = "arquillian.osgi.batch.timeout";
+
+    private static final List<String> TESTS = Arrays.asList("org.junit.Test", "org.testng.annotations.Test");
+    private static final List<String> EXCLUDED = Arrays.asList("org.junit.Ignore", "org.jboss.arquillian.junit.InSequence",
+        "org.jboss.arquillian.container.test.api.RunAsClient", "org.jboss.arquillian.container.test.api.OperateOnDeployment");
+
+    // The test methods that the client runs, keyed by test class
+    private static final Map<String, List<String>> runMethods = new ConcurrentHashMap<String, List<String>>();
+    // Keyed by test class and connection
+    private static final Map<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private static final AtomicBoolean unreported = new AtomicBoolean();
+
+    private final MBeanServerConnection connection;
+    private final CommandCallback callback;
+    private final Map<String, String> protocolProps;
+
+    public BatchMethodExecutor(MBeanServerConnection connection, CommandCallback callback, Map<String, String> protocolProps) {
+        super(connection, callback, protocolProps);
+        this.connection = connection;
+        this.callback = callback;
+        this.protocolProps = protocolProps;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(BATCH);
+    }
+
+    /**
+     * Record the test methods of a class that the client is about to run, in the order it runs them.
+     */
+    public static void runStarted(String className, List<String> methodNames) {
+        runMethods.put(className, Collections.unmodifiableList(new ArrayList<String>(methodNames)));
+    }
+
+    static List<String> getRunMethods(String className) {
+        return runMethods.get(className);
+    }
+
+    /**
+     * Forget the test methods of a class and close the batches that are left over.
+     */
+    public static void runFinished(String className) {
+        runMethods.remove(className);
+        String prefix = className + "@";
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && batches.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    @Override
+    public TestResult invoke(TestMethodExecutor testMethodExecutor) {
+        Class<?> testClass = testMethodExecutor.getInstance().getClass();
+        String methodName = testMethodExecutor.getMethod().getName();
+        List<String> requested = getRunMethods(testClass.getName());
+        if (requested == null && unreported.compareAndSet(false, true)) {
+            log.info("Test methods are not reported by the " + BatchRunListener.class.getSimpleName() + ", invoking them one by one");
+        }
+        List<String> methodNames = requested != null ? getBatchMethods(testClass, requested) : Collections.<String> emptyList();
+        if (!methodNames.contains(methodName))
+            return invokeSingle(testMethodExecutor);
+
+        String key = testClass.getName() + "@" + System.identityHashCode(connection);
+        Batch batch = batches.get(key);
+        if (batch == null || !batch.isPending(methodName)) {
+            if (batch != null) {
+                batch.close();
+            }
+            batch = new Batch(testClass.getName(), methodNames);
+            batches.put(key, batch);
+            batch.start();
+        }
+        TestResult result = batch.take(methodName);
+        if (!batch.hasPending()) {
+            batches.remove(key, batch);
+        }
+        return result != null ? result : invokeSingle(testMethodExecutor);
+    }
+
+    private TestResult invokeSingle(TestMethodExecutor testMethodExecutor) {
+        // A single invocation services its own commands, which must not be forwarded twice
+        for (Batch batch : batches.values()) {
+            if (batch.getConnection() == connection) {
+                batch.awaitCompletion();
+            }
+        }
+        return super.invoke(testMethodExecutor);
+    }
+
+    /**
+     * Get the test methods that run in the container and do not depend on a particular order.
+     *
+     * @return The methods in name order or an empty list if the class cannot be batched
+     */
+    static List<String> getBatchMethods(Class<?> testClass) {
+        List<String> result = new ArrayList<String>();
+        for (Annotation annotation : testClass.getAnnotations()) {
+            if (EXCLUDED.contains(annotation.annotationType().getName()))
+                return result;
+        }
+        for (Method method : testClass.getMethods()) {
+            boolean test = false;
+            for (Annotation annotation : method.getAnnotations()) {
+                String name = annotation.annotationType().getName();
+                if (name.equals("org.jboss.arquillian.junit.InSequence")) {
+                    // The order of the methods is significant
+                    result.clear();
+                    return result;
+                }
+                if (EXCLUDED.contains(name)) {
+                    test = false;
+                    break;
+                }
+                test |= TESTS.contains(name);
+            }
+            if (test && !result.contains(method.getName())) {
+                result.add(method.getName());
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /**
+     * Get the test methods of a batch from the methods that the client runs.
+     *
+     * @return The methods that can be batched in the order of the client
+     */
+    static List<String> getBatchMethods(Class<?> testClass, List<String> requested) {
+        List<String> candidates = getBatchMethods(testClass);
+        List<String> result = new ArrayList<String>();
+        for (String methodName : requested) {
+            if (candidates.contains(methodName) && !result.contains(methodName)) {
+                result.add(methodName);
+            }
+        }
+        return result;
+    }
+
+    private final class Batch implements NotificationListener {
+        private final String batchId = UUID.randomUUID().toString();
+        private final String className;
+        private final List<String> methodNames;
+        // Completed with null if the methods must be invoked one by one
+        private final Map<String, CompletableFuture<TestResult>> results = new ConcurrentHashMap<String, CompletableFuture<TestResult>>();
+        private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ObjectName objectName;
+        private CommandListener commandListener;
+
+        Batch(String className, List<String> methodNames) {
+            this.className = className;
+            this.methodNames = methodNames;
+            for (String methodName : methodNames) {
+                results.put(methodName, new CompletableFuture<TestResult>());
+            }
+        }
+
+        MBeanServerConnection getConnection() {
+            return connection;
+        }
+
+        void start() {
+            try {
+                objectName = new ObjectName(BatchTestRunnerMBean.OBJECT_NAME);
+                NotificationFilterSupport filter = new NotificationFilterSupport();
+                filter.enableType(BatchTestRunnerMBean.RESULT_NOTIFICATION);
+                // Results must not get lost, so listen before the batch starts
+                connection.addNotificationListener(objectName, this, filter, null);
+            } catch (InstanceNotFoundException ex) {
+                log.fine("No batch test runner, invoking test methods one by one");
+                complete(null);
+                return;
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Cannot listen for batch results of " + className, ex);
+                complete(null);
+                return;
+            }
+            try {
+                commandListener = new CommandListener(new ObjectName(JMXTestRunnerMBean.OBJECT_NAME));
+                connection.addNotificationListener(commandListener.serviceName, commandListener, null, null);
+            } catch (Exception ex) {
+                // The commands of the tests would not be answered
+                log.log(Level.WARNING, "Cannot listen for commands of " + className, ex);
+                commandListener = null;
+                close();
+                complete(null);
+                return;
+            }
+
+            log.fine("Running batch of " + className + ": " + methodNames);
+            final Object[] params = new Object[] { batchId, className, methodNames.toArray(new String[methodNames.size()]),
+                protocolProps != null ? new HashMap<String, String>(protocolProps) : new HashMap<String, String>() };
+            final String[] signature = new String[] { String.class.getName(), String.class.getName(), String[].class.getName(), Map.class.getName() };
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.invoke(objectName, "runTestMethods", params, signature);
+                        completion.complete(null);
+                    } catch (Exception ex) {
+                        completion.completeExceptionally(ex);
+                    }
+                }
+            }, "arquillian-batch-" + className);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!batchId.equals(notification.getMessage()))
+                return;
+            try {
+                BatchResult batchResult = BatchResult.decode((byte[]) notification.getUserData());
+                CompletableFuture<TestResult> future = results.get(batchResult.getMethodName());
+                if (future != null) {
+                    future.complete(batchResult.getResult());
+                }
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Cannot decode batch result of " + className, ex);
+            }
+        }
+
+        boolean isPending(String methodName) {
+            return results.containsKey(methodName);
+        }
+
+        boolean hasPending() {
+            return !results.isEmpty();
+        }
+
+        /**
+         * Take the result of a test method.
+         *
+         * @return The result or null if the method must be invoked on its own
+         */
+        TestResult take(String methodName) {
+            CompletableFuture<TestResult> future = results.get(methodName);
+            try {
+                // Wait for the result or the end of the batch
+                try {
+                    CompletableFuture.anyOf(future, completion).get();
+                } catch (ExecutionException ex) {
+                    // The batch failed, the results that arrived are still valid
+                }
+                if (!future.isDone()) {
+                    if (completion.isCompletedExceptionally()) {
+                        log.log(Level.WARNING, "Batch of " + className + " failed, invoking " + methodName + " on its own", getFailure());
+                        return null;
+                    }
+                    // The notification may still be in transit
+                    try {
+                        return future.get(Long.getLong(RESULT_TIMEOUT, 30), TimeUnit.SECONDS);
+                    } catch (TimeoutException ex) {
+                        log.warning("No batch result for " + className + "." + methodName + ", invoking it on its own");
+                        return null;
+                    }
+                }
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return TestResult.failed(ex);
+            } catch (ExecutionException ex) {
+                return TestResult.failed(ex.getCause());
+            } finally {
+                results.remove(methodName);
+                if (results.isEmpty()) {
+                    close();
+                }
+            }
+        }
+
+        void awaitCompletion() {
+            try {
+                completion.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                // Reported by the methods of the batch
+            }
+        }
+
+        private Throwable getFailure() {
+            try {
+                completion.get();
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return ex;
+            } catch (ExecutionException ex) {
+                return ex.getCause();
+            }
+        }
+
+        private void complete(TestResult result) {
+            for (CompletableFuture<TestResult> future : results.values()) {
+                future.complete(result);
+            }
+            completion.complete(null);
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            removeListener(objectName, this);
+            if (commandListener != null) {
+                removeListener(commandListener.serviceName, commandListener);
+            }
+        }
+
+        private void removeListener(ObjectName name, NotificationListener listener) {
+            if (name != null) {
+                try {
+                    connection.removeNotificationListener(name, listener);
+                } catch (Exception ex) {
+                    log.log(Level.FINE, "Cannot remove batch listener", ex);
+                }
+            }
+        }
+    }
+
+    // Forwards the commands of the batched tests to the client and pushes the responses back
+    private final class CommandListener implements NotificationListener {
+        private final ObjectName serviceName;
+
+        CommandListener(ObjectName serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!(notification.getUserData() instanceof byte[]))
+                return;
+            try {
+                Command<?> command = (Command<?>) ObjectSerializer.toObject((byte[]) notification.getUserData(), BatchMethodExecutor.class.getClassLoader());
+                callback.fired(command);
+                JMXTestRunnerMBean testRunner = MBeanServerInvocationHandler.newProxyInstance(connection, serviceName, JMXTestRunnerMBean.class, false);
+                testRunner.push(notification.getMessage(), ObjectSerializer.toByteArray(command));
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Cannot process command", ex);
+            }
+        }
+    }
+}
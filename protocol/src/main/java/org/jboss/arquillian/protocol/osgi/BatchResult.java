@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.jboss.arquillian.test.spi.TestResult;
+
+/**
+ * The compact encoding of a test result in a batch.
+ *
+ * A passed test is encoded with its method name and its start and end time. Any other result
+ * carries the serialized {@link TestResult}, which includes the failure.
+ */
+public final class BatchResult {
+
+    private static final byte PASSED = 0;
+    private static final byte SERIALIZED = 1;
+
+    private final String methodName;
+    private final TestResult result;
+
+    public BatchResult(String methodName, TestResult result) {
+        this.methodName = methodName;
+        this.result = result;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public TestResult getResult() {
+        return result;
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        output.writeUTF(methodName);
+        if (result.getStatus() == TestResult.Status.PASSED && result.getThrowable() == null) {
+            output.writeByte(PASSED);
+            output.writeLong(result.getStart());
+            output.writeLong(result.getEnd());
+        } else {
+            output.writeByte(SERIALIZED);
+            ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+            objectOutput.writeObject(result);
+            objectOutput.flush();
+        }
+        output.flush();
+        return baos.toByteArray();
+    }
+
+    public static BatchResult decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        String methodName = input.readUTF();
+        TestResult result;
+        if (input.readByte() == PASSED) {
+            result = TestResult.passed();
+            result.setStart(input.readLong());
+            result.setEnd(input.readLong());
+        } else {
+            result = (TestResult) new ObjectInputStream(input).readObject();
+        }
+        return new BatchResult(methodName, result);
+    }
+}
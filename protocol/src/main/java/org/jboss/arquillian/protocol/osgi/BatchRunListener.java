@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * Reports the test methods that a JUnit runner runs to the {@link BatchMethodExecutor}.
+ *
+ * The description of a started suite only contains the test methods that remain after filtering,
+ * so a batch never runs a method that the client does not run. The listener is registered with
+ * the test runner, for example with the <code>listener</code> property of the Surefire plugin.
+ */
+@RunListener.ThreadSafe
+public class BatchRunListener extends RunListener {
+
+    @Override
+    public void testSuiteStarted(Description description) {
+        for (Map.Entry<String, List<String>> entry : getTestMethods(description).entrySet()) {
+            BatchMethodExecutor.runStarted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void testSuiteFinished(Description description) {
+        for (String className : getTestMethods(description).keySet()) {
+            BatchMethodExecutor.runFinished(className);
+        }
+    }
+
+    // The test methods of the suite itself, keyed by test class
+    private static Map<String, List<String>> getTestMethods(Description description) {
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        for (Description child : description.getChildren()) {
+            if (child.isTest() && child.getMethodName() != null) {
+                List<String> methodNames = result.get(child.getClassName());
+                if (methodNames == null) {
+                    methodNames = new ArrayList<String>();
+                    result.put(child.getClassName(), methodNames);
+                }
+                methodNames.add(child.getMethodName());
+            }
+        }
+        return result;
+    }
+}
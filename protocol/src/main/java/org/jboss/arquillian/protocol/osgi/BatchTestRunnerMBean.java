@@ -0,0 +1,44 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.Map;
+
+/**
+ * Runs the test methods of a test class in a single invocation.
+ *
+ * The result of each test method is sent as a {@link #RESULT_NOTIFICATION} as soon as the method
+ * completes. The message of the notification is the batch id and its user data is the result
+ * encoded by {@link BatchResult}.
+ */
+public interface BatchTestRunnerMBean {
+
+    String OBJECT_NAME = "jboss.arquillian:service=batch-test-runner";
+
+    String RESULT_NOTIFICATION = "jboss.arquillian.batch.result";
+
+    /**
+     * Run test methods one after the other, parallel-safe methods may run concurrently.
+     *
+     * @param batchId       The id that identifies the result notifications of this batch
+     * @param className     The test class
+     * @param methodNames   The test methods
+     * @param protocolProps The protocol properties of the test invocations
+     * @return The number of results that were sent
+     */
+    int runTestMethods(String batchId, String className, String[] methodNames, Map<String, String> protocolProps);
+}
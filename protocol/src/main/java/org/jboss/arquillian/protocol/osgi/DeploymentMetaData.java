@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
+import org.jboss.osgi.metadata.OSGiMetaData;
+import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+
+/**
+ * The parsed and validated manifest of a deployment.
+ *
+ * The metadata is computed once per manifest asset and shared by the archive processor, the
+ * deployment packager, the containers and the deployment observer. Replacing the manifest
+ * of an archive replaces its asset and therefore invalidates the metadata.
+ */
+public final class DeploymentMetaData {
+
+    private static final Map<Asset, DeploymentMetaData> cache = Collections.synchronizedMap(new WeakHashMap<Asset, DeploymentMetaData>());
+
+    private final Manifest manifest;
+    private final OSGiMetaData metadata;
+    private final Exception validationException;
+
+    private DeploymentMetaData(Manifest manifest, OSGiMetaData metadata, Exception validationException) {
+        this.manifest = manifest;
+        this.metadata = metadata;
+        this.validationException = validationException;
+    }
+
+    /**
+     * Get the metadata of the current manifest of an archive.
+     *
+     * @param archive The deployment archive
+     * @return The metadata, never null
+     */
+    public static DeploymentMetaData get(Archive<?> archive) {
+        Node node = archive.get(JarFile.MANIFEST_NAME);
+        Asset asset = node != null ? node.getAsset() : null;
+        if (asset == null)
+            return create(null);
+
+        DeploymentMetaData result = cache.get(asset);
+        if (result == null) {
+            result = create(asset);
+            cache.put(asset, result);
+        }
+        return result;
+    }
+
+    private static DeploymentMetaData create(Asset asset) {
+        Manifest manifest = null;
+        if (asset != null) {
+            try {
+                InputStream input = asset.openStream();
+                try {
+                    manifest = new Manifest(input);
+                } finally {
+                    input.close();
+                }
+            } catch (Exception ex) {
+                return new DeploymentMetaData(null, null, ex);
+            }
+        }
+        try {
+            OSGiManifestBuilder.validateBundleManifest(manifest);
+            return new DeploymentMetaData(manifest, OSGiMetaDataBuilder.load(manifest), null);
+        } catch (Exception ex) {
+            return new DeploymentMetaData(manifest, null, ex);
+        }
+    }
+
+    /**
+     * Get a copy of the manifest.
+     *
+     * @return The manifest or null if the archive has no readable manifest
+     */
+    public Manifest getManifest() {
+        return manifest != null ? new Manifest(manifest) : null;
+    }
+
+    /**
+     * Get the OSGi metadata.
+     *
+     * @return The metadata or null if the manifest is not a valid bundle manifest
+     */
+    public OSGiMetaData getOSGiMetaData() {
+        return metadata;
+    }
+
+    public boolean isValidBundle() {
+        return validationException == null;
+    }
+
+    /**
+     * Assert that the manifest is a valid bundle manifest.
+     *
+     * @throws Exception The exception of the manifest validation
+     */
+    public void assertValidBundle() throws Exception {
+        if (validationException != null)
+            throw validationException;
+    }
+
+    public String getSymbolicName() {
+        return metadata != null ? metadata.getBundleSymbolicName() : null;
+    }
+
+    public String getVersion() {
+        return metadata != null ? metadata.getBundleVersion().toString() : null;
+    }
+
+    public boolean isFragment() {
+        return metadata != null && metadata.getFragmentHost() != null;
+    }
+
+    @Override
+    public String toString() {
+        return "DeploymentMetaData[" + getSymbolicName() + ":" + getVersion() + "]";
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A clause of an OSGi manifest header like <code>Import-Package</code> or <code>Export-Package</code>.
+ *
+ * <pre>
+ * clause    ::= path ( ';' path )* ( ';' parameter )*
+ * parameter ::= directive | attribute
+ * directive ::= name ':=' value
+ * attribute ::= name '=' value
+ * </pre>
+ *
+ * Headers are parsed in a single pass. Separators inside quoted values are not significant.
+ */
+public final class HeaderClause {
+
+    private final String text;
+    private final List<String> paths;
+    private final Map<String, String> directives;
+    private final Map<String, String> attributes;
+
+    private HeaderClause(String text, List<String> paths, Map<String, String> directives, Map<String, String> attributes) {
+        this.text = text;
+        this.paths = Collections.unmodifiableList(paths);
+        this.directives = Collections.unmodifiableMap(directives);
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Parse the clauses of a manifest header.
+     *
+     * @param header The header value, may be null
+     * @return The clauses in header order
+     */
+    public static List<HeaderClause> parse(String header) {
+        List<HeaderClause> result = new ArrayList<HeaderClause>();
+        if (header == null)
+            return result;
+
+        int length = header.length();
+        int clauseStart = 0;
+        int partStart = 0;
+        int separator = -1;
+        boolean directive = false;
+        boolean quoted = false;
+        List<String> paths = new ArrayList<String>(1);
+        Map<String, String> directives = new LinkedHashMap<String, String>();
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 0; i <= length; i++) {
+            char ch = ',';
+            if (i < length) {
+                ch = header.charAt(i);
+            } else {
+                // An unterminated quote still ends with the header
+                quoted = false;
+            }
+            if (quoted) {
+                if (ch == '\\' && i + 1 < length) {
+                    i++;
+                } else if (ch == '"') {
+                    quoted = false;
+                }
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == '=' && separator < 0) {
+                directive = i > partStart && header.charAt(i - 1) == ':';
+                separator = i;
+            } else if (ch == ';' || ch == ',') {
+                if (separator < 0) {
+                    String path = header.substring(partStart, i).trim();
+                    if (!path.isEmpty())
+                        paths.add(path);
+                } else {
+                    String name = header.substring(partStart, directive ? separator - 1 : separator).trim();
+                    String value = unquote(header.substring(separator + 1, i).trim());
+                    (directive ? directives : attributes).put(name, value);
+                }
+                partStart = i + 1;
+                separator = -1;
+                if (ch == ',') {
+                    String text = header.substring(clauseStart, i).trim();
+                    if (!text.isEmpty())
+                        result.add(new HeaderClause(text, paths, directives, attributes));
+                    clauseStart = i + 1;
+                    paths = new ArrayList<String>(1);
+                    directives = new LinkedHashMap<String, String>();
+                    attributes = new LinkedHashMap<String, String>();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Split a manifest header into its clauses without parsing the clause parameters.
+     *
+     * @param header The header value, may be null
+     * @return The trimmed clauses in header order
+     */
+    public static List<String> split(String header) {
+        List<String> result = new ArrayList<String>();
+        if (header == null)
+            return result;
+
+        int length = header.length();
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i <= length; i++) {
+            char ch = ',';
+            if (i < length) {
+                ch = header.charAt(i);
+            } else {
+                // An unterminated quote still ends with the header
+                quoted = false;
+            }
+            if (quoted) {
+                if (ch == '\\' && i + 1 < length) {
+                    i++;
+                } else if (ch == '"') {
+                    quoted = false;
+                }
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == ',') {
+                String clause = header.substring(start, i).trim();
+                if (!clause.isEmpty())
+                    result.add(clause);
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"')
+            return value;
+        String result = value.substring(1, value.length() - 1);
+        if (result.indexOf('\\') < 0)
+            return result;
+        StringBuilder builder = new StringBuilder(result.length());
+        for (int i = 0; i < result.length(); i++) {
+            char ch = result.charAt(i);
+            if (ch == '\\' && i + 1 < result.length()) {
+                ch = result.charAt(++i);
+            }
+            builder.append(ch);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get the first path of this clause, usually the package name.
+     */
+    public String getName() {
+        return paths.isEmpty() ? null : paths.get(0);
+    }
+
+    /**
+     * Get all paths of this clause, a clause may declare several packages with the same parameters.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public Map<String, String> getDirectives() {
+        return directives;
+    }
+
+    public String getDirective(String name) {
+        return directives.get(name);
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
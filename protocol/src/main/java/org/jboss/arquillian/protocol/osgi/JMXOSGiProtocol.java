@@ -17,8 +17,15 @@
  */
 package org.jboss.arquillian.protocol.osgi;
 
+import javax.management.MBeanServerConnection;
+
+import org.jboss.arquillian.container.spi.client.protocol.metadata.JMXContext;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
 import org.jboss.arquillian.container.test.spi.client.deployment.DeploymentPackager;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
 import org.jboss.arquillian.protocol.jmx.AbstractJMXProtocol;
+import org.jboss.arquillian.protocol.jmx.JMXMethodExecutor;
+import org.jboss.arquillian.protocol.jmx.JMXProtocolConfiguration;
 
 /**
  * JMXOSGiProtocol
@@ -33,6 +40,15 @@ public class JMXOSGiProtocol extends AbstractJMXProtocol {
         return new OSGiDeploymentPackager();
     }
 
+    @Override
+    public JMXMethodExecutor getExecutor(JMXProtocolConfiguration config, ProtocolMetaData metaData, CommandCallback callback) {
+        if (!BatchMethodExecutor.isEnabled())
+            return super.getExecutor(config, metaData, callback);
+
+        MBeanServerConnection mbeanServer = metaData.getContexts(JMXContext.class).iterator().next().getConnection();
+        return new BatchMethodExecutor(mbeanServer, callback, config.getProtocolProperties());
+    }
+
     @Override
     public String getProtocolName() {
         return "jmx-osgi";
@@ -0,0 +1,127 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.Function;
+
+import org.jboss.arquillian.container.test.spi.ContainerMethodExecutor;
+import org.jboss.arquillian.container.test.spi.command.Command;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Invokes test methods through the {@link LocalTestRunner} service of the Arquillian bundle.
+ *
+ * The result is copied field by field. Its throwable is passed on as is if the client sees the
+ * same classes, otherwise it is serialized into the classes of the client. Commands of the test,
+ * which are rare, are serialized as well.
+ */
+public class LocalMethodExecutor implements ContainerMethodExecutor {
+
+    private final BundleContext syscontext;
+    private final Function<byte[], byte[]> commandCallback;
+    // The run method of the last service implementation
+    private volatile Method runMethod;
+
+    public LocalMethodExecutor(BundleContext syscontext, final CommandCallback callback) {
+        this.syscontext = syscontext;
+        // The callback runs on the thread of the test, which has the context class loader of the framework
+        final ClassLoader classLoader = getClientClassLoader();
+        this.commandCallback = new Function<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] bytes) {
+                try {
+                    Command<?> command = (Command<?>) ObjectSerializer.toObject(bytes, classLoader);
+                    callback.fired(command);
+                    return ObjectSerializer.toByteArray(command);
+                } catch (IOException | ClassNotFoundException ex) {
+                    throw new IllegalStateException("Cannot execute command", ex);
+                }
+            }
+        };
+    }
+
+    @Override
+    public TestResult invoke(TestMethodExecutor testMethodExecutor) {
+        Class<?> testClass = testMethodExecutor.getInstance().getClass();
+        String methodName = testMethodExecutor.getMethod().getName();
+        ServiceReference<?> sref = syscontext.getServiceReference(LocalTestRunner.class.getName());
+        if (sref == null)
+            return TestResult.failed(new IllegalStateException("Service not available: " + LocalTestRunner.class.getName()));
+
+        Object service = syscontext.getService(sref);
+        try {
+            Object[] data = (Object[]) getRunMethod(service).invoke(service, testClass.getName(), methodName, commandCallback);
+            TestResult result = new TestResult();
+            result.setStatus(Status.valueOf((String) data[0]));
+            result.setStart((Long) data[1]);
+            result.setEnd((Long) data[2]);
+            if (data[3] != null) {
+                result.setThrowable(toClientThrowable((Throwable) data[3], testClass.getClassLoader()));
+            }
+            return result;
+        } catch (InvocationTargetException ex) {
+            return TestResult.failed(ex.getCause());
+        } catch (Exception ex) {
+            return TestResult.failed(ex);
+        } finally {
+            syscontext.ungetService(sref);
+        }
+    }
+
+    private Method getRunMethod(Object service) throws NoSuchMethodException {
+        Method method = runMethod;
+        if (method == null || method.getDeclaringClass() != service.getClass()) {
+            method = service.getClass().getMethod(LocalTestRunner.RUN_TEST_METHOD, String.class, String.class, Function.class);
+            runMethod = method;
+        }
+        return method;
+    }
+
+    /**
+     * Get a throwable in the classes of the client, so that assumption failures and the like are recognized.
+     */
+    static Throwable toClientThrowable(Throwable throwable, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        if (isClientClass(throwable, classLoader))
+            return throwable;
+        return (Throwable) ObjectSerializer.toObject(ObjectSerializer.toByteArray(throwable), classLoader);
+    }
+
+    private static boolean isClientClass(Throwable throwable, ClassLoader classLoader) {
+        for (Throwable aux = throwable; aux != null; aux = aux.getCause()) {
+            try {
+                if (Class.forName(aux.getClass().getName(), false, classLoader) != aux.getClass())
+                    return false;
+            } catch (ClassNotFoundException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ClassLoader getClientClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : LocalMethodExecutor.class.getClassLoader();
+    }
+}
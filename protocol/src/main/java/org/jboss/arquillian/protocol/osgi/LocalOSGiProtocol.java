@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.Collection;
+
+import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.container.test.spi.ContainerMethodExecutor;
+import org.jboss.arquillian.container.test.spi.client.deployment.DeploymentPackager;
+import org.jboss.arquillian.container.test.spi.client.protocol.Protocol;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+
+/**
+ * A protocol for frameworks that run in the JVM of the client.
+ *
+ * Test methods are invoked through the {@link LocalTestRunner} service of the Arquillian bundle,
+ * without an MBeanServer and without serializing the invocation or its result.
+ */
+public class LocalOSGiProtocol implements Protocol<LocalOSGiProtocolConfiguration> {
+
+    public static final String NAME = "osgi-local";
+
+    @Override
+    public Class<LocalOSGiProtocolConfiguration> getProtocolConfigurationClass() {
+        return LocalOSGiProtocolConfiguration.class;
+    }
+
+    @Override
+    public ProtocolDescription getDescription() {
+        return new ProtocolDescription(NAME);
+    }
+
+    @Override
+    public DeploymentPackager getPackager() {
+        return new OSGiDeploymentPackager();
+    }
+
+    @Override
+    public ContainerMethodExecutor getExecutor(LocalOSGiProtocolConfiguration config, ProtocolMetaData metaData, CommandCallback callback) {
+        Collection<LocalOSGiContext> contexts = metaData.getContexts(LocalOSGiContext.class);
+        if (contexts.isEmpty())
+            throw new IllegalStateException("The " + NAME + " protocol requires a framework in the same JVM");
+        return new LocalMethodExecutor(contexts.iterator().next().getSystemContext(), callback);
+    }
+}
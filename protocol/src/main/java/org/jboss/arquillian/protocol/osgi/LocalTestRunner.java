@@ -0,0 +1,41 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.function.Function;
+
+/**
+ * Runs test methods for a client in the same JVM as the framework.
+ *
+ * The Arquillian bundle registers this service and the <code>osgi-local</code> protocol calls it
+ * directly. The client does not share classes with the Arquillian bundle, so it looks the service
+ * up by name, calls it reflectively and only exchanges JDK types with it.
+ */
+public interface LocalTestRunner {
+
+    String RUN_TEST_METHOD = "runTestMethod";
+
+    /**
+     * Run a test method.
+     *
+     * @param className       The test class
+     * @param methodName      The test method
+     * @param commandCallback Executes a serialized command on the client and returns it with its result
+     * @return The status name, start time, end time and throwable of the test result
+     */
+    Object[] runTestMethod(String className, String methodName, Function<byte[], byte[]> commandCallback);
+}
@@ -17,15 +17,11 @@
 package org.jboss.arquillian.protocol.osgi;
 
 import java.util.Collection;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 
 import org.jboss.arquillian.container.test.spi.TestDeployment;
 import org.jboss.arquillian.container.test.spi.client.deployment.DeploymentPackager;
 import org.jboss.arquillian.container.test.spi.client.deployment.ProtocolArchiveProcessor;
-import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.shrinkwrap.api.Archive;
-import org.jboss.shrinkwrap.api.Node;
 
 /**
  * Packager for running Arquillian against OSGi containers.
@@ -52,11 +48,6 @@ public class OSGiDeploymentPackager implements DeploymentPackager {
     }
 
     private void validateBundleArchive(Archive<?> archive) throws Exception {
-        Manifest manifest = null;
-        Node node = archive.get(JarFile.MANIFEST_NAME);
-        if (node != null) {
-            manifest = new Manifest(node.getAsset().openStream());
-        }
-        OSGiManifestBuilder.validateBundleManifest(manifest);
+        DeploymentMetaData.get(archive).assertValidBundle();
     }
 }
@@ -32,6 +32,7 @@ public class OSGiJMXProtocolExtension implements LoadableExtension {
     @Override
     public void register(ExtensionBuilder builder) {
         builder.service(Protocol.class, JMXOSGiProtocol.class);
+        builder.service(Protocol.class, LocalOSGiProtocol.class);
         builder.service(AuxiliaryArchiveAppender.class, CommandServiceAuxiliaryAppender.class);
     }
 
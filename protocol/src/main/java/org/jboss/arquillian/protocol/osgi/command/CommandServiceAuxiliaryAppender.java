@@ -19,6 +19,10 @@ package org.jboss.arquillian.protocol.osgi.command;
 import org.jboss.arquillian.container.test.spi.RemoteLoadableExtension;
 import org.jboss.arquillian.container.test.spi.client.deployment.AuxiliaryArchiveAppender;
 import org.jboss.arquillian.protocol.jmx.JMXCommandService;
+import org.jboss.arquillian.protocol.osgi.BatchResult;
+import org.jboss.arquillian.protocol.osgi.BatchTestRunnerMBean;
+import org.jboss.arquillian.protocol.osgi.LocalTestRunner;
+import org.jboss.arquillian.protocol.osgi.ObjectSerializer;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
@@ -40,7 +44,9 @@ public class CommandServiceAuxiliaryAppender
             RemoteLoadableExtension.class, CommandServiceExtension.class);
 
         archive.addClasses(CommandServiceExtension.class);
-        archive.addClasses(JMXCommandService.class);
+        archive.addClasses(OSGiCommandService.class, JMXCommandService.class);
+        archive.addClasses(BatchTestRunnerMBean.class, BatchResult.class);
+        archive.addClasses(LocalTestRunner.class, ObjectSerializer.class);
 
         return archive;
     }
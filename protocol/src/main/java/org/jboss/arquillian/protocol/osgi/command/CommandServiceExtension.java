@@ -18,7 +18,6 @@ package org.jboss.arquillian.protocol.osgi.command;
 
 import org.jboss.arquillian.container.test.spi.RemoteLoadableExtension;
 import org.jboss.arquillian.container.test.spi.command.CommandService;
-import org.jboss.arquillian.protocol.jmx.JMXCommandService;
 
 /**
  * CommandServiceExtension
@@ -29,7 +28,7 @@ public class CommandServiceExtension implements RemoteLoadableExtension {
 
     @Override
     public void register(ExtensionBuilder builder) {
-        builder.service(CommandService.class, JMXCommandService.class);
+        builder.service(CommandService.class, OSGiCommandService.class);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi.command;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+import org.jboss.arquillian.container.test.spi.command.Command;
+import org.jboss.arquillian.container.test.spi.command.CommandService;
+import org.jboss.arquillian.protocol.jmx.JMXCommandService;
+import org.jboss.arquillian.protocol.osgi.ObjectSerializer;
+
+/**
+ * Executes commands of a test on the client that invoked it.
+ *
+ * A test that runs over the <code>osgi-local</code> protocol has a command callback bound to its
+ * thread, commands of all other tests are sent over JMX.
+ */
+public class OSGiCommandService implements CommandService {
+
+    private static final ThreadLocal<Function<byte[], byte[]>> localCallback = new ThreadLocal<Function<byte[], byte[]>>();
+
+    private final CommandService jmxCommandService = new JMXCommandService();
+
+    /**
+     * Bind the command callback of a local client to the current thread, or unbind it with null.
+     */
+    public static void setLocalCallback(Function<byte[], byte[]> callback) {
+        if (callback != null) {
+            localCallback.set(callback);
+        } else {
+            localCallback.remove();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Command<T> command) {
+        Function<byte[], byte[]> callback = localCallback.get();
+        if (callback == null)
+            return jmxCommandService.execute(command);
+
+        Command<T> response;
+        try {
+            // The client has its own copy of the command classes
+            byte[] bytes = callback.apply(ObjectSerializer.toByteArray(command));
+            response = (Command<T>) ObjectSerializer.toObject(bytes, OSGiCommandService.class.getClassLoader());
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new IllegalStateException("Cannot execute command: " + command, ex);
+        }
+        if (response.getThrowable() != null)
+            throw new RuntimeException("Command failed: " + command, response.getThrowable());
+        return response.getResult();
+    }
+}
@@ -16,7 +16,10 @@
  */
 package org.jboss.arquillian.packager.osgi;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.io.InputStream;
@@ -24,6 +27,7 @@ import java.util.ArrayList;
 
 import org.jboss.arquillian.container.test.spi.TestDeployment;
 import org.jboss.arquillian.container.test.spi.client.deployment.ProtocolArchiveProcessor;
+import org.jboss.arquillian.protocol.osgi.DeploymentMetaData;
 import org.jboss.arquillian.protocol.osgi.OSGiDeploymentPackager;
 import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.shrinkwrap.api.Archive;
@@ -72,4 +76,31 @@ public class OSGiDeploymentPackagerTestCase {
             // expected
         }
     }
+
+    @Test
+    public void testMetaDataCached() throws Exception {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class);
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleSymbolicName(archive.getName());
+                builder.addBundleManifestVersion(2);
+                return builder.openStream();
+            }
+        });
+
+        DeploymentMetaData metadata = DeploymentMetaData.get(archive);
+        assertEquals(archive.getName(), metadata.getSymbolicName());
+        assertSame(metadata, DeploymentMetaData.get(archive));
+
+        // A new manifest invalidates the metadata
+        archive.setManifest(new Asset() {
+            public InputStream openStream() {
+                return OSGiManifestBuilder.newInstance().openStream();
+            }
+        });
+        DeploymentMetaData invalid = DeploymentMetaData.get(archive);
+        assertNotSame(metadata, invalid);
+        assertEquals(false, invalid.isValidBundle());
+    }
 }
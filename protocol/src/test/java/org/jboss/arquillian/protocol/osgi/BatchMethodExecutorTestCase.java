@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.protocol.jmx.JMXTestRunnerMBean;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Test {@link BatchMethodExecutor}
+ */
+public class BatchMethodExecutorTestCase {
+
+    @Test
+    public void testGetBatchMethods() throws Exception {
+        assertEquals(Arrays.asList("testA", "testB", "testC"), BatchMethodExecutor.getBatchMethods(SampleTest.class));
+        assertTrue(BatchMethodExecutor.getBatchMethods(IgnoredTest.class).isEmpty());
+    }
+
+    @Test
+    public void testGetRequestedBatchMethods() throws Exception {
+        // Only the methods that the client runs, in its order
+        assertEquals(Arrays.asList("testC", "testA"),
+            BatchMethodExecutor.getBatchMethods(SampleTest.class, Arrays.asList("testC", "testIgnored", "testA", "unknown")));
+        assertTrue(BatchMethodExecutor.getBatchMethods(IgnoredTest.class, Arrays.asList("testA")).isEmpty());
+    }
+
+    @Test
+    public void testLostResult() throws Exception {
+        ObjectName batchRunner = new ObjectName(BatchTestRunnerMBean.OBJECT_NAME);
+        ObjectName testRunner = new ObjectName(JMXTestRunnerMBean.OBJECT_NAME);
+        MBeanServerConnection connection = mock(MBeanServerConnection.class);
+        when(connection.invoke(eq(testRunner), eq("runTestMethod"), any(Object[].class), any(String[].class)))
+            .thenReturn(ObjectSerializer.toByteArray(TestResult.passed()));
+
+        System.setProperty(BatchMethodExecutor.RESULT_TIMEOUT, "0");
+        BatchMethodExecutor.runStarted(SampleTest.class.getName(), Arrays.asList("testA", "testB"));
+        try {
+            // The batch sends no result, so the method is invoked on its own
+            BatchMethodExecutor executor = new BatchMethodExecutor(connection, mock(CommandCallback.class), new HashMap<String, String>());
+            TestResult result = executor.invoke(new SampleTestMethod("testA"));
+            assertEquals(Status.PASSED, result.getStatus());
+            verify(connection).invoke(eq(batchRunner), eq("runTestMethods"), any(Object[].class), any(String[].class));
+            verify(connection).invoke(eq(testRunner), eq("runTestMethod"), any(Object[].class), any(String[].class));
+        } finally {
+            BatchMethodExecutor.runFinished(SampleTest.class.getName());
+            System.clearProperty(BatchMethodExecutor.RESULT_TIMEOUT);
+        }
+        // The abandoned batch no longer listens for results
+        verify(connection).removeNotificationListener(eq(batchRunner), any(NotificationListener.class));
+    }
+
+    public static class SampleTest {
+        @Test
+        public void testA() {
+        }
+
+        @Test
+        public void testB() {
+        }
+
+        @Test
+        public void testC() {
+        }
+
+        @Test
+        @Ignore
+        public void testIgnored() {
+        }
+
+        public void helper() {
+        }
+    }
+
+    @Ignore
+    public static class IgnoredTest {
+        @Test
+        public void testA() {
+        }
+    }
+
+    private static final class SampleTestMethod implements TestMethodExecutor {
+        private final Method method;
+        private final SampleTest instance = new SampleTest();
+
+        SampleTestMethod(String methodName) throws NoSuchMethodException {
+            method = SampleTest.class.getMethod(methodName);
+        }
+
+        public String getMethodName() {
+            return method.getName();
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @Override
+        public Object getInstance() {
+            return instance;
+        }
+
+        @Override
+        public void invoke(Object... parameters) throws Throwable {
+            method.invoke(instance, parameters);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.junit.Test;
+
+/**
+ * Test {@link BatchResult}
+ */
+public class BatchResultTestCase {
+
+    @Test
+    public void testPassed() throws Exception {
+        TestResult result = TestResult.passed();
+        result.setStart(1000);
+        result.setEnd(2000);
+
+        byte[] bytes = new BatchResult("testPassed", result).encode();
+        // Method name, kind, start and end time
+        assertEquals(2 + "testPassed".length() + 1 + 8 + 8, bytes.length);
+
+        BatchResult batchResult = BatchResult.decode(bytes);
+        assertEquals("testPassed", batchResult.getMethodName());
+        assertEquals(Status.PASSED, batchResult.getResult().getStatus());
+        assertEquals(1000, batchResult.getResult().getStart());
+        assertEquals(2000, batchResult.getResult().getEnd());
+        assertNull(batchResult.getResult().getThrowable());
+    }
+
+    @Test
+    public void testFailed() throws Exception {
+        TestResult result = TestResult.failed(new IllegalStateException("failed"));
+        result.setEnd(2000);
+
+        BatchResult batchResult = BatchResult.decode(new BatchResult("testFailed", result).encode());
+        assertEquals("testFailed", batchResult.getMethodName());
+        assertEquals(Status.FAILED, batchResult.getResult().getStatus());
+        assertEquals(2000, batchResult.getResult().getEnd());
+        assertTrue(batchResult.getResult().getThrowable() instanceof IllegalStateException);
+        assertEquals("failed", batchResult.getResult().getThrowable().getMessage());
+    }
+
+    @Test
+    public void testPassedWithThrowable() throws Exception {
+        TestResult result = TestResult.passed();
+        result.setThrowable(new IllegalArgumentException("expected"));
+
+        BatchResult batchResult = BatchResult.decode(new BatchResult("testExpected", result).encode());
+        assertEquals(Status.PASSED, batchResult.getResult().getStatus());
+        assertEquals("expected", batchResult.getResult().getThrowable().getMessage());
+    }
+
+    @Test
+    public void testSkipped() throws Exception {
+        BatchResult batchResult = BatchResult.decode(new BatchResult("testSkipped", TestResult.skipped()).encode());
+        assertEquals("testSkipped", batchResult.getMethodName());
+        assertEquals(Status.SKIPPED, batchResult.getResult().getStatus());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+
+/**
+ * Test {@link BatchRunListener}
+ */
+public class BatchRunListenerTestCase {
+
+    @Test
+    public void testFilteredMethods() throws Exception {
+        Result result = run(Request.method(RecordingTest.class, "testB"));
+        assertTrue(result.wasSuccessful());
+        assertEquals(Arrays.asList("testB"), RecordingTest.runMethods);
+        assertNull(BatchMethodExecutor.getRunMethods(RecordingTest.class.getName()));
+    }
+
+    @Test
+    public void testAllMethods() throws Exception {
+        Result result = run(Request.aClass(RecordingTest.class));
+        assertTrue(result.wasSuccessful());
+        assertEquals(new HashSet<String>(Arrays.asList("testA", "testB")), new HashSet<String>(RecordingTest.runMethods));
+        assertNull(BatchMethodExecutor.getRunMethods(RecordingTest.class.getName()));
+    }
+
+    private static Result run(Request request) {
+        RecordingTest.runMethods = Collections.emptyList();
+        JUnitCore core = new JUnitCore();
+        core.addListener(new BatchRunListener());
+        return core.run(request);
+    }
+
+    public static class RecordingTest {
+        static volatile List<String> runMethods;
+
+        @Test
+        public void testA() {
+            runMethods = BatchMethodExecutor.getRunMethods(RecordingTest.class.getName());
+        }
+
+        @Test
+        public void testB() {
+            runMethods = BatchMethodExecutor.getRunMethods(RecordingTest.class.getName());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test {@link HeaderClause}
+ */
+public class HeaderClauseTestCase {
+
+    @Test
+    public void testParse() throws Exception {
+        List<HeaderClause> clauses = HeaderClause.parse("org.a;org.b;version=\"[1.0,2.0)\";resolution:=optional, org.c;extra=\"A,B;C\",org.d");
+        assertEquals(3, clauses.size());
+
+        HeaderClause clause = clauses.get(0);
+        assertEquals(Arrays.asList("org.a", "org.b"), clause.getPaths());
+        assertEquals("[1.0,2.0)", clause.getAttribute("version"));
+        assertEquals("optional", clause.getDirective("resolution"));
+        assertEquals("org.a;org.b;version=\"[1.0,2.0)\";resolution:=optional", clause.toString());
+
+        clause = clauses.get(1);
+        assertEquals("org.c", clause.getName());
+        assertEquals("A,B;C", clause.getAttribute("extra"));
+        assertTrue(clause.getDirectives().isEmpty());
+
+        clause = clauses.get(2);
+        assertEquals("org.d", clause.getName());
+        assertTrue(clause.getAttributes().isEmpty());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        assertEquals(Arrays.asList("org.a;extra=\"A,B,C\"", "org.b;version=\"[1.0.0,2.0.0)\""),
+            HeaderClause.split("org.a;extra=\"A,B,C\",org.b;version=\"[1.0.0,2.0.0)\""));
+        assertTrue(HeaderClause.split("").isEmpty());
+        assertTrue(HeaderClause.split(null).isEmpty());
+    }
+
+    @Test
+    public void testSplitCompareRegex() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append("org.acme.p").append(i).append(";version=\"[1.0,2.0)\";extra=\"A,B\"");
+        }
+        String header = builder.toString();
+
+        assertEquals(Arrays.asList(regexSplit(header)), HeaderClause.split(header));
+        assertEquals(500, HeaderClause.parse(header).size());
+    }
+
+    // The lookahead split that was previously used by the application archive processor
+    private static String[] regexSplit(String value) {
+        return value.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+    }
+}
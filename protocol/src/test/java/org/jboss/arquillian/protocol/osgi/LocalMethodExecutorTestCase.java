@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.Function;
+
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test {@link LocalMethodExecutor}
+ */
+public class LocalMethodExecutorTestCase {
+
+    @Test
+    public void testSharedThrowable() throws Exception {
+        IllegalStateException throwable = new IllegalStateException("shared", new IllegalArgumentException("cause"));
+        assertSame(throwable, LocalMethodExecutor.toClientThrowable(throwable, getClass().getClassLoader()));
+    }
+
+    @Test
+    public void testFrameworkThrowable() throws Exception {
+        Throwable throwable = frameworkThrowable("framework");
+        assertNotSame(ClientException.class, throwable.getClass());
+
+        Throwable result = LocalMethodExecutor.toClientThrowable(throwable, getClass().getClassLoader());
+        assertSame(ClientException.class, result.getClass());
+        assertEquals("framework", result.getMessage());
+    }
+
+    @Test
+    public void testFrameworkCause() throws Exception {
+        Throwable throwable = new IllegalStateException("shared", frameworkThrowable("cause"));
+
+        Throwable result = LocalMethodExecutor.toClientThrowable(throwable, getClass().getClassLoader());
+        assertNotSame(throwable, result);
+        assertSame(IllegalStateException.class, result.getClass());
+        assertSame(ClientException.class, result.getCause().getClass());
+        assertEquals("cause", result.getCause().getMessage());
+    }
+
+    @Test
+    public void testInvoke() throws Exception {
+        TestResult result = new LocalMethodExecutor(systemContext(new FailingTestRunner()), mock(CommandCallback.class)).invoke(new SampleTestMethod());
+        assertEquals(Status.FAILED, result.getStatus());
+        assertEquals(1000, result.getStart());
+        assertEquals(2000, result.getEnd());
+        assertTrue(result.getThrowable() instanceof ClientException);
+        assertEquals(SampleTest.class.getName() + ".testSample", result.getThrowable().getMessage());
+    }
+
+    @Test
+    public void testServiceNotAvailable() throws Exception {
+        TestResult result = new LocalMethodExecutor(mock(BundleContext.class), mock(CommandCallback.class)).invoke(new SampleTestMethod());
+        assertEquals(Status.FAILED, result.getStatus());
+        assertTrue(result.getThrowable() instanceof IllegalStateException);
+    }
+
+    private static BundleContext systemContext(LocalTestRunner service) {
+        BundleContext syscontext = mock(BundleContext.class);
+        ServiceReference<?> sref = mock(ServiceReference.class);
+        doReturn(sref).when(syscontext).getServiceReference(LocalTestRunner.class.getName());
+        doReturn(service).when(syscontext).getService(sref);
+        return syscontext;
+    }
+
+    // A throwable in the classes of the framework
+    private static Throwable frameworkThrowable(String message) throws Exception {
+        ClassLoader classLoader = new FrameworkClassLoader(ClientException.class.getName());
+        Class<?> exceptionClass = classLoader.loadClass(ClientException.class.getName());
+        return (Throwable) exceptionClass.getConstructor(String.class).newInstance(message);
+    }
+
+    public static class ClientException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ClientException(String message) {
+            super(message);
+        }
+    }
+
+    public static class FailingTestRunner implements LocalTestRunner {
+        @Override
+        public Object[] runTestMethod(String className, String methodName, Function<byte[], byte[]> commandCallback) {
+            try {
+                return new Object[] { Status.FAILED.name(), 1000L, 2000L, frameworkThrowable(className + "." + methodName) };
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    public static class SampleTest {
+        public void testSample() {
+        }
+    }
+
+    private static final class SampleTestMethod implements TestMethodExecutor {
+        private final Method method;
+        private final SampleTest instance = new SampleTest();
+
+        SampleTestMethod() throws NoSuchMethodException {
+            method = SampleTest.class.getMethod("testSample");
+        }
+
+        public String getMethodName() {
+            return method.getName();
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @Override
+        public Object getInstance() {
+            return instance;
+        }
+
+        @Override
+        public void invoke(Object... parameters) throws Throwable {
+            method.invoke(instance, parameters);
+        }
+    }
+
+    /**
+     * Defines a class of the client on its own, like the class loader of a bundle.
+     */
+    private static final class FrameworkClassLoader extends ClassLoader {
+        private final String className;
+
+        FrameworkClassLoader(String className) {
+            super(LocalMethodExecutorTestCase.class.getClassLoader());
+            this.className = className;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(className))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                if (result == null) {
+                    try {
+                        byte[] bytes = Files.readAllBytes(Paths.get(getParent().getResource(name.replace('.', '/') + ".class").toURI()));
+                        result = defineClass(name, bytes, 0, bytes.length);
+                    } catch (Exception ex) {
+                        throw new ClassNotFoundException(name, ex);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+}
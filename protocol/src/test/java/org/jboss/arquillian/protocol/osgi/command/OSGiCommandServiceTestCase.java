@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.jboss.arquillian.container.test.spi.command.Command;
+import org.jboss.arquillian.container.test.spi.command.CommandCallback;
+import org.jboss.arquillian.protocol.osgi.LocalMethodExecutor;
+import org.jboss.arquillian.protocol.osgi.LocalTestRunner;
+import org.jboss.arquillian.test.spi.TestMethodExecutor;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.TestResult.Status;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test the command round trip of a local test through the {@link OSGiCommandService}
+ */
+public class OSGiCommandServiceTestCase {
+
+    private final List<Object> fired = new ArrayList<Object>();
+
+    @Test
+    public void testCommandResult() throws Exception {
+        TestResult result = invoke(new CommandTestRunner("ping"));
+        assertEquals(Status.PASSED, result.getStatus());
+        assertEquals(1, fired.size());
+        // The client received a copy of the command
+        assertEquals(EchoCommand.class, fired.get(0).getClass());
+        assertEquals("ping", ((EchoCommand) fired.get(0)).message);
+        assertNull(CommandTestRunner.failure);
+        assertEquals("pong: ping", CommandTestRunner.response);
+    }
+
+    @Test
+    public void testCommandFailure() throws Exception {
+        TestResult result = invoke(new CommandTestRunner("fail"));
+        assertEquals(Status.FAILED, result.getStatus());
+        assertEquals(1, fired.size());
+        assertEquals(IllegalArgumentException.class, CommandTestRunner.failure.getCause().getClass());
+        assertEquals("fail", CommandTestRunner.failure.getCause().getMessage());
+    }
+
+    private TestResult invoke(LocalTestRunner service) throws Exception {
+        BundleContext syscontext = mock(BundleContext.class);
+        ServiceReference<?> sref = mock(ServiceReference.class);
+        doReturn(sref).when(syscontext).getServiceReference(LocalTestRunner.class.getName());
+        doReturn(service).when(syscontext).getService(sref);
+
+        CommandCallback callback = new CommandCallback() {
+            @Override
+            public void fired(Command<?> event) {
+                fired.add(event);
+                EchoCommand command = (EchoCommand) event;
+                if (command.message.equals("fail")) {
+                    command.setThrowable(new IllegalArgumentException(command.message));
+                } else {
+                    command.setResult("pong: " + command.message);
+                }
+            }
+        };
+        return new LocalMethodExecutor(syscontext, callback).invoke(new CommandTestMethod());
+    }
+
+    /**
+     * Runs a test that sends a command, like the test runner service of the Arquillian bundle.
+     */
+    public static class CommandTestRunner implements LocalTestRunner {
+        static volatile String response;
+        static volatile RuntimeException failure;
+
+        private final String message;
+
+        CommandTestRunner(String message) {
+            this.message = message;
+            response = null;
+            failure = null;
+        }
+
+        @Override
+        public Object[] runTestMethod(String className, String methodName, Function<byte[], byte[]> commandCallback) {
+            OSGiCommandService.setLocalCallback(commandCallback);
+            try {
+                response = new OSGiCommandService().execute(new EchoCommand(message));
+                return new Object[] { Status.PASSED.name(), 0L, 0L, null };
+            } catch (RuntimeException ex) {
+                failure = ex;
+                return new Object[] { Status.FAILED.name(), 0L, 0L, ex };
+            } finally {
+                OSGiCommandService.setLocalCallback(null);
+            }
+        }
+    }
+
+    public static class EchoCommand implements Command<String>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String message;
+        private String result;
+        private Throwable throwable;
+
+        EchoCommand(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public String getResult() {
+            return result;
+        }
+
+        @Override
+        public void setResult(String result) {
+            this.result = result;
+        }
+
+        @Override
+        public Throwable getThrowable() {
+            return throwable;
+        }
+
+        @Override
+        public void setThrowable(Throwable throwable) {
+            this.throwable = throwable;
+        }
+    }
+
+    public static class CommandTest {
+        public void testCommand() {
+        }
+    }
+
+    private static final class CommandTestMethod implements TestMethodExecutor {
+        private final Method method;
+        private final CommandTest instance = new CommandTest();
+
+        CommandTestMethod() throws NoSuchMethodException {
+            method = CommandTest.class.getMethod("testCommand");
+        }
+
+        public String getMethodName() {
+            return method.getName();
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @Override
+        public Object getInstance() {
+            return instance;
+        }
+
+        @Override
+        public void invoke(Object... parameters) throws Throwable {
+            method.invoke(instance, parameters);
+        }
+    }
+}
@@ -37,4 +37,11 @@ public final class BundleAssociation {
     public static void setBundle(Bundle type) {
         association.set(type);
     }
+
+    /**
+     * Remove the bundle of the current thread, so that it does not leak into the next test on a pooled thread.
+     */
+    public static void clearBundle() {
+        association.remove();
+    }
 }
@@ -37,4 +37,11 @@ public final class BundleContextAssociation {
     public static void setBundleContext(BundleContext type) {
         association.set(type);
     }
+
+    /**
+     * Remove the bundle context association of the current thread.
+     */
+    public static void clearBundleContext() {
+        association.remove();
+    }
 }